@@ -0,0 +1,652 @@
+package com.wanikani.androidnotifier;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.webkit.WebResourceResponse;
+
+import com.wanikani.wklib.Connection;
+
+/*
+ *  Copyright (c) 2013 Alberto Cuda
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A disk cache of the static resources (stylesheets, scripts, fonts, images and audio)
+ * loaded by the review and lesson pages. The WebView cache is not reliable enough
+ * for this purpose: it is shared with any other page, and we have no control over its size
+ * or on when it is flushed.
+ * <p>
+ * Contents are stored in files named after the SHA-1 of their data, so identical
+ * resources reachable through different URLs are stored only once. Each URL has
+ * a small descriptor, named after the SHA-1 of the URL, containing the content hash,
+ * the HTTP validators and the expiration date. The latter comes from the
+ * <tt>Cache-Control</tt> (or <tt>Expires</tt>) header: responses without an
+ * explicit freshness lifetime are revalidated with a conditional request each
+ * time they are used, and responses marked <tt>no-store</tt> or <tt>private</tt>
+ * are not stored at all. Resources stored by {@link #prefetch(String, Connection.Meter)}
+ * are assumed to be immutable, so they never expire.
+ * If the network is unavailable, expired entries are used anyway.
+ * When the contents grow larger than {@link #MAX_SIZE}, the least recently used ones
+ * are deleted.
+ * <p>
+ * Fonts are not cached: {@link WebResourceResponse} can't carry response headers
+ * before API 21, and without <tt>Access-Control-Allow-Origin</tt> the WebView
+ * refuses cross-origin fonts.
+ * <p>
+ * Methods may be called from any thread, since the WebView calls
+ * {@link #load(String)} on its own worker threads.
+ */
+public class AssetCache {
+	
+	/// The singleton
+	private static AssetCache instance;
+	
+	/// Cache subdirectory name
+	private static final String DIR = "assets";
+	
+	/// Descriptor file suffix
+	private static final String META_SUFFIX = ".meta";
+	
+	/// Content file suffix
+	private static final String DATA_SUFFIX = ".data";
+	
+	/// Maximum size of the contents, in bytes
+	private static final long MAX_SIZE = 32 * 1024 * 1024;
+	
+	/// Connection and read timeout, in milliseconds
+	private static final int TIMEOUT = 15000;
+	
+	/// Extensions of the resources that may be cached
+	private static final String EXTENSIONS [] = new String [] {
+		".css", ".js", ".svg", ".png", ".gif", ".jpg", ".mp3", ".ogg"
+	};
+	
+	/// Descriptor keys
+	private static final String K_URL = "url";
+	private static final String K_HASH = "hash";
+	private static final String K_MIME = "mime";
+	private static final String K_ENCODING = "encoding";
+	private static final String K_ETAG = "etag";
+	private static final String K_MODIFIED = "modified";
+	private static final String K_EXPIRES = "expires";
+	
+	/// The cache directory
+	private File dir;
+	
+	/// Size of the contents, in bytes, or -1 if not computed yet
+	private long size;
+	
+	/**
+	 * Constructor. No disk access is performed here, since it is called on the UI thread.
+	 * @param dir the cache directory
+	 */
+	private AssetCache (File dir)
+	{
+		this.dir = dir;
+		
+		size = -1;
+	}
+	
+	/**
+	 * Creates the cache directory and computes the size of the contents, if not done yet.
+	 * Must be called on a worker thread, while holding the lock.
+	 */
+	private void init ()
+	{
+		if (size >= 0)
+			return;
+		
+		dir.mkdirs ();
+		size = 0;
+		for (File f : dataFiles ())
+			size += f.length ();
+	}
+	
+	/**
+	 * Returns the cache instance.
+	 * @param ctxt a context
+	 * @return the cache
+	 */
+	public static synchronized AssetCache get (Context ctxt)
+	{
+		if (instance == null)
+			instance = new AssetCache (new File (ctxt.getCacheDir (), DIR));
+		
+		return instance;
+	}
+	
+	/**
+	 * Tells whether a resource may be cached, i.e. it is static and it is
+	 * safe to reuse it across sessions.
+	 * @param url the resource URL
+	 * @return <code>true</code> if it may be cached
+	 */
+	public static boolean isCacheable (String url)
+	{
+		String path;
+		int i;
+		
+		if (!url.startsWith ("http://") && !url.startsWith ("https://"))
+			return false;
+		
+		path = url;
+		i = path.indexOf ('#');
+		if (i >= 0)
+			path = path.substring (0, i);
+		i = path.indexOf ('?');
+		if (i >= 0)
+			path = path.substring (0, i);
+		path = path.toLowerCase ();
+		
+		for (String ext : EXTENSIONS)
+			if (path.endsWith (ext))
+				return true;
+		
+		return false;
+	}
+	
+	/**
+	 * Returns a cached resource, fetching or revalidating it if needed.
+	 * Meant to be called by {@link android.webkit.WebViewClient#shouldInterceptRequest(android.webkit.WebView, String)}.
+	 * @param url the resource URL
+	 * @return the response, or <code>null</code> if the resource is not cacheable
+	 * 	or if it can't be fetched. In that case the WebView will fetch it on its own
+	 */
+	@TargetApi(11)
+	public WebResourceResponse load (String url)
+	{
+		Properties meta;
+		File data;
+		
+		if (!isCacheable (url))
+			return null;
+		
+		meta = readMeta (url);
+		data = meta != null ? dataFile (meta.getProperty (K_HASH)) : null;
+		if (data == null || !data.exists ())
+			meta = null;
+		
+		if (meta == null || isStale (meta))
+			meta = fetch (url, meta, null, false);
+		
+		if (meta == null)
+			return null;
+		
+		data = dataFile (meta.getProperty (K_HASH));
+		data.setLastModified (System.currentTimeMillis ());
+		try {
+			return new WebResourceResponse (meta.getProperty (K_MIME),
+											meta.getProperty (K_ENCODING),
+											new FileInputStream (data));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Makes sure a resource is in the cache, fetching it if needed. This is meant
+	 * for content that never changes, like item audio: the entry is marked as never
+	 * expiring, so {@link #load(String)} serves it without a conditional request.
+	 * @param url the resource URL
+	 * @param meter the meter to charge for the downloaded data
+	 * @return the number of bytes downloaded
+	 */
+	public long prefetch (String url, Connection.Meter meter)
+	{
+		Properties meta;
+		File data;
+		
+		if (!isCacheable (url))
+			return 0;
+		
+		meta = readMeta (url);
+		data = meta != null ? dataFile (meta.getProperty (K_HASH)) : null;
+		if (data != null && data.exists ()) {
+			/* May have been stored by load (), with a short lifetime */
+			if (isStale (meta)) {
+				meta.setProperty (K_EXPIRES, Long.toString (Long.MAX_VALUE));
+				try {
+					writeMeta (url, meta);
+				} catch (IOException e) {
+					/* empty */
+				}
+			}
+			return 0;
+		}
+		
+		meta = fetch (url, null, meter, true);
+		data = meta != null ? dataFile (meta.getProperty (K_HASH)) : null;
+		
+		return data != null ? data.length () : 0;
+	}
+	
+	/**
+	 * Deletes all the cached resources.
+	 */
+	public synchronized void clear ()
+	{
+		File files [];
+		
+		files = dir.listFiles ();
+		if (files != null)
+			for (File f : files)
+				f.delete ();
+		
+		/* The directory may not exist yet: let init () take care of it */
+		size = -1;
+	}
+	
+	private static boolean isStale (Properties meta)
+	{
+		long expires;
+		
+		try {
+			expires = Long.parseLong (meta.getProperty (K_EXPIRES, "0"));
+		} catch (NumberFormatException e) {
+			expires = 0;
+		}
+		
+		return System.currentTimeMillis () >= expires;
+	}
+	
+	/**
+	 * Computes the expiration date of a response, according to its
+	 * <tt>Cache-Control</tt> and <tt>Expires</tt> headers.
+	 * @param conn the connection
+	 * @return the expiration date (the current time, if the response must always
+	 * 	be revalidated), or <code>-1</code> if the response must not be stored 
+	 */
+	private static long expires (HttpURLConnection conn)
+	{
+		boolean nocache;
+		String cc;
+		long now, ans;
+		
+		now = System.currentTimeMillis ();
+		cc = conn.getHeaderField ("Cache-Control");
+		ans = conn.getExpiration () > 0 ? conn.getExpiration () : now;
+		nocache = false;
+		if (cc != null) {
+			for (String d : cc.toLowerCase ().split (",")) {
+				d = d.trim ();
+				if (d.equals ("no-store") || d.startsWith ("private"))
+					return -1;
+				else if (d.startsWith ("no-cache"))
+					nocache = true;
+				else if (d.startsWith ("max-age=")) {
+					/* max-age takes precedence over Expires */
+					try {
+						ans = now + Long.parseLong (d.substring (8).trim ()) * 1000;
+					} catch (NumberFormatException e) {
+						ans = now;
+					}
+				}
+			}
+		}
+		
+		return nocache ? now : ans;
+	}
+	
+	/**
+	 * Fetches a resource, or revalidates a cached one.
+	 * @param url the resource URL
+	 * @param meta the current descriptor, or <code>null</code> if there is none
+	 * @param meter an optional meter to charge for the downloaded data
+	 * @param immutable set if the resource never changes, so it must never expire 
+	 * @return the new descriptor, the current one if the network is not available,
+	 * 	or <code>null</code> if the resource could not be fetched
+	 */
+	private Properties fetch (String url, Properties meta, Connection.Meter meter, boolean immutable)
+	{
+		HttpURLConnection conn;
+		Properties ans;
+		long expires;
+		String s;
+		int code;
+		
+		conn = null;
+		try {
+			conn = (HttpURLConnection) new URL (url).openConnection ();
+			conn.setConnectTimeout (TIMEOUT);
+			conn.setReadTimeout (TIMEOUT);
+			if (meta != null) {
+				s = meta.getProperty (K_ETAG);
+				if (s != null)
+					conn.setRequestProperty ("If-None-Match", s);
+				s = meta.getProperty (K_MODIFIED);
+				if (s != null)
+					conn.setIfModifiedSince (Long.parseLong (s));
+			}
+			conn.connect ();
+			code = conn.getResponseCode ();
+			expires = expires (conn);
+			if (immutable && expires >= 0)
+				expires = Long.MAX_VALUE;
+			if (meta != null && code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				meta.setProperty (K_EXPIRES, Long.toString (Math.max (expires, 0)));
+				writeMeta (url, meta);
+				
+				return meta;
+			}
+			/* Redirects (e.g. to the login page) must not be stored under this URL */
+			if (code != HttpURLConnection.HTTP_OK || expires < 0 ||
+				!url.equals (conn.getURL ().toString ()))
+				return null;
+			
+			ans = new Properties ();
+			ans.setProperty (K_URL, url);
+			ans.setProperty (K_HASH, store (conn.getInputStream (), meter));
+			setContentType (ans, conn.getContentType ());
+			s = conn.getHeaderField ("ETag");
+			if (s != null)
+				ans.setProperty (K_ETAG, s);
+			if (conn.getLastModified () > 0)
+				ans.setProperty (K_MODIFIED, Long.toString (conn.getLastModified ()));
+			ans.setProperty (K_EXPIRES, Long.toString (expires));
+			writeMeta (url, ans);
+			
+			return ans;
+		
+		} catch (Throwable t) {
+			return meta;
+		} finally {
+			if (conn != null)
+				conn.disconnect ();
+			if (meter != null)
+				meter.sync ();
+		}
+	}
+	
+	/**
+	 * Parses the content type header, e.g. <tt>text/css; charset=utf-8</tt>.
+	 * @param meta the descriptor to update
+	 * @param ctype the header value
+	 */
+	private static void setContentType (Properties meta, String ctype)
+	{
+		String s;
+		int i;
+		
+		if (ctype == null)
+			ctype = "application/octet-stream";
+		
+		i = ctype.indexOf (';');
+		meta.setProperty (K_MIME, (i >= 0 ? ctype.substring (0, i) : ctype).trim ());
+		
+		i = ctype.toLowerCase ().indexOf ("charset=");
+		if (i >= 0) {
+			s = ctype.substring (i + 8).trim ();
+			i = s.indexOf (';');
+			if (i >= 0)
+				s = s.substring (0, i);
+			meta.setProperty (K_ENCODING, s.replace ("\"", "").trim ());
+		}
+	}
+	
+	/**
+	 * Stores a resource in the cache.
+	 * @param is the input stream
+	 * @param meter an optional meter to charge for the downloaded data
+	 * @return the content hash
+	 * @throws IOException if something goes wrong
+	 */
+	private String store (InputStream is, Connection.Meter meter)
+		throws IOException
+	{
+		MessageDigest md;
+		OutputStream os;
+		File tmp, data;
+		String hash;
+		byte buf [];
+		boolean ok;
+		int rd;
+		
+		md = sha1 ();
+		synchronized (this) {
+			init ();
+		}
+		tmp = File.createTempFile ("fetch", ".tmp", dir);
+		os = null;
+		ok = false;
+		try {
+			os = new FileOutputStream (tmp);
+			buf = new byte [8192];
+			while (true) {
+				rd = is.read (buf);
+				if (rd < 0)
+					break;
+				md.update (buf, 0, rd);
+				os.write (buf, 0, rd);
+				if (meter != null)
+					meter.count (rd);
+			}
+			os.close ();
+			os = null;
+			
+			hash = hex (md.digest ());
+			data = dataFile (hash);
+			synchronized (this) {
+				if (data.exists ())
+					tmp.delete ();
+				else if (tmp.renameTo (data))
+					size += data.length ();
+				else
+					throw new IOException ("Can't rename " + tmp);
+			}
+			ok = true;
+		
+		} finally {
+			try {
+				is.close ();
+			} catch (IOException e) {
+				/* empty */
+			}
+			try {
+				if (os != null)
+					os.close ();
+			} catch (IOException e) {
+				ok = false;
+			}
+			if (!ok)
+				tmp.delete ();
+		}
+		
+		trim ();
+		
+		return hash;
+	}
+	
+	/**
+	 * Deletes the least recently used contents, until the cache is smaller than
+	 * {@link #MAX_SIZE}. Descriptors pointing to deleted contents are deleted too.
+	 */
+	private synchronized void trim ()
+	{
+		Properties meta;
+		File files [];
+		String hash;
+		int i;
+		
+		init ();
+		if (size <= MAX_SIZE)
+			return;
+		
+		files = dataFiles ();
+		Arrays.sort (files, new Comparator<File> () {
+			public int compare (File f1, File f2)
+			{
+				long d;
+				
+				d = f1.lastModified () - f2.lastModified ();
+				
+				return d < 0 ? -1 : d > 0 ? 1 : 0;
+			}
+		});
+		
+		/* Stop at MAX_SIZE * 3/4, so we don't need to do this on each insertion */
+		for (i = 0; i < files.length && size > MAX_SIZE * 3 / 4; i++) {
+			size -= files [i].length ();
+			files [i].delete ();
+		}
+		
+		/* Contents are shared, so we can't tell which descriptors are orphaned
+		 * without reading them. This is rare enough, anyway */
+		files = dir.listFiles ();
+		if (files == null)
+			return;
+		for (File f : files) {
+			if (!f.getName ().endsWith (META_SUFFIX))
+				continue;
+			meta = readMeta (f);
+			hash = meta != null ? meta.getProperty (K_HASH) : null;
+			if (hash == null || !dataFile (hash).exists ())
+				f.delete ();
+		}
+	}
+	
+	private File [] dataFiles ()
+	{
+		File files [], ans [];
+		int i, j;
+		
+		files = dir.listFiles ();
+		if (files == null)
+			return new File [0];
+		
+		for (i = j = 0; i < files.length; i++)
+			if (files [i].getName ().endsWith (DATA_SUFFIX))
+				files [j++] = files [i];
+		
+		ans = new File [j];
+		System.arraycopy (files, 0, ans, 0, j);
+		
+		return ans;
+	}
+	
+	private File dataFile (String hash)
+	{
+		return hash != null ? new File (dir, hash + DATA_SUFFIX) : null;
+	}
+	
+	private File metaFile (String url)
+	{
+		try {
+			return new File (dir, hex (sha1 ().digest (url.getBytes ("UTF-8"))) + META_SUFFIX);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	private Properties readMeta (String url)
+	{
+		Properties ans;
+		File file;
+		
+		file = metaFile (url);
+		if (file == null || !file.exists ())
+			return null;
+		
+		ans = readMeta (file);
+		
+		/* Guard against hash collisions */
+		return ans != null && url.equals (ans.getProperty (K_URL)) ? ans : null;
+	}
+	
+	private static Properties readMeta (File file)
+	{
+		Properties ans;
+		InputStream is;
+		
+		is = null;
+		try {
+			is = new FileInputStream (file);
+			ans = new Properties ();
+			ans.load (is);
+			
+			return ans;
+		
+		} catch (IOException e) {
+			return null;
+		} finally {
+			try {
+				if (is != null)
+					is.close ();
+			} catch (IOException e) {
+				/* empty */
+			}
+		}
+	}
+	
+	private void writeMeta (String url, Properties meta)
+		throws IOException
+	{
+		OutputStream os;
+		File file, tmp;
+		
+		file = metaFile (url);
+		if (file == null)
+			return;
+		
+		tmp = File.createTempFile ("meta", ".tmp", dir);
+		os = new FileOutputStream (tmp);
+		try {
+			meta.store (os, null);
+		} finally {
+			os.close ();
+		}
+		
+		if (!tmp.renameTo (file)) {
+			tmp.delete ();
+			throw new IOException ("Can't rename " + tmp);
+		}
+	}
+	
+	static MessageDigest sha1 ()
+		throws IOException
+	{
+		try {
+			return MessageDigest.getInstance ("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException ("SHA-1 not available");
+		}
+	}
+	
+	static String hex (byte digest [])
+	{
+		StringBuffer sb;
+		
+		sb = new StringBuffer ();
+		for (byte b : digest)
+			sb.append (Character.forDigit ((b >> 4) & 0xf, 16)).
+				append (Character.forDigit (b & 0xf, 16));
+		
+		return sb.toString ();
+	}
+}
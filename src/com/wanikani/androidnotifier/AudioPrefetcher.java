@@ -0,0 +1,192 @@
+package com.wanikani.androidnotifier;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Build;
+
+import com.wanikani.wklib.Connection;
+
+/*
+ *  Copyright (c) 2013 Alberto Cuda
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Downloads the audio of the upcoming review items into the {@link AssetCache}, so
+ * it is already available when the item is shown. The review page reports the
+ * audio files of the items in its active queue each time the question changes,
+ * and this class fetches them in background, one at a time.
+ * <p>
+ * The queue is bounded: if the page reports more files than {@link #QUEUE_SIZE},
+ * the oldest requests are discarded. Each review session has a byte budget, 
+ * which is much smaller when the device is on a mobile network. The budget is
+ * shared by all the instances, since the keyboard (and its prefetcher) may be recreated
+ * many times during a session: {@link #newSession()} resets it.
+ * Downloads are metered as {@link MeterSpec.T#AUDIO_PREFETCH}.
+ */
+public class AudioPrefetcher {
+	
+	/**
+	 * The background task. It runs until the queue is empty.
+	 */
+	private class Task extends AsyncTask<Void, Void, Void> {
+		
+		@Override
+		protected Void doInBackground (Void... v)
+		{
+			Connection.Meter meter;
+			String url;
+			
+			meter = MeterSpec.T.AUDIO_PREFETCH.get (ctxt);
+			while (true) {
+				url = poll ();
+				if (url == null)
+					break;
+				
+				spent.addAndGet (cache.prefetch (url, meter));
+			}
+			
+			return null;
+		}
+	}
+	
+	/// Where audio files are published
+	public static final String AUDIO_URL = "https://s3.amazonaws.com/s3.wanikani.com/audio/";
+	
+	/// Maximum number of pending requests
+	private static final int QUEUE_SIZE = 10;
+	
+	/// Session budget on Wi-Fi, in bytes
+	private static final long WIFI_BUDGET = 16 * 1024 * 1024;
+	
+	/// Session budget on mobile networks, in bytes
+	private static final long MOBILE_BUDGET = 2 * 1024 * 1024;
+	
+	/// The context
+	private Context ctxt;
+	
+	/// The cache
+	private AssetCache cache;
+	
+	/// The pending requests
+	private Set<String> queue;
+	
+	/// Set if a task is draining the queue
+	private boolean running;
+	
+	/// Bytes downloaded so far in this session. Updated only by the background tasks
+	private static final AtomicLong spent = new AtomicLong ();
+	
+	/**
+	 * Constructor.
+	 * @param ctxt the context
+	 */
+	public AudioPrefetcher (Context ctxt)
+	{
+		this.ctxt = ctxt.getApplicationContext ();
+		
+		cache = AssetCache.get (ctxt);
+		queue = new LinkedHashSet<String> ();
+	}
+	
+	/**
+	 * Resets the session budget. Called when a new review session starts.
+	 */
+	public static void newSession ()
+	{
+		spent.set (0);
+	}
+	
+	/**
+	 * Queues some audio files. Must be called on the UI thread.
+	 * @param files the file names, relative to {@link #AUDIO_URL}
+	 */
+	@TargetApi(11)
+	public void prefetch (String files [])
+	{
+		Iterator<String> i;
+		
+		synchronized (this) {
+			if (spent.get () >= budget ())
+				return;
+			
+			for (String file : files) {
+				if (file.length () == 0)
+					continue;
+				queue.add (AUDIO_URL + file);
+				if (queue.size () > QUEUE_SIZE) {
+					i = queue.iterator ();
+					i.next ();
+					i.remove ();
+				}
+			}
+			
+			if (running || queue.isEmpty ())
+				return;
+			
+			running = true;
+		}
+		
+		/* Don't hold the serial executor, which is shared by all the tasks of the app,
+		 * while downloading */
+		if (Build.VERSION.SDK_INT >= 11)
+			new Task ().executeOnExecutor (AsyncTask.THREAD_POOL_EXECUTOR);
+		else
+			new Task ().execute ();
+	}
+	
+	/**
+	 * Drops all the pending requests.
+	 */
+	public synchronized void clear ()
+	{
+		queue.clear ();
+	}
+	
+	/**
+	 * Returns the next request. If there is none, or the budget has been spent,
+	 * the task must stop.
+	 * @return the URL to fetch, or <code>null</code>
+	 */
+	private synchronized String poll ()
+	{
+		Iterator<String> i;
+		String ans;
+		
+		if (queue.isEmpty () || spent.get () >= budget ()) {
+			queue.clear ();
+			running = false;
+			
+			return null;
+		}
+		
+		i = queue.iterator ();
+		ans = i.next ();
+		i.remove ();
+		
+		return ans;
+	}
+	
+	private long budget ()
+	{
+		return MeterSpec.isMobile (ctxt) ? MOBILE_BUDGET : WIFI_BUDGET;
+	}
+}
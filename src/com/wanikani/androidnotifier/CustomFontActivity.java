@@ -158,8 +158,11 @@ public class CustomFontActivity extends Activity {
 			FontHolder holder;
 			
 			holder = (FontHolder) button.getTag ();
-			if (holder != null)
+			if (holder != null) {
 				FontDatabase.setEnabled (CustomFontActivity.this, holder.fe, checked);
+				if (checked)
+					FontDatabase.preload (CustomFontActivity.this);
+			}
 			
 			updateChecks ();
 		}
@@ -510,6 +513,8 @@ public class CustomFontActivity extends Activity {
 			if (f.getName ().startsWith (PREFIX) && !used.contains (f.getName ()))
 				f.delete ();
 		}
+		
+		FileDownloadTask.cleanup (this);
 	}
 
 	private View showDialog (int titleid, int locid, ImportDialog idial)
@@ -6,7 +6,6 @@ import java.util.Date;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
 import android.graphics.Bitmap;
 import android.os.Bundle;
 
@@ -312,7 +311,7 @@ public class DashboardData {
 		
 		SharedPreferences prefs;
 		
-		Editor editor;
+		PreferencesWriter writer;
 		
 		String pfx;
 		
@@ -330,38 +329,38 @@ public class DashboardData {
 		@Override
 		public void write ()
 		{
-			editor = prefs.edit ();
+			writer = new PreferencesWriter (prefs);
 		}
 
 		@Override
 		public void commit ()
 		{
-			editor.commit ();
-			editor = null;
+			writer.flush ();
+			writer = null;
 		}
 		
 		@Override
 		public void putInt (String key, int value)
 		{
-			editor.putInt (key (key), value);
+			writer.putInt (key (key), value);
 		}
 		
 		@Override
 		public void putString (String key, String value)
 		{
-			editor.putString (key (key), value);
+			writer.putString (key (key), value);
 		}
 		
 		@Override
 		public void putLong (String key, long value)
 		{
-			editor.putLong (key (key), value);
+			writer.putLong (key (key), value);
 		}
 
 		@Override
 		public void putBoolean (String key, boolean value)
 		{
-			editor.putBoolean (key (key), value);
+			writer.putBoolean (key (key), value);
 		}
 
 		@Override
@@ -379,7 +378,7 @@ public class DashboardData {
 		@Override
 		public void removeKey (String key)
 		{
-			editor.remove (key (key));
+			writer.remove (key (key));
 		}
 
 		@Override
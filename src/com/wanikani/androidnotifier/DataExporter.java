@@ -69,7 +69,7 @@ public class DataExporter {
 			 */
 			public void finalize (Context ctxt, Format fmt)
 			{
-				send (ctxt, this, getFile (ctxt), fmt.getType ());
+				send (ctxt, this, getFile (ctxt, fmt), fmt.getType ());
 			}
 			
 			/**
@@ -94,7 +94,7 @@ public class DataExporter {
 			 */
 			public void finalize (Context ctxt, Format fmt)
 			{
-				send (ctxt, this, getFile (ctxt), fmt.getType ());
+				send (ctxt, this, getFile (ctxt, fmt), fmt.getType ());
 			}
 		},
 		
@@ -104,8 +104,9 @@ public class DataExporter {
 			/**
 			 * The output stream is actually the file being generated.
 			 * @param ctxt the context
+			 * @param fmt the format
 			 */
-			public OutputStream getOutputStream (Context ctxt)
+			public OutputStream getOutputStream (Context ctxt, Format fmt)
 				throws IOException
 			{
 				return new FileOutputStream (SettingsActivity.getExportFile (ctxt));
@@ -141,12 +142,13 @@ public class DataExporter {
 		 * This implementation creates a world readable temporary file (this is the easiest way
 		 * to let external actions read its contents and -- well -- nothing sensible is in here!).
 		 * @param ctxt the context
+		 * @param fmt the format, which sets the file extension
 		 * @return the output stream
 		 */
-		public OutputStream getOutputStream (Context ctxt)
+		public OutputStream getOutputStream (Context ctxt, Format fmt)
 			throws IOException
 		{
-			return ctxt.openFileOutput (FILENAME, Context.MODE_WORLD_READABLE);
+			return ctxt.openFileOutput (getFileName (fmt), Context.MODE_WORLD_READABLE);
 		}
 
 		/**
@@ -160,16 +162,17 @@ public class DataExporter {
 		}
 		
 		/**
-		 * Returns a file object representing the output stream created by {@link #getOutputStream(Context)}.
+		 * Returns a file object representing the output stream created by {@link #getOutputStream(Context, Format)}.
 		 * The implementation of this method is needed only if enum implementations call 
 		 * {@link DataExporter#send(Context, Destination, File, String)}.
-		 * The current implementation is in-sync with this class' {@link #getOutputStream(Context)}
+		 * The current implementation is in-sync with this class' {@link #getOutputStream(Context, Format)}
 		 * @param ctxt the context
+		 * @param fmt the format
 		 * @return a file object
 		 */
-		public File getFile (Context ctxt)
+		public File getFile (Context ctxt, Format fmt)
 		{
-			return ctxt.getFileStreamPath (FILENAME);
+			return ctxt.getFileStreamPath (getFileName (fmt));
 		}
 		
 		/**
@@ -184,8 +187,9 @@ public class DataExporter {
 		}
 	};
 	
-	/// The default export file. To avoid problems we use the archaic 8+3 convention
-	private static final String FILENAME = "wkexport.csv";
+	/// The basename of export files, whose extension depends on the format. 
+	/// To avoid problems we use the archaic 8+3 convention
+	private static final String BASENAME = "wkexport";
 
 	/** 
 	 * A static instance. We use the singleton pattern so we can create the temporary file
@@ -202,14 +206,43 @@ public class DataExporter {
 		/* empty */
 	}
 	
+	/**
+	 * Returns the default export file for the current export format.
+	 * @param ctxt the context
+	 * @return an absolute path to the export file
+	 */
+	public static final String getDefaultExportFile (Context ctxt)
+	{
+		return getDefaultExportFile (ctxt, SettingsActivity.getExportFormat (ctxt));
+	}
+	
+	/**
+	 * Tells whether a file is the default export file of some format, so
+	 * it is safe to replace it when the format changes.
+	 * @param ctxt the context
+	 * @param path an absolute path
+	 * @return <code>true</code> if it is a default export file
+	 */
+	public static final boolean isDefaultExportFile (Context ctxt, String path)
+	{
+		File file, def;
+		
+		file = new File (path);
+		def = new File (getDefaultExportFile (ctxt));
+		
+		return def.getParentFile ().equals (file.getParentFile ()) &&
+				file.getName ().startsWith (BASENAME + ".");
+	}
+	
 	/**
 	 * Returns the default export file. We try to use the external SD, if present.
 	 * Otherwise we revert to the internal storage (which defeats the point, I'm afraid).
 	 * @param ctxt the context
+	 * @param fmt the export format, which decides the extension
 	 * @return an absolute path to the export file
 	 */
 	@TargetApi(8)
-	public static final String getDefaultExportFile (Context ctxt)
+	public static final String getDefaultExportFile (Context ctxt, Format fmt)
 	{
 		File file;
 		
@@ -227,9 +260,19 @@ public class DataExporter {
 		if (file == null)
 			file = new File ("/");
 		
-		return file.getAbsolutePath () + "/" + DataExporter.FILENAME; 
+		return file.getAbsolutePath () + "/" + getFileName (fmt); 
 	}	
 	
+	/**
+	 * Returns the name of an export file
+	 * @param fmt the export format
+	 * @return the file name
+	 */
+	private static String getFileName (Format fmt)
+	{
+		return BASENAME + "." + fmt.getExtension ();
+	}
+	
 	/**
 	 * Exports the db, according to current settings.
 	 * @param ctxt the context
@@ -245,7 +288,7 @@ public class DataExporter {
 		try {
 			dest.testPrerequisites (ctxt);
 			
-			os = dest.getOutputStream (ctxt);
+			os = dest.getOutputStream (ctxt, fmt);
 			fmt.export (os);
 			os.close ();
 			
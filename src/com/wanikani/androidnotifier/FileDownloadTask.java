@@ -1,17 +1,27 @@
 package com.wanikani.androidnotifier;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TimeZone;
 
 import android.content.Context;
 import android.os.AsyncTask;
 
-/* 
+import com.wanikani.wklib.Connection;
+
+/*
  *  Copyright (c) 2013 Alberto Cuda
  *
  *  This program is free software: you can redistribute it and/or modify
@@ -28,15 +38,80 @@ import android.os.AsyncTask;
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+/**
+ * Downloads a file into the application private directory.
+ * Data is first written into a partial file, whose name depends only on the URL,
+ * so if the download is cancelled or interrupted it can be resumed later through
+ * an HTTP range request. The validators (<tt>ETag</tt> and <tt>Last-Modified</tt>)
+ * of the resource are kept in a descriptor, so
+ * <ul>
+ * 	<li>a partial file is resumed only if the resource has not changed in the meantime
+ * 	<li>a completed file that still exists is not downloaded again, unless
+ * 		the server says it has changed
+ * </ul>
+ * Optionally, the file can be verified against a known checksum.
+ * Partial files that are not resumed within {@link #EXPIRY} are deleted by {@link #cleanup(Context)}.
+ */
 public class FileDownloadTask extends AsyncTask<String, Integer, File>{
 	
 	public static interface Listener {
 		
 		public void setProgress (int percentage);
 		
+		/**
+		 * Called before {@link #done(File)}, whatever the outcome.
+		 * @param outcome the outcome. {@link Connection.Outcome#NOT_MODIFIED} means
+		 * 	that a previously downloaded file has been reused 
+		 * @param bytes the number of bytes actually transferred by this task
+		 * @param elapsed the time spent, in milliseconds
+		 * @param resumed set if a partial file has been resumed
+		 */
+		public void stats (Connection.Outcome outcome, long bytes, long elapsed, boolean resumed);
+		
+		/**
+		 * Tells whether a previously downloaded file is still referenced by the application.
+		 * If so, the task returns a copy of it instead of the file itself, so the two 
+		 * owners can be deleted independently. Called on the background thread.
+		 * @param file the file
+		 * @return <code>true</code> if it is in use
+		 */
+		public boolean inUse (File file);
+		
 		public void done (File file);
 	}
-
+	
+	/// Subdirectory holding partial files and descriptors
+	private static final String DOWNLOADS_DIR = "downloads";
+	
+	private static final String PARTIAL_SUFFIX = ".part";
+	
+	private static final String META_SUFFIX = ".meta";
+	
+	private static final String K_URL = "url";
+	
+	private static final String K_ETAG = "etag";
+	
+	private static final String K_MODIFIED = "modified";
+	
+	private static final String K_LENGTH = "length";
+	
+	private static final String K_FILE = "file";
+	
+	/// Initial buffer size
+	private static final int MIN_BUFFER = 8192;
+	
+	/// Maximum buffer size. The buffer grows when reads keep filling it
+	private static final int MAX_BUFFER = 65536;
+	
+	/// Connection and read timeout
+	private static final int TIMEOUT = 30000;
+	
+	/// HTTP Range Not Satisfiable
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+	
+	/// How long partial files and descriptors are kept, in milliseconds
+	private static final long EXPIRY = 7 * 24 * 3600 * 1000L;
+	
 	private Context ctxt;
 	
 	private Listener listener;
@@ -45,70 +120,406 @@ public class FileDownloadTask extends AsyncTask<String, Integer, File>{
 	
 	private boolean cancelled;
 	
+	/// The checksum algorithm, or <code>null</code> if not verifying
+	private String algorithm;
+	
+	/// The expected checksum, as an hex string
+	private String checksum;
+	
+	/// Bytes transferred by this task
+	private long bytes;
+	
+	/// Time spent
+	private long elapsed;
+	
+	/// The outcome
+	private Connection.Outcome outcome;
+	
+	/// Set if a partial file has been resumed
+	private boolean resumed;
+	
 	public FileDownloadTask (Context ctxt, String prefix, Listener listener)
 	{
 		this.ctxt = ctxt;
 		this.prefix = prefix;
 		this.listener = listener;
+		
+		outcome = Connection.Outcome.ERROR;
+	}
+	
+	/**
+	 * Enables checksum verification. Must be called before the task is executed.
+	 * @param algorithm a {@link MessageDigest} algorithm name, e.g. <tt>MD5</tt> or <tt>SHA-1</tt>
+	 * @param checksum the expected digest, as an hex string
+	 */
+	public void setChecksum (String algorithm, String checksum)
+	{
+		this.algorithm = algorithm;
+		this.checksum = checksum.toLowerCase ();
 	}
 	
 	public void cancel ()
 	{
 		cancelled = true;
 	}
-
+	
 	@Override
 	public File doInBackground (String... url)
-	{		
+	{
+		long start;
+		
+		start = System.currentTimeMillis ();
+		try {
+			return download (url [0]);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			elapsed = System.currentTimeMillis () - start;
+		}
+	}
+	
+	private File download (String url)
+		throws IOException
+	{
 		HttpURLConnection conn;
-		File outdir, outf;
-		InputStream is;
-		OutputStream os;
-		byte buf [];
-		int read, size, br, delta, next;
-		boolean ok;
+		File outdir, dir, partial, done, outf;
+		Properties meta;
+		String key, s;
+		int code;
+		long size;
+		
+		outdir = ctxt.getFilesDir ();
+		if (outdir == null)
+			throw new IOException ("Can't open output dir");
+		
+		dir = new File (outdir, DOWNLOADS_DIR);
+		if (!dir.exists () && !dir.mkdirs ())
+			throw new IOException ("Can't create " + dir);
+		cleanup (dir);
+		
+		key = prefix + AssetCache.hex (AssetCache.sha1 ().digest (url.getBytes ("UTF-8")));
+		partial = new File (dir, key + PARTIAL_SUFFIX);
+		meta = readMeta (new File (dir, key + META_SUFFIX), url);
+		s = meta.getProperty (K_FILE);
+		done = s != null ? new File (s) : null;
+		if (done != null && !done.exists ())
+			done = null;
+		if (done == null)
+			meta.remove (K_FILE);
 		
-		ok = false;
-		outf = null;
-		is = null;
-		os = null;
 		conn = null;
 		try {
-			conn = (HttpURLConnection) new URL (url [0]).openConnection ();
-			conn.connect ();
+			conn = connect (url, meta, done != null ? null : partial);
+			code = conn.getResponseCode ();
+			if (code == HTTP_RANGE_NOT_SATISFIABLE) {
+				/* Whatever we have, it is not good */
+				conn.disconnect ();
+				partial.delete ();
+				meta = readMeta (null, url);
+				conn = connect (url, meta, null);
+				code = conn.getResponseCode ();
+			}
+			
+			if (done != null && code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				outcome = Connection.Outcome.NOT_MODIFIED;
+				if (!listener.inUse (done))
+					return done;
+				
+				/* No need for the network, but the caller must get its own file */
+				outf = new File (outdir, prefix + System.currentTimeMillis ());
+				duplicate (done, outf);
+				
+				return outf;
+			}
+			
+			if (code == HttpURLConnection.HTTP_PARTIAL) {
+				if (rangeStart (conn.getHeaderField ("Content-Range")) != partial.length ()) {
+					partial.delete ();
+					throw new IOException ("Unexpected range");
+				}
+				resumed = true;
+			} else if (code == HttpURLConnection.HTTP_OK) {
+				partial.delete ();
+				meta = readMeta (null, url);
+			} else
+				throw new IOException ("Unexpected response " + code);
+			
+			s = conn.getHeaderField ("ETag");
+			if (s != null)
+				meta.setProperty (K_ETAG, s);
+			if (conn.getLastModified () > 0)
+				meta.setProperty (K_MODIFIED, Long.toString (conn.getLastModified ()));
 			size = conn.getContentLength ();
-			if (size < 0) /* Arbitrary but nothing wrong if wrong */
-				size = 100000000;
+			if (size >= 0)
+				meta.setProperty (K_LENGTH, Long.toString (partial.length () + size));
+			meta.remove (K_FILE);
+			writeMeta (new File (dir, key + META_SUFFIX), meta);
 			
-			is = conn.getInputStream ();
-			outdir = ctxt.getFilesDir ();
-			if (outdir == null)
-				throw new IOException ("Can't open output dir");
+			s = meta.getProperty (K_LENGTH);
+			if (!copy (conn.getInputStream (), partial, s != null ? Long.parseLong (s) : -1))
+				return null;
+		
+		} finally {
+			if (conn != null)
+				conn.disconnect ();
+		}
+		
+		s = meta.getProperty (K_LENGTH);
+		if (s != null && Long.parseLong (s) != partial.length ())
+			throw new IOException ("Incomplete download");
+		
+		if (!verify (partial)) {
+			partial.delete ();
+			new File (dir, key + META_SUFFIX).delete ();
 			
-			outf = new File (outdir, prefix + System.currentTimeMillis ());
-			os = new FileOutputStream (outf);
+			return null;
+		}
+		
+		outf = new File (outdir, prefix + System.currentTimeMillis ());
+		if (!partial.renameTo (outf))
+			throw new IOException ("Can't rename " + partial);
+		
+		meta.remove (K_LENGTH);
+		meta.setProperty (K_FILE, outf.getAbsolutePath ());
+		writeMeta (new File (dir, key + META_SUFFIX), meta);
+		outcome = Connection.Outcome.OK;
+		
+		return outf;
+	}
+	
+	/**
+	 * Opens the connection, adding the conditional headers.
+	 * @param url the URL
+	 * @param meta the descriptor
+	 * @param partial the partial file to resume, or <code>null</code> if we are
+	 * 	revalidating a completed download
+	 * @return the connection
+	 * @throws IOException if something goes wrong
+	 */
+	private HttpURLConnection connect (String url, Properties meta, File partial)
+		throws IOException
+	{
+		HttpURLConnection conn;
+		String validator;
+		
+		conn = (HttpURLConnection) new URL (url).openConnection ();
+		conn.setConnectTimeout (TIMEOUT);
+		conn.setReadTimeout (TIMEOUT);
+		/* Range offsets must refer to the bytes we store, not to a compressed stream */
+		conn.setRequestProperty ("Accept-Encoding", "identity");
+		
+		validator = meta.getProperty (K_ETAG);
+		if (validator == null && meta.getProperty (K_MODIFIED) != null)
+			validator = httpDate (Long.parseLong (meta.getProperty (K_MODIFIED)));
+		
+		if (partial == null) {
+			if (meta.getProperty (K_ETAG) != null)
+				conn.setRequestProperty ("If-None-Match", meta.getProperty (K_ETAG));
+			if (meta.getProperty (K_MODIFIED) != null)
+				conn.setIfModifiedSince (Long.parseLong (meta.getProperty (K_MODIFIED)));
+		} else if (partial.length () > 0 && validator != null) {
+			/* If-Range makes the server send the whole file if it has changed */
+			conn.setRequestProperty ("Range", "bytes=" + partial.length () + "-");
+			conn.setRequestProperty ("If-Range", validator);
+		}
+		
+		conn.connect ();
+		
+		return conn;
+	}
+	
+	/**
+	 * Appends the response body to the partial file.
+	 * @param is the input stream
+	 * @param partial the partial file
+	 * @param size the size of the complete file, or -1 if unknown
+	 * @return <code>true</code> if the whole stream was read, <code>false</code> if cancelled
+	 * @throws IOException if something goes wrong. The partial file is kept
+	 */
+	private boolean copy (InputStream is, File partial, long size)
+		throws IOException
+	{
+		OutputStream os;
+		long read, delta, next;
+		byte buf [];
+		int br;
+		
+		if (size <= 0) /* Arbitrary but nothing wrong if wrong */
+			size = 100000000;
+		
+		os = null;
+		try {
+			os = new FileOutputStream (partial, true);
+			
+			read = partial.length ();
 			
-			buf = new byte [8192];
-			read = 0;
+			buf = new byte [MIN_BUFFER];
 			delta = next = size / 10;
 			while (!cancelled) {
 				br = is.read (buf);
 				if (br < 0)
-					break;
+					return true;
 				os.write (buf, 0, br);
 				read += br;
+				bytes += br;
 				
 				if (read > next)
-					publishProgress (read * 100 / size);
+					publishProgress ((int) Math.min (read * 100 / size, 100));
 				
 				while (next < read)
 					next += delta;
-			} 
-			
-			ok = true;
+				
+				/* A full buffer means data is arriving faster than we drain it */
+				if (br == buf.length && buf.length < MAX_BUFFER)
+					buf = new byte [buf.length * 2];
+			}
 			
+			return false;
+		
+		} finally {
+			try {
+				is.close ();
+			} catch (IOException e) {
+				/* empty */
+			}
+			if (os != null)
+				os.close ();
+		}
+	}
+	
+	/**
+	 * Copies a local file. Unlike {@link #copy(InputStream, File, long)}, nothing
+	 * is accounted as transferred.
+	 * @param from the source file
+	 * @param to the destination file
+	 * @throws IOException if something goes wrong. The destination file is deleted
+	 */
+	private static void duplicate (File from, File to)
+		throws IOException
+	{
+		InputStream is;
+		OutputStream os;
+		byte buf [];
+		int rd;
+		
+		is = new FileInputStream (from);
+		os = null;
+		try {
+			os = new FileOutputStream (to);
+			buf = new byte [MAX_BUFFER];
+			while (true) {
+				rd = is.read (buf);
+				if (rd < 0)
+					break;
+				os.write (buf, 0, rd);
+			}
+			os.close ();
+			os = null;
+		} finally {
+			is.close ();
+			if (os != null) {
+				try {
+					os.close ();
+				} catch (IOException e) {
+					/* empty */
+				}
+				to.delete ();
+			}
+		}
+	}
+	
+	private boolean verify (File file)
+		throws IOException
+	{
+		MessageDigest md;
+		InputStream is;
+		byte buf [];
+		int rd;
+		
+		if (algorithm == null)
+			return true;
+		
+		try {
+			md = MessageDigest.getInstance (algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException (algorithm + " not available");
+		}
+		
+		is = new FileInputStream (file);
+		try {
+			buf = new byte [MAX_BUFFER];
+			while (true) {
+				rd = is.read (buf);
+				if (rd < 0)
+					break;
+				md.update (buf, 0, rd);
+			}
+		} finally {
+			is.close ();
+		}
+		
+		return checksum.equals (AssetCache.hex (md.digest ()));
+	}
+	
+	/**
+	 * Parses the first byte position of a <tt>Content-Range</tt> header,
+	 * e.g. <tt>bytes 1000-4999/5000</tt>.
+	 * @param range the header value
+	 * @return the position, or -1 if it can't be parsed
+	 */
+	private static long rangeStart (String range)
+	{
+		int i, j;
+		
+		if (range == null)
+			return -1;
+		
+		i = range.indexOf (' ');
+		j = range.indexOf ('-');
+		if (i < 0 || j < i)
+			return -1;
+		
+		try {
+			return Long.parseLong (range.substring (i + 1, j).trim ());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	private static String httpDate (long time)
+	{
+		SimpleDateFormat sdf;
+		
+		sdf = new SimpleDateFormat ("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		sdf.setTimeZone (TimeZone.getTimeZone ("GMT"));
+		
+		return sdf.format (new Date (time));
+	}
+	
+	/**
+	 * Reads a descriptor.
+	 * @param file the descriptor file, or <code>null</code> to create an empty one
+	 * @param url the URL
+	 * @return the descriptor. If the file does not exist, or it refers to
+	 * 	another URL, an empty one is returned
+	 */
+	private static Properties readMeta (File file, String url)
+	{
+		Properties ans;
+		InputStream is;
+		
+		ans = new Properties ();
+		if (url != null)
+			ans.setProperty (K_URL, url);
+		if (file == null || !file.exists ())
+			return ans;
+		
+		is = null;
+		try {
+			is = new FileInputStream (file);
+			ans.load (is);
 		} catch (IOException e) {
-			/* implicitly set ok = false */
+			/* empty */
 		} finally {
 			try {
 				if (is != null)
@@ -116,17 +527,88 @@ public class FileDownloadTask extends AsyncTask<String, Integer, File>{
 			} catch (IOException e) {
 				/* empty */
 			}
-			try {
-				if (os != null)
-					os.close ();
-			}  catch (IOException e) {
-				ok = false;
-			}
-			if (cancelled || !ok && outf != null)
-				outf.delete ();
-		}		
+		}
 		
-		return ok ? outf : null;
+		/* A descriptor that can't be parsed is as good as a missing one */
+		if ((url != null && !url.equals (ans.getProperty (K_URL))) ||
+			!isNumber (ans, K_MODIFIED) || !isNumber (ans, K_LENGTH)) {
+			ans = new Properties ();
+			ans.setProperty (K_URL, url);
+		}
+		
+		return ans;
+	}
+	
+	private static boolean isNumber (Properties meta, String key)
+	{
+		String s;
+		
+		s = meta.getProperty (key);
+		if (s == null)
+			return true;
+		
+		try {
+			Long.parseLong (s);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Writes a descriptor. The file is replaced atomically, so a crash
+	 * never leaves a truncated descriptor behind.
+	 * @param file the descriptor file
+	 * @param meta the descriptor
+	 * @throws IOException if something goes wrong
+	 */
+	private static void writeMeta (File file, Properties meta)
+		throws IOException
+	{
+		OutputStream os;
+		File tmp;
+		
+		tmp = File.createTempFile ("meta", ".tmp", file.getParentFile ());
+		os = new FileOutputStream (tmp);
+		try {
+			meta.store (os, null);
+		} finally {
+			os.close ();
+		}
+		
+		if (!tmp.renameTo (file)) {
+			tmp.delete ();
+			throw new IOException ("Can't rename " + tmp);
+		}
+	}
+	
+	/**
+	 * Deletes the partial files and descriptors that have not been touched 
+	 * for longer than {@link #EXPIRY}.
+	 * @param ctxt the context
+	 */
+	public static void cleanup (Context ctxt)
+	{
+		File outdir;
+		
+		outdir = ctxt.getFilesDir ();
+		if (outdir != null)
+			cleanup (new File (outdir, DOWNLOADS_DIR));
+	}
+	
+	private static void cleanup (File dir)
+	{
+		File files [];
+		long now;
+		
+		files = dir.listFiles ();
+		if (files == null)
+			return;
+		
+		now = System.currentTimeMillis ();
+		for (File f : files)
+			if (now - f.lastModified () > EXPIRY)
+				f.delete ();
 	}
 	
 	@Override
@@ -139,7 +621,9 @@ public class FileDownloadTask extends AsyncTask<String, Integer, File>{
 	@Override
 	public void onPostExecute (File file)
 	{
-		if (!cancelled)
+		if (!cancelled) {
+			listener.stats (outcome, bytes, elapsed, resumed);
 			listener.done (file);
+		}
 	}
 }
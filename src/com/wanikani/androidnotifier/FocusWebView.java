@@ -18,7 +18,9 @@ package com.wanikani.androidnotifier;
  */
 
 import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import android.app.Activity;
@@ -71,6 +73,12 @@ public class FocusWebView extends WebView {
 	
 	/// List of registered listeners
 	private List<Listener> listeners;
+	
+	/// The javascript object holding the functions installed by {@link #installFunctions()}
+	private static final String FN_NAMESPACE = "window.wknFn";
+	
+	/// The functions to install on each page, indexed by name
+	private Map<String, String> functions;
 
 	/**
 	 * Constructor
@@ -83,6 +91,7 @@ public class FocusWebView extends WebView {
 
 		imm = (InputMethodManager) ctxt.getSystemService (Context.INPUT_METHOD_SERVICE);
 		listeners = new Vector<Listener> ();
+		functions = new LinkedHashMap<String, String> ();
 		
 		try {
 			onPause_m = getClass ().getMethod ("onPause");
@@ -222,4 +231,52 @@ public class FocusWebView extends WebView {
 			((Activity) getContext ()).runOnUiThread (new JSExecutor (sb.toString ()));
 	}
 	
+	/**
+	 * Registers a javascript function. Large scripts that are run many times
+	 * on the same page (e.g. each time an answer is submitted) should be registered
+	 * once, installed on the page by {@link #installFunctions()}, and then invoked through
+	 * {@link #call(String, String)}. This way each invocation sends only a few bytes
+	 * to the web view.
+	 * @param name the function name
+	 * @param params the comma-separated list of parameter names
+	 * @param body the function body
+	 */
+	public void define (String name, String params, String body)
+	{
+		functions.put (name, "function (" + params + ") {" + body + "}");
+	}
+	
+	/**
+	 * Installs all the registered functions on the current page, as a single bundle.
+	 * Must be called each time a new page is loaded, before any {@link #call(String, String)}.
+	 */
+	public void installFunctions ()
+	{
+		StringBuffer sb;
+		String sep;
+		
+		sb = jsStart ();
+		sb.append (FN_NAMESPACE).append (" = {");
+		sep = "";
+		for (Map.Entry<String, String> e : functions.entrySet ()) {
+			sb.append (sep).append (e.getKey ()).append (": ").append (e.getValue ());
+			sep = ",";
+		}
+		sb.append ("};");
+		
+		jsEnd (sb);
+	}
+	
+	/**
+	 * Returns the code that invokes a function installed by {@link #installFunctions()}.
+	 * The result is meant to be passed to {@link #js(String)}.
+	 * @param name the function name
+	 * @param args the javascript arguments, comma separated
+	 * @return the code
+	 */
+	public static String call (String name, String args)
+	{
+		return FN_NAMESPACE + "." + name + " (" + args + ");";
+	}
+	
 }
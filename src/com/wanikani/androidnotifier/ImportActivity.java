@@ -14,6 +14,7 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.wanikani.androidnotifier.db.BinaryFormat;
 import com.wanikani.androidnotifier.db.CSVFormat;
 import com.wanikani.androidnotifier.db.Format;
 
@@ -131,7 +132,10 @@ public class ImportActivity extends Activity {
 	{
 		Format fmt;
 		
-		fmt = CSVFormat.newInstance (this);
+		if (BinaryFormat.accepts (file))
+			fmt = BinaryFormat.newInstance (this);
+		else
+			fmt = CSVFormat.newInstance (this);
 		try {
 			done (fmt.importFile (file));
 		} catch (Exception e) {
@@ -529,8 +529,9 @@ public class ItemsFragment extends Fragment implements Tab, Filter.Callback {
 			
 			icl.setURL (item.getURL (tls));
 
+			/* Stick to the current font, unless it can't render this glyph */
 			if (jtf != null)
-				glyphText.setTypeface (jtf);						
+				glyphText.setTypeface (fbox.getFont (item.character));						
 		}
 	}
 	
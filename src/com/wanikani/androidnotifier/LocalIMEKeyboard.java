@@ -12,7 +12,8 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Typeface;
-import android.os.Handler;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.preference.PreferenceManager;
 import android.text.Editable;
 import android.text.InputType;
@@ -78,28 +79,25 @@ public class LocalIMEKeyboard implements Keyboard {
 		@Override
 		public void onScroll (int dx, int dy)
 		{
-			Handler handler;
-			
 			if (!bpos.visible)
 				return;
 			
 			scroll (dx, dy);
-			handler = new Handler ();
-			handler.postDelayed (new UpdatePositionTask (), 707);
+			wv.removeCallbacks (upt);
+			wv.postDelayed (upt, 707);
 		}
 	}
 	
+	/**
+	 * Asks the page for the position of the answer box, once scrolling is over.
+	 * There is only one instance, which is rescheduled on each scroll event. 
+	 */
 	private class UpdatePositionTask implements Runnable {
 		
-		public UpdatePositionTask ()
-		{
-			lpt = this;
-		}
-		
 		@Override
 		public void run ()
 		{
-			if (lpt == this && bpos.visible)
+			if (bpos.visible)
 				wv.js (JS_UPDATE_POSITION);			
 		}
 		
@@ -114,6 +112,15 @@ public class LocalIMEKeyboard implements Keyboard {
 		
 		/// Set if we need to perform kana translation
 	    boolean translate;
+	    
+	    /// Where the last change begins
+	    int cstart;
+	    
+	    /// Number of chars inserted by the last change. If negative, the whole text must be checked
+	    int ccount;
+	    
+	    /// Set while we are removing a banned char, so the remaining range is not overwritten
+	    boolean filtering;
 
 	    /// The list of chars are not allowed when entering a meaning
 		private static final String M_BANNED_CHARS = ",/;[]\\`\"=+";
@@ -121,14 +128,14 @@ public class LocalIMEKeyboard implements Keyboard {
 	    /// The list of chars are not allowed when entering a reading
 		private static final String R_BANNED_CHARS = M_BANNED_CHARS + " ";
 		
-		private int findFirstBannedChar (String s, boolean kana)
+		private int findFirstBannedChar (CharSequence s, int start, int end, boolean kana)
 		{
 			String chars;
 			int i;
 			
 			chars = kana ? R_BANNED_CHARS : M_BANNED_CHARS;
 			
-			for (i = 0; i < s.length (); i++)
+			for (i = start; i < end; i++)
 				if (chars.indexOf (s.charAt (i)) >= 0)
 					return i;
 				
@@ -141,16 +148,29 @@ public class LocalIMEKeyboard implements Keyboard {
 	     * In that case, the new text is sent the IME and, if some changes need to be performed,
 	     * they are applied to the text view. After that, android will call this method again,
 	     * but that's safe because the IME won't ask for a replacement any more.
+	     * Only the inserted chars are checked, and the IME converts them incrementally,
+	     * so the text is never copied.
 	     */
 	    @Override
 	    public void afterTextChanged (Editable et)
 	    {
 	    	JapaneseIME.Replacement repl;
-	    	int pos, i;
+	    	int pos, i, end;
 	    	
-	    	i = findFirstBannedChar (et.toString (), translate);
+	    	if (ccount < 0) {
+	    		cstart = 0;
+	    		end = et.length ();
+	    	} else
+	    		end = Math.min (cstart + ccount, et.length ());
+	    	i = findFirstBannedChar (et, cstart, end, translate);
+	    	ccount = 0;
 	    	if (i >= 0) {
+	    		/* The nested call must go on with the rest of the range, which shifts left by one */
+	    		cstart = i;
+	    		ccount = end - i - 1;
+	    		filtering = true;
 	    		et.replace (i, i + 1, "");
+	    		filtering = false;
 	    		return;
 	    	}
 	    	
@@ -158,7 +178,7 @@ public class LocalIMEKeyboard implements Keyboard {
 	    		return;
 	    	
 	    	pos = ew.getSelectionStart ();
-	    	repl = ime.replace (et.toString (), pos);
+	    	repl = ime.next (et, pos);
 	    	if (repl != null)
 	    		et.replace (repl.start, repl.end, repl.text);
 	    }
@@ -172,7 +192,13 @@ public class LocalIMEKeyboard implements Keyboard {
 	    @Override
 	    public void onTextChanged (CharSequence cs, int start, int before, int count)
 	    {
-	    	/* empty */
+	    	if (filtering)
+	    		filtering = false;
+	    	else if (ccount >= 0) {
+	    		cstart = start;
+	    		ccount = count;
+	    	}
+	    	ime.edited (start, before, count);
 	    }
 	    
 	    /**
@@ -181,7 +207,10 @@ public class LocalIMEKeyboard implements Keyboard {
 	     */
 	    public void translate (boolean enable)
 	    {
-	    	translate = enable;	    	
+	    	translate = enable;
+	    	/* The banned chars change, and the IME state may be stale */
+	    	ccount = -1;
+	    	ime.reset ();
 	    }
 	    
 	    /**
@@ -231,11 +260,11 @@ public class LocalIMEKeyboard implements Keyboard {
         			ew.setText (s);
         	}
         	if (!editable)
-        		wv.js (JS_ENTER);
+        		wv.js (JS_CALL_ENTER);
         	else if (isWKIEnabled)
-        		wv.js (String.format (JS_INJECT_ANSWER, s) +  WaniKaniImprove.getCode ());
+        		wv.js (String.format (JS_CALL_INJECT_ANSWER, s) +  WaniKaniImprove.getCode ());
         	else
-        		wv.js (String.format (JS_INJECT_ANSWER, s));
+        		wv.js (String.format (JS_CALL_INJECT_ANSWER, s));
         	
 	    }
 	}
@@ -269,6 +298,34 @@ public class LocalIMEKeyboard implements Keyboard {
 		
 	}
 
+	/**
+	 * Chain runnable that queues audio files on the UI thread. 
+	 */
+	private class JSPrefetchAudio implements Runnable {
+		
+		/// The audio file names
+		String files [];
+		
+		/**
+		 * Constructor
+		 * @param files the audio file names
+		 */
+		public JSPrefetchAudio (String files [])
+		{
+			this.files = files;
+			
+			wav.runOnUiThread (this);
+		}
+		
+		/**
+		 * Delivers the files to the {@link AudioPrefetcher}
+		 */
+		public void run ()
+		{
+			prefetcher.prefetch (files);
+		}
+	}
+	
 	/**
 	 * Chain runnable that handles "setClass" events on the UI thread. 
 	 */
@@ -329,92 +386,177 @@ public class LocalIMEKeyboard implements Keyboard {
 		
 	}
 	
-	private class JSHideShow implements Runnable {
-		
-		boolean show;
-		
-		public JSHideShow (boolean show)
-		{
-			this.show = show;
-			
-			wav.runOnUiThread (this);
-		}
-		
-		public void run ()
-		{
-			if (show) {
-				divw.setVisibility (View.VISIBLE);
-				if (!hwkeyb) {
-					imm.showSoftInput (wv, InputMethodManager.SHOW_FORCED);
-					if (SettingsActivity.getPortrait (wav))
-						wav.setRequestedOrientation (ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
-				}					
-				ew.requestFocus ();
-				if (hwkeyb)
-					imm.hideSoftInputFromWindow (ew.getWindowToken (), 0);
-			} else {
-				if (!hwkeyb) {
-					if (SettingsActivity.getPortrait (wav))
-						wav.setRequestedOrientation (orientation);
-				}
-				divw.setVisibility (View.GONE);
-				imm.hideSoftInputFromWindow (ew.getWindowToken (), 0);
-			}
-			
-			showQuestionPatch (bpos.qvisible && show);
-		}
-		
-	}
-	
-	private class JSListenerShow implements Runnable {
+	/**
+	 * Delivers the layout events coming from the JS bridge to the UI thread.
+	 * Events are coalesced: while a delivery is pending, a new event replaces the pending
+	 * one of the same kind (the one with the highest sequence number wins), and older events
+	 * are dropped. This way, during scrolls and animations, the UI thread performs at most
+	 * one layout pass per frame. There is only one instance.
+	 */
+	private class JSLayoutUpdates implements Runnable {
 		
-		int sequence;
+		/// Set if the task has been posted, and has not run yet
+		boolean posted;
 		
-		Rect frect, trect;
+		/// Sequence number of the pending position update, or -1 if there is none
+		int psequence;
 		
-		public JSListenerShow (int sequence, Rect frect, Rect trect)
-		{
-			this.sequence = sequence;
-			this.frect = frect;
-			this.trect = trect;
-			
-			wav.runOnUiThread (this);
-		}
+		/// Pending form rect
+		Rect frect;
 		
-		public void run ()
-		{
-			if (updateSequence (sequence))
-				replace (frect, trect);
-		}
-	}
-	
-	private class JSListenerShowQuestion implements Runnable {
+		/// Pending textbox rect
+		Rect trect;
 		
-		int sequence;
+		/// Sequence number of the pending question update, or -1 if there is none
+		int qsequence;
 		
+		/// Pending question item type
 		Item.Type type;
 		
+		/// Pending question item name
 		String name;
 		
+		/// Pending question rect
 		Rect rect;
 		
+		/// Pending question font size
 		int size;
 		
-		public JSListenerShowQuestion (int sequence, Item.Type type, String name, Rect rect, int size)
+		/// Pending visibility change, or <code>null</code> if there is none
+		Boolean show;
+		
+		public JSLayoutUpdates ()
 		{
-			this.sequence = sequence;
+			psequence = qsequence = -1;
+		}
+		
+		/**
+		 * Called when the HTML textbox is moved. May be called from any thread.
+		 * @param sequence the sequence number
+		 * @param frect the form rect
+		 * @param trect the textbox rect
+		 */
+		public synchronized void postPosition (int sequence, Rect frect, Rect trect)
+		{
+			if (!coalesce (psequence, sequence))
+				return;
+			
+			psequence = sequence;
+			this.frect = frect;
+			this.trect = trect;
+			post ();
+		}
+		
+		/**
+		 * Called when the question must be overridden. May be called from any thread.
+		 * @param sequence the sequence number
+		 * @param type the item type
+		 * @param name the item name
+		 * @param rect the question rect
+		 * @param size the font size
+		 */
+		public synchronized void postQuestion (int sequence, Item.Type type, String name, Rect rect, int size)
+		{
+			if (!coalesce (qsequence, sequence))
+				return;
+			
+			qsequence = sequence;
 			this.type = type;
 			this.name = name;
 			this.rect = rect;
 			this.size = size;
+			post ();
+		}
+		
+		/**
+		 * Called when the text box must be shown or hidden. May be called from any thread.
+		 * @param show set if it must be shown
+		 */
+		public synchronized void postHideShow (boolean show)
+		{
+			if (this.show != null)
+				MeterSpec.countEvent (wav, MeterSpec.Event.BRIDGE_COALESCED);
+			this.show = show;
+			post ();
+		}
+		
+		/**
+		 * Checks whether a new event should replace the pending one, and updates the counters.
+		 * @param pending the sequence number of the pending event, or -1
+		 * @param sequence the sequence number of the new event
+		 * @return <code>true</code> if the new event should be kept
+		 */
+		private boolean coalesce (int pending, int sequence)
+		{
+			if (pending < 0)
+				return true;
 			
-			wav.runOnUiThread (this);
+			if (sequence <= pending) {
+				MeterSpec.countEvent (wav, MeterSpec.Event.BRIDGE_DROPPED);
+				return false;
+			}
+			
+			MeterSpec.countEvent (wav, MeterSpec.Event.BRIDGE_COALESCED);
+			
+			return true;
 		}
 		
+		private void post ()
+		{
+			if (!posted) {
+				posted = true;
+				wv.postDelayed (this, FRAME_DELAY);
+			}
+		}
+		
+		/**
+		 * Delivers the pending events, in sequence order.
+		 */
 		public void run ()
 		{
-			if (updateSequence (sequence))
+			Rect frect, trect, rect;
+			int psequence, qsequence, size;
+			Item.Type type;
+			String name;
+			Boolean show;
+			
+			synchronized (this) {
+				psequence = this.psequence;
+				frect = this.frect;
+				trect = this.trect;
+				qsequence = this.qsequence;
+				type = this.type;
+				name = this.name;
+				rect = this.rect;
+				size = this.size;
+				show = this.show;
+				
+				this.psequence = this.qsequence = -1;
+				this.frect = this.trect = this.rect = null;
+				this.name = null;
+				this.show = null;
+				posted = false;
+			}
+			
+			if (show != null)
+				hideShow (show);
+			
+			if (qsequence >= 0 && qsequence < psequence && deliver (qsequence))
 				showQuestion (type, name, rect, size);
+			if (psequence >= 0 && deliver (psequence))
+				replace (frect, trect);
+			if (qsequence > psequence && deliver (qsequence))
+				showQuestion (type, name, rect, size);
+		}
+		
+		private boolean deliver (int sequence)
+		{
+			if (updateSequence (sequence))
+				return true;
+			
+			MeterSpec.countEvent (wav, MeterSpec.Event.BRIDGE_DROPPED);
+			
+			return false;
 		}
 	}
 
@@ -515,8 +657,8 @@ public class LocalIMEKeyboard implements Keyboard {
 			ttop = (int) TypedValue.applyDimension (TypedValue.COMPLEX_UNIT_DIP, ttop, dm);
 			tbottom = (int) TypedValue.applyDimension (TypedValue.COMPLEX_UNIT_DIP, tbottom, dm);
 
-			new JSListenerShow (sequence, new Rect (fleft, ftop, fright, fbottom),
-								new Rect (tleft, ttop, tright, tbottom));
+			layout.postPosition (sequence, new Rect (fleft, ftop, fright, fbottom),
+								 new Rect (tleft, ttop, tright, tbottom));
 		}
 
 		/**
@@ -529,6 +671,18 @@ public class LocalIMEKeyboard implements Keyboard {
 			imel.translate (qtype.equals ("reading"));			
 			new JSListenerSetClass (level);			
 		}
+		
+		/**
+		 * Called when the question changes, with the audio files of the items
+		 * in the active queue.
+		 * @param files comma-separated list of audio file names
+		 */
+		@JavascriptInterface
+		public void prefetchAudio (String files)
+		{
+			if (prefetcher != null && files != null)
+				new JSPrefetchAudio (files.split (","));
+		}
 
 		@JavascriptInterface
 		public void overrideQuestion (int sequence, String radical, String kanji, String vocab, 
@@ -566,7 +720,7 @@ public class LocalIMEKeyboard implements Keyboard {
 				xsize = 0;
 			}
 			
-			new JSListenerShowQuestion (sequence, type, name, new Rect (left, top, right, bottom), xsize);
+			layout.postQuestion (sequence, type, name, new Rect (left, top, right, bottom), xsize);
 		}
 		
 		/**
@@ -611,7 +765,7 @@ public class LocalIMEKeyboard implements Keyboard {
 		public void showKeyboard ()
 		{
 			bpos.visible = true;
-			new JSHideShow (bpos.shallShow ());
+			layout.postHideShow (bpos.shallShow ());
 		}
 
 		/**
@@ -621,7 +775,7 @@ public class LocalIMEKeyboard implements Keyboard {
 		public void hideKeyboard ()
 		{
 			bpos.visible = false;
-			new JSHideShow (bpos.shallShow ());
+			layout.postHideShow (bpos.shallShow ());
 		}
 		
 		/**
@@ -633,7 +787,7 @@ public class LocalIMEKeyboard implements Keyboard {
 		public void timeout (boolean enabled)
 		{
 			bpos.timeout = enabled;
-			new JSHideShow (bpos.shallShow ());
+			layout.postHideShow (bpos.shallShow ());
 		}
 
 		
@@ -706,6 +860,17 @@ public class LocalIMEKeyboard implements Keyboard {
 			"   }" +
 			"   item = $.jStorage.get (\"currentItem\");" +
 			"   wknJSListener.newQuestion (qtype, item.srs);" +
+			"   window.wknPrefetchAudio ();" +
+			"};" +
+			"window.wknPrefetchAudio = function () {" +
+			"   var queue, files, i;" +
+			"   queue = $.jStorage.get (\"activeQueue\");" +
+			"   files = [];" +
+			"   for (i = 0; queue && i < queue.length; i++)" +
+			"       if (typeof queue [i].aud == \"string\")" +
+			"           files.push (queue [i].aud);" +
+			"   if (files.length > 0)" +
+			"       wknJSListener.prefetchAudio (files.join (\",\"));" +
 			"};" +
 			"$.jStorage.listenKeyChange (\"currentItem\", window.wknNewQuestion);" +
 			"var oldAddClass = jQuery.fn.addClass;" +
@@ -823,11 +988,24 @@ public class LocalIMEKeyboard implements Keyboard {
 	
 	/**
 	 * Injects an answer into the HTML text box and clickes the "next" button.
+	 * This is the body of a function taking the answer as its only parameter. 
 	 */
 	private static final String JS_INJECT_ANSWER = 
-			"$(\"#user-response\").val (\"%s\");" +
+			"$(\"#user-response\").val (answer);" +
 			JS_ENTER;
 	
+	/// Name of the function that runs {@link #JS_ENTER}
+	private static final String FN_ENTER = "enter";
+	
+	/// Name of the function that runs {@link #JS_INJECT_ANSWER}
+	private static final String FN_INJECT_ANSWER = "injectAnswer";
+	
+	private static final String JS_CALL_ENTER =
+			FocusWebView.call (FN_ENTER, "");
+	
+	private static final String JS_CALL_INJECT_ANSWER =
+			FocusWebView.call (FN_INJECT_ANSWER, "\"%s\"");
+	
 	private static final String JS_OVERRIDE =
 			"window.wknOverrideQuestion ();";
 	
@@ -903,6 +1081,9 @@ public class LocalIMEKeyboard implements Keyboard {
     
     WaniKaniImprove wki;
     
+    /// The audio prefetcher, or <code>null</code> if the assets cache is not available
+    AudioPrefetcher prefetcher;
+    
     boolean isWKIEnabled;
     
     private static final String PREFIX = LocalIMEKeyboard.class + ".";
@@ -928,8 +1109,14 @@ public class LocalIMEKeyboard implements Keyboard {
     /// Last Sequence number received from JS
     int lastSequence;
     
-    /// Last scheduled position task
-    UpdatePositionTask lpt;
+    /// The position update task, run when scrolling is over
+    UpdatePositionTask upt;
+    
+    /// Delivers the layout events coming from the JS bridge
+    JSLayoutUpdates layout;
+    
+    /// Time between two layout passes caused by JS bridge events (about one frame)
+    private static final long FRAME_DELAY = 16;
     
     /// Use hw keyboard
     boolean hwkeyb;
@@ -959,6 +1146,16 @@ public class LocalIMEKeyboard implements Keyboard {
 		dm = wav.getResources ().getDisplayMetrics ();
 		
 		ime = new JapaneseIME ();
+		/* The romaji table is built once per process: better here than on the first keystroke */
+		new AsyncTask<Void, Void, Void> () {
+			@Override
+			protected Void doInBackground (Void... v)
+			{
+				JapaneseIME.warmUp ();
+				
+				return null;
+			}
+		}.execute ();
 		
 		ew = (EditText) wav.findViewById (R.id.ime);
 		divw = wav.findViewById (R.id.ime_div);
@@ -979,8 +1176,15 @@ public class LocalIMEKeyboard implements Keyboard {
 		
 		jsl = new JSListener ();
 		wv.addJavascriptInterface (jsl, "wknJSListener");
+		wv.define (FN_ENTER, "", JS_ENTER);
+		wv.define (FN_INJECT_ANSWER, "answer", JS_INJECT_ANSWER);
 		
 		wki = new WaniKaniImprove (wav, wv);
+		/* Prefetched files are served by WebReviewActivity through shouldInterceptRequest */
+		if (Build.VERSION.SDK_INT >= 11 && SettingsActivity.getAssetCache (wav))
+			prefetcher = new AudioPrefetcher (wav);
+		upt = new UpdatePositionTask ();
+		layout = new JSLayoutUpdates ();
 		wv.registerListener (new WebViewListener ());
 		
 		res = wav.getResources ();
@@ -1034,9 +1238,13 @@ public class LocalIMEKeyboard implements Keyboard {
 	public void show (boolean hasEnter)
 	{
 		fbox = FontDatabase.getFontBox (wav);
+		/* Typefaces are cached per process, and this is not the main one */
+		if (!fbox.isTrivial ())
+			FontDatabase.preload (wav);
 		hwkeyb = SettingsActivity.getHWKeyboard (wav);
 		
 		lastSequence = -1;
+		wv.installFunctions ();
 		wv.js (JS_INIT_TRIGGERS);
 
 		orientation = wav.getRequestedOrientation ();
@@ -1077,6 +1285,8 @@ public class LocalIMEKeyboard implements Keyboard {
 		reset ();
 		bpos.visible = false;
 		wv.js (JS_STOP_TRIGGERS);
+		if (prefetcher != null)
+			prefetcher.clear ();
 		if (isWKIEnabled)
 			wki.uninitPage ();
 		if (SettingsActivity.getPortrait (wav))
@@ -1114,6 +1324,34 @@ public class LocalIMEKeyboard implements Keyboard {
 		wv.js (String.format (JS_SHOW_QUESTION, enable ? "hidden" : "visible"));
 	}
 
+	/**
+	 * Shows or hides the text box. Must be called on the UI thread.
+	 * @param show set if it must be shown
+	 */
+	private void hideShow (boolean show)
+	{
+		if (show) {
+			divw.setVisibility (View.VISIBLE);
+			if (!hwkeyb) {
+				imm.showSoftInput (wv, InputMethodManager.SHOW_FORCED);
+				if (SettingsActivity.getPortrait (wav))
+					wav.setRequestedOrientation (ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
+			}					
+			ew.requestFocus ();
+			if (hwkeyb)
+				imm.hideSoftInputFromWindow (ew.getWindowToken (), 0);
+		} else {
+			if (!hwkeyb) {
+				if (SettingsActivity.getPortrait (wav))
+					wav.setRequestedOrientation (orientation);
+			}
+			divw.setVisibility (View.GONE);
+			imm.hideSoftInputFromWindow (ew.getWindowToken (), 0);
+		}
+		
+		showQuestionPatch (bpos.qvisible && show);
+	}
+	
 	/**
 	 * Called when the HTML textbox is moved. It moves the edittext as well
 	 * @param frect the form rect 
@@ -1124,8 +1362,10 @@ public class LocalIMEKeyboard implements Keyboard {
 	{
 		RelativeLayout.LayoutParams rparams;
 		LinearLayout.LayoutParams params;
+		boolean changed;
 
-		if (bpos.update (frect, trect)) {
+		changed = bpos.update (frect, trect);
+		if (changed) {
 					
 			rparams = (RelativeLayout.LayoutParams) divw.getLayoutParams ();
 			rparams.topMargin = frect.top;
@@ -1149,8 +1389,10 @@ public class LocalIMEKeyboard implements Keyboard {
 			next.setLayoutParams (params);		
 		}
 			
+		/* The page may have stolen the focus even if the box did not move */
 		if (bpos.shallShow ()) {
-			divw.setVisibility (View.VISIBLE);		
+			if (divw.getVisibility () != View.VISIBLE)
+				divw.setVisibility (View.VISIBLE);		
 			ew.requestFocus ();
 			if (hwkeyb)
 				imm.hideSoftInputFromWindow (ew.getWindowToken (), 0);
@@ -1185,7 +1427,7 @@ public class LocalIMEKeyboard implements Keyboard {
 			//qvw.setBackgroundColor (cmap.get (type));
 			qvw.setTextColor (Color.WHITE);
 			qvw.setText (name);
-			jtf = fbox != null ? fbox.nextFont () : null;
+			jtf = fbox != null ? fbox.nextFont (name) : null;
 			qvw.setTypeface (jtf);			
 			adjustWidth (qvw, params, name);
 			showQuestionPatch (jtf != null);
@@ -34,6 +34,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.TextView;
 
+import com.wanikani.androidnotifier.db.FontDatabase;
 import com.wanikani.androidnotifier.db.ItemsDatabase;
 import com.wanikani.androidnotifier.notification.NotificationService;
 import com.wanikani.wklib.AuthenticationException;
@@ -606,6 +607,9 @@ public class MainActivity extends FragmentActivity implements Runnable {
 	    /* Must be placed first, because fragments need this early */
 	    conn = SettingsActivity.newConnection (this);
 		conn.cache = new ItemsDatabase (this).getCache ();
+		
+		/* Load fonts in background, so they are ready when the items tab is shown */
+		FontDatabase.preload (this);
 
 	    if (dsf == null)
 	    	dsf = new DashboardStatsFragment ();
@@ -819,6 +823,7 @@ public class MainActivity extends FragmentActivity implements Runnable {
 		super.onPause ();
 				
 		visible = false;
+		MeterSpec.flush (this);
 	}
 
 	/**
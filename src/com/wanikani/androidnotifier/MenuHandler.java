@@ -7,8 +7,6 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.view.MenuItem;
 
-import com.wanikani.androidnotifier.db.CSVFormat;
-
 /* 
  *  Copyright (c) 2013 Alberto Cuda
  *
@@ -81,7 +79,7 @@ public class MenuHandler {
 		 */
 		public void export ()
 		{
-			DataExporter.INSTANCE.export (ctxt, CSVFormat.newInstance (ctxt));
+			DataExporter.INSTANCE.export (ctxt, SettingsActivity.getExportFormat (ctxt));
 		}
 		
 		/**
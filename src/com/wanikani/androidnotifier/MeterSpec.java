@@ -1,17 +1,31 @@
 package com.wanikani.androidnotifier;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 
+import com.wanikani.androidnotifier.db.CacheStats;
 import com.wanikani.wklib.Connection;
 import com.wanikani.wklib.Connection.Meter;
+import com.wanikani.wklib.Item;
 
 /* 
  *  Copyright (c) 2013 Alberto Cuda
@@ -30,7 +44,7 @@ import com.wanikani.wklib.Connection.Meter;
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-public class MeterSpec implements Connection.Meter {
+public class MeterSpec implements Connection.EndpointMeter, Connection.CacheMeter {
 
 	public enum T {
 		
@@ -50,6 +64,10 @@ public class MeterSpec implements Connection.Meter {
 		
 		MORE_STATS,		
 		
+		AUDIO_PREFETCH,
+		
+		FONT_DOWNLOAD,
+		
 		OTHER_STATS_TOTAL {
 			public T [] getComponents ()
 			{
@@ -69,7 +87,9 @@ public class MeterSpec implements Connection.Meter {
 					ITEMS,
 					RECONSTRUCT_DIALOG,
 					OTHER_STATS,
-					MORE_STATS
+					MORE_STATS,
+					AUDIO_PREFETCH,
+					FONT_DOWNLOAD
 				};
 			}
 		},
@@ -147,6 +167,25 @@ public class MeterSpec implements Connection.Meter {
 		}
 	}
 	
+	/**
+	 * Things that are counted, rather than metered in bytes.
+	 */
+	public enum Event {
+		
+		/** The notification service is woken up by an alarm */
+		WAKEUP,
+		
+		/** A notification update is skipped, because nothing visible changed */
+		NOTIFICATION_SKIPPED,
+		
+		/** A review page layout event replaces a pending one, before reaching the UI thread */
+		BRIDGE_COALESCED,
+		
+		/** A review page layout event is dropped, because a newer one has already been delivered */
+		BRIDGE_DROPPED
+		
+	}
+	
 	public static class Counter {
 		
 		public AmountType at;
@@ -170,11 +209,160 @@ public class MeterSpec implements Connection.Meter {
 			return mobile + wifi + unknown;
 		}
 	}
+	
+	public static class EndpointCounter {
+		
+		/* Upper bounds of the latency histogram buckets, in milliseconds. 
+		 * The last bucket has no upper bound */
+		public static final int BUCKETS [] = { 250, 500, 1000, 2000, 5000 };
+		
+		public String resource;
+		
+		public int requests;
+		
+		public int notModified;
+		
+		public int errors;
+		
+		public long bytes;
+		
+		public long ttfb;
+		
+		public long latency;
+		
+		public int histogram [];
+		
+		EndpointCounter (String resource)
+		{
+			this.resource = resource;
+			
+			histogram = new int [BUCKETS.length + 1];
+		}
+		
+		EndpointCounter (EndpointCounter ec)
+		{
+			this (ec.resource);
+			
+			requests = ec.requests;
+			notModified = ec.notModified;
+			errors = ec.errors;
+			bytes = ec.bytes;
+			ttfb = ec.ttfb;
+			latency = ec.latency;
+			System.arraycopy (ec.histogram, 0, histogram, 0, histogram.length);
+		}
+		
+		static EndpointCounter decode (String resource, String s)
+		{
+			EndpointCounter ans;
+			StringTokenizer st;
+			int i;
+			
+			ans = new EndpointCounter (resource);
+			try {
+				st = new StringTokenizer (s, ",");
+				ans.requests = Integer.parseInt (st.nextToken ());
+				ans.notModified = Integer.parseInt (st.nextToken ());
+				ans.errors = Integer.parseInt (st.nextToken ());
+				ans.bytes = Long.parseLong (st.nextToken ());
+				ans.ttfb = Long.parseLong (st.nextToken ());
+				ans.latency = Long.parseLong (st.nextToken ());
+				for (i = 0; i < ans.histogram.length; i++)
+					ans.histogram [i] = Integer.parseInt (st.nextToken ());
+			} catch (RuntimeException e) {
+				/* Corrupted or from a different version: start from scratch */
+				ans = new EndpointCounter (resource);
+			}
+			
+			return ans;
+		}
+		
+		String encode ()
+		{
+			StringBuffer sb;
+			int i;
+			
+			sb = new StringBuffer ();
+			sb.append (requests).append (',').append (notModified).append (',');
+			sb.append (errors).append (',').append (bytes).append (',');
+			sb.append (ttfb).append (',').append (latency);
+			for (i = 0; i < histogram.length; i++)
+				sb.append (',').append (histogram [i]);
+			
+			return sb.toString ();
+		}
+		
+		void add (EndpointCounter ec)
+		{
+			int i;
+			
+			requests += ec.requests;
+			notModified += ec.notModified;
+			errors += ec.errors;
+			bytes += ec.bytes;
+			ttfb += ec.ttfb;
+			latency += ec.latency;
+			for (i = 0; i < histogram.length; i++)
+				histogram [i] += ec.histogram [i];
+		}
+		
+		void add (Connection.Outcome outcome, long ttfb, long latency, int size)
+		{
+			int i;
+			
+			requests++;
+			if (outcome == Connection.Outcome.ERROR) {
+				errors++;
+				return;
+			}
+			
+			if (outcome == Connection.Outcome.NOT_MODIFIED)
+				notModified++;
+			
+			this.bytes += size;
+			this.ttfb += ttfb;
+			this.latency += latency;
+			for (i = 0; i < BUCKETS.length && latency >= BUCKETS [i]; i++);
+			histogram [i]++;
+		}
+		
+		public int successful ()
+		{
+			return requests - errors;
+		}
+		
+		/**
+		 * Returns the histogram bucket that contains a given percentile of the latencies. 
+		 * @param p the percentile (a number between 0 and 1)
+		 * @return the bucket index, or <code>-1</code> if no data is available
+		 */
+		public int percentile (float p)
+		{
+			int i, n, count;
+			
+			n = successful ();
+			if (n == 0)
+				return -1;
+			
+			count = 0;
+			for (i = 0; i < histogram.length - 1; i++) {
+				count += histogram [i];
+				if (count >= p * n)
+					break;
+			}
+			
+			return i;
+		}
+	}
 		
 	private static final String PREFIX = MeterSpec.class.toString ();
 	
 	private static final String START_TIME = PREFIX + "START_TIME";
 	
+	private static final String EV_PREFIX = PREFIX + "ev.";
+	
+	private Context ctxt;
+	
 	private ConnectivityManager cmgr;
 	
 	private SharedPreferences prefs;
@@ -183,22 +371,55 @@ public class MeterSpec implements Connection.Meter {
 	
 	private int count;
 	
+	private int ctag;
+	
 	private static final String CTAG_UNKNOWN = "u."; 
 
 	private static final String CTAG_MOBILE = "m.";
 	
 	private static final String CTAG_WIFI = "w.";
 	
+	private static final String CTAGS [] = { CTAG_UNKNOWN, CTAG_MOBILE, CTAG_WIFI };
+	
+	private static final int CT_UNKNOWN = 0;
+	
+	private static final int CT_MOBILE = 1;
+	
+	private static final int CT_WIFI = 2;
+	
 	private static final String PREFERENCES_FILE = "meters.xml";
 	
+	/* How long synced amounts may stay in memory before being written */
+	private static final long FLUSH_DELAY = 30 * 1000;
+	
 	private static Object mutex = new Object ();
+	
+	/* Synced amounts not yet written to the preferences, indexed by slot () */
+	private static final AtomicLongArray pending = 
+			new AtomicLongArray (T.values ().length * CTAGS.length);
+	
+	/* Events not yet written to the preferences, indexed by ordinal */
+	private static final AtomicLongArray pendingEvents = 
+			new AtomicLongArray (Event.values ().length);
+	
+	private static final AtomicBoolean flushScheduled = new AtomicBoolean ();
+	
+	private static final Handler handler = new Handler (Looper.getMainLooper ());
+	
+	private static final String EP_PREFIX = PREFIX + "ep.";
+	
+	/* Per-resource counters not yet written to the preferences. Protected by the mutex.
+	 * Only the deltas are kept, since other processes update the same preferences */
+	private static Map<String, EndpointCounter> endpoints = new HashMap<String, EndpointCounter> ();
 
 	private MeterSpec (Context ctxt, T type)
 	{
 		this.type = type;
 		
+		this.ctxt = ctxt.getApplicationContext ();
 		prefs = prefs (ctxt);
 		cmgr = (ConnectivityManager) ctxt.getSystemService (Context.CONNECTIVITY_SERVICE);
+		ctag = -1;
 	}
 	
 	static SharedPreferences prefs (Context ctxt)
@@ -228,20 +449,219 @@ public class MeterSpec implements Connection.Meter {
 	
 	public void sync ()
 	{
+		/* Lock-free: flush () writes the accumulator to the prefs later on.
+		 * Connectivity is resolved once per instance, i.e. per metered operation */
+		if (count == 0)
+			return;
+		
+		if (ctag < 0)
+			ctag = connectivity ();
+		
+		pending.addAndGet (slot (type, ctag), count);
+		count = 0;
+		
+		scheduleFlush (ctxt);
+	}
+	
+	public void endpoint (String resource, Connection.Outcome outcome, long ttfb, long latency, int size)
+	{
+		EndpointCounter ec;
+		
+		synchronized (mutex) {
+			ec = endpoints.get (resource);
+			if (ec == null) {
+				ec = new EndpointCounter (resource);
+				endpoints.put (resource, ec);
+			}
+			ec.add (outcome, ttfb, latency, size);
+		}
+		
+		scheduleFlush (ctxt);
+	}
+	
+	public void cache (Item.Type type, int level, Connection.CacheOutcome outcome)
+	{
+		/* Not persisted: see CacheStats */
+		CacheStats.get ().cache (type, level, outcome);
+	}
+	
+	private static EndpointCounter loadEndpoint (SharedPreferences prefs, String resource)
+	{
+		String s;
+		
+		s = prefs.getString (EP_PREFIX + resource, null);
+		
+		return s != null ? EndpointCounter.decode (resource, s) : new EndpointCounter (resource);
+	}
+	
+	/**
+	 * Returns a snapshot of the per-resource counters, sorted by resource name.
+	 * @param ctxt the context
+	 * @return the counters
+	 */
+	public static List<EndpointCounter> getEndpoints (Context ctxt)
+	{
+		Map<String, EndpointCounter> map;
+		List<EndpointCounter> ans;
+		EndpointCounter ec;
+		String resource;
+		
+		map = new HashMap<String, EndpointCounter> ();
+		synchronized (mutex) {
+			/* Always read from the preferences, since other processes may have updated them */
+			for (Map.Entry<String, ?> e : prefs (ctxt).getAll ().entrySet ()) {
+				if (e.getKey ().startsWith (EP_PREFIX) && e.getValue () instanceof String) {
+					resource = e.getKey ().substring (EP_PREFIX.length ());
+					map.put (resource, EndpointCounter.decode (resource, (String) e.getValue ()));
+				}
+			}
+			for (EndpointCounter delta : endpoints.values ()) {
+				ec = map.get (delta.resource);
+				if (ec == null) {
+					ec = new EndpointCounter (delta.resource);
+					map.put (delta.resource, ec);
+				}
+				ec.add (delta);
+			}
+		}
+		ans = new ArrayList<EndpointCounter> (map.values ());
+		
+		Collections.sort (ans, new Comparator<EndpointCounter> () {
+			public int compare (EndpointCounter a, EndpointCounter b)
+			{
+				return a.resource.compareTo (b.resource);
+			}
+		});
+		
+		return ans;
+	}
+	
+	/**
+	 * Counts an event.
+	 * @param ctxt the context
+	 * @param ev the event
+	 */
+	public static void countEvent (Context ctxt, Event ev)
+	{
+		pendingEvents.incrementAndGet (ev.ordinal ());
+		
+		scheduleFlush (ctxt.getApplicationContext ());
+	}
+	
+	/**
+	 * Returns how many times an event happened since the last reset.
+	 * @param ctxt the context
+	 * @param ev the event
+	 * @return the number of events
+	 */
+	public static long getEvents (Context ctxt, Event ev)
+	{
+		SharedPreferences prefs;
+		
+		prefs = prefs (ctxt);
+		synchronized (mutex) {
+			return prefs.getLong (EV_PREFIX + ev.name (), 0) + pendingEvents.get (ev.ordinal ());
+		}
+	}
+	
+	/**
+	 * Returns the average number of events per day, since the last reset.
+	 * @param ctxt the context
+	 * @param ev the event
+	 * @return the number of events
+	 */
+	public static float getEventsPerDay (Context ctxt, Event ev)
+	{
+		long elapsed;
+		
+		elapsed = System.currentTimeMillis () - getLastReset (prefs (ctxt)).getTime ();
+		
+		return getEvents (ctxt, ev) * AmountType.AVG_DAY.getRatio (elapsed);
+	}
+	
+	private static void scheduleFlush (final Context ctxt)
+	{
+		if (!flushScheduled.compareAndSet (false, true))
+			return;
+		
+		handler.postDelayed (new Runnable () {
+			public void run ()
+			{
+				flush (ctxt);
+			}
+		}, FLUSH_DELAY);
+	}
+	
+	/**
+	 * Writes the in-memory accumulator to the preferences. Called on a timer, 
+	 * and when components that may be metering are paused or destroyed.
+	 * Both happen on the UI thread, so where possible the file is written asynchronously.
+	 * @param ctxt the context
+	 */
+	@TargetApi(9)
+	public static void flush (Context ctxt)
+	{
+		SharedPreferences prefs;
+		EndpointCounter ec;
 		String key;
 		Editor e;
+		long value;
+		int i, j;
 		
-		key = getKey (type, connectivity ());
+		flushScheduled.set (false);
+		prefs = prefs (ctxt);
 		
 		synchronized (mutex) {
-			e = prefs.edit ();
-			if (!prefs.contains (START_TIME))
-				e.putLong (START_TIME, System.currentTimeMillis ());
+			e = null;
+			for (T type : T.values ()) {
+				for (j = 0; j < CTAGS.length; j++) {
+					i = slot (type, j);
+					if (pending.get (i) == 0)
+						continue;
+					
+					if (e == null) {
+						e = prefs.edit ();
+						if (!prefs.contains (START_TIME))
+							e.putLong (START_TIME, System.currentTimeMillis ());
+					}
+					
+					value = pending.getAndSet (i, 0);
+					key = getKey (type, CTAGS [j]);
+					e.putLong (key, prefs.getLong (key, 0) + value);
+				}
+			}
+			for (Event ev : Event.values ()) {
+				if (pendingEvents.get (ev.ordinal ()) == 0)
+					continue;
+				
+				if (e == null)
+					e = prefs.edit ();
+				key = EV_PREFIX + ev.name ();
+				e.putLong (key, prefs.getLong (key, 0) + pendingEvents.getAndSet (ev.ordinal (), 0));
+			}
+			if (!endpoints.isEmpty ()) {
+				if (e == null)
+					e = prefs.edit ();
+				for (EndpointCounter delta : endpoints.values ()) {
+					ec = loadEndpoint (prefs, delta.resource);
+					ec.add (delta);
+					e.putString (EP_PREFIX + ec.resource, ec.encode ());
+				}
+				endpoints.clear ();
+			}
+			if (e == null)
+				return;
 			
-			e.putLong (key, prefs.getLong (key, 0) + count);
-			e.commit ();
+			if (Build.VERSION.SDK_INT >= 9)
+				e.apply ();
+			else
+				e.commit ();
 		}
-		count = 0;
+	}
+	
+	private static int slot (T type, int ctag)
+	{
+		return type.ordinal () * CTAGS.length + ctag;
 	}
 	
 	private static String getKey (T type, String connectivity)
@@ -249,20 +669,40 @@ public class MeterSpec implements Connection.Meter {
 		return PREFIX + type.name () + "." + connectivity;
 	}
 	
-	private String connectivity ()
+	private int connectivity ()
+	{
+		return connectivity (cmgr);
+	}
+	
+	private static int connectivity (ConnectivityManager cmgr)
 	{
 		NetworkInfo info;
 		
 		if (cmgr == null)
-			return CTAG_UNKNOWN;
+			return CT_UNKNOWN;
 		
 		info = cmgr.getActiveNetworkInfo ();
 		if (info == null)
-			return CTAG_UNKNOWN; 		
+			return CT_UNKNOWN; 		
 		else if (info.getType () == ConnectivityManager.TYPE_MOBILE)
-			return CTAG_MOBILE;
+			return CT_MOBILE;
 		else
-			return CTAG_WIFI;
+			return CT_WIFI;
+	}
+	
+	/**
+	 * Tells whether the active network is a mobile one, i.e. whether data
+	 * would be metered as mobile traffic.
+	 * @param ctxt the context
+	 * @return <code>true</code> if so
+	 */
+	public static boolean isMobile (Context ctxt)
+	{
+		ConnectivityManager cmgr;
+		
+		cmgr = (ConnectivityManager) ctxt.getSystemService (Context.CONNECTIVITY_SERVICE);
+		
+		return connectivity (cmgr) == CT_MOBILE;
 	}
 
 	private static void addValue (SharedPreferences prefs, T t, Counter counter)
@@ -275,9 +715,14 @@ public class MeterSpec implements Connection.Meter {
 			for (i = 0; i < components.length; i++)
 				addValue (prefs, components [i], counter);			
 		} else {
-			counter.mobile += prefs.getLong (getKey (t, CTAG_MOBILE), 0);
-			counter.wifi += prefs.getLong (getKey (t, CTAG_WIFI), 0);
-			counter.unknown += prefs.getLong (getKey (t, CTAG_UNKNOWN), 0);
+			/* Must be called while holding the mutex, so flush () can't 
+			 * move amounts from the accumulator to the prefs meanwhile */
+			counter.mobile += prefs.getLong (getKey (t, CTAG_MOBILE), 0) + 
+							  pending.get (slot (t, CT_MOBILE));
+			counter.wifi += prefs.getLong (getKey (t, CTAG_WIFI), 0) +
+							pending.get (slot (t, CT_WIFI));
+			counter.unknown += prefs.getLong (getKey (t, CTAG_UNKNOWN), 0) +
+							   pending.get (slot (t, CT_UNKNOWN));
 		}
 	}
 		
@@ -303,6 +748,7 @@ public class MeterSpec implements Connection.Meter {
 	public static void reset (Context ctxt)
 	{
 		Editor e;
+		int i;
 		
 		synchronized (mutex) {
 			e = prefs (ctxt).edit ();
@@ -312,8 +758,20 @@ public class MeterSpec implements Connection.Meter {
 				e.putLong (getKey (type, CTAG_WIFI), 0);
 				e.putLong (getKey (type, CTAG_UNKNOWN), 0);
 			}
+			for (i = 0; i < pending.length (); i++)
+				pending.set (i, 0);
+			for (Event ev : Event.values ()) {
+				e.putLong (EV_PREFIX + ev.name (), 0);
+				pendingEvents.set (ev.ordinal (), 0);
+			}
+			for (String key : prefs (ctxt).getAll ().keySet ())
+				if (key.startsWith (EP_PREFIX))
+					e.remove (key);
+			endpoints.clear ();
 			e.commit ();
 		}
+		
+		CacheStats.get ().reset ();
 	}	
 }
 
@@ -1,5 +1,9 @@
 package com.wanikani.androidnotifier;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -10,12 +14,20 @@ import java.util.Map;
 import android.app.Activity;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.Button;
 import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
+
+import com.wanikani.androidnotifier.db.CacheStats;
+import com.wanikani.androidnotifier.db.ItemsDatabase;
+import com.wanikani.wklib.Connection;
+import com.wanikani.wklib.Item;
 
 /* 
  *  Copyright (c) 2013 Alberto Cuda
@@ -47,6 +59,16 @@ public class MetersActivity extends Activity {
 		
 	}
 	
+	private class DumpListener implements View.OnClickListener {
+		
+		@Override
+		public void onClick (View view)
+		{
+			dumpCache ();
+		}
+		
+	}
+	
 	private class AmountChangeListener implements OnItemSelectedListener {
 		
 		@Override
@@ -62,17 +84,32 @@ public class MetersActivity extends Activity {
 		}
 	}
 	
+	/// The name of the file cache statistics are dumped to
+	private static final String CACHE_STATS_FILE = "cachestats.csv";
+	
 	/// The Date formatter
 	private DateFormat df;
 
 	private TextView lrw;
 	
+	private TextView wkw;
+	
+	private TextView nsw;
+	
+	private TextView brw;
+	
 	private Spinner avw;
 
 	private Button resetw;
 	
 	private Map<MeterSpec.T, MeterCountersView> cviews;
 	
+	private ViewGroup epw;
+	
+	private ViewGroup ctw;
+	
+	private TextView cdbw;
+	
 	public MetersActivity ()
 	{
 		df =  new SimpleDateFormat ("dd MMM yyyy, HH:mm", Locale.US);
@@ -88,6 +125,9 @@ public class MetersActivity extends Activity {
 		setContentView (R.layout.meters);
 		
 		lrw = (TextView) findViewById (R.id.me_last_reset);
+		wkw = (TextView) findViewById (R.id.me_wakeups);
+		nsw = (TextView) findViewById (R.id.me_notifications_skipped);
+		brw = (TextView) findViewById (R.id.me_bridge_events);
 		avw = (Spinner) findViewById (R.id.me_amount);
 		avw.setOnItemSelectedListener (new AmountChangeListener ());
 		
@@ -104,6 +144,14 @@ public class MetersActivity extends Activity {
 		addView (MeterSpec.T.ITEMS, R.id.me_items);
 		addView (MeterSpec.T.OTHER_STATS_TOTAL, R.id.me_other_stats);
 		addView (MeterSpec.T.RECONSTRUCT_DIALOG, R.id.me_reconstruct);		
+		addView (MeterSpec.T.AUDIO_PREFETCH, R.id.me_audio_prefetch);
+		addView (MeterSpec.T.FONT_DOWNLOAD, R.id.me_font_download);
+		
+		epw = (ViewGroup) findViewById (R.id.me_endpoints);
+		
+		ctw = (ViewGroup) findViewById (R.id.me_cache_types);
+		cdbw = (TextView) findViewById (R.id.me_cache_db);
+		findViewById (R.id.me_cache_dump).setOnClickListener (new DumpListener ());
 	}
 	
 	private void addView (MeterSpec.T type, int id)
@@ -154,6 +202,141 @@ public class MetersActivity extends Activity {
 		
 		for (Map.Entry<MeterSpec.T, MeterCountersView> e : cviews.entrySet ())
 			e.getValue ().setData (e.getKey ().getCounter (this, at));
+		
+		wkw.setText (getString (R.string.fmt_me_wakeups, 
+								 MeterSpec.getEventsPerDay (this, MeterSpec.Event.WAKEUP)));
+		nsw.setText (getString (R.string.fmt_me_notifications_skipped, 
+								 MeterSpec.getEvents (this, MeterSpec.Event.NOTIFICATION_SKIPPED)));
+		brw.setText (getString (R.string.fmt_me_bridge_events, 
+								 MeterSpec.getEvents (this, MeterSpec.Event.BRIDGE_COALESCED),
+								 MeterSpec.getEvents (this, MeterSpec.Event.BRIDGE_DROPPED)));
+		
+		refreshEndpoints ();
+		refreshCache ();
+	}
+	
+	/**
+	 * Fills the API endpoints table. Unlike the traffic counters, these
+	 * figures are not scaled by the selected amount type.
+	 */
+	private void refreshEndpoints ()
+	{
+		LayoutInflater inflater;
+		TextView resw, dataw;
+		StringBuffer sb;
+		View view;
+		int n, p90;
+		
+		inflater = getLayoutInflater ();
+		epw.removeAllViews ();
+		for (MeterSpec.EndpointCounter ec : MeterSpec.getEndpoints (this)) {
+			view = inflater.inflate (R.layout.meters_ep, epw, false);
+			resw = (TextView) view.findViewById (R.id.mep_resource);
+			dataw = (TextView) view.findViewById (R.id.mep_data);
+			
+			sb = new StringBuffer ();
+			sb.append (getString (R.string.fmt_me_endpoint, ec.requests, ec.notModified, ec.errors));
+			n = ec.successful ();
+			if (n > 0) {
+				sb.append ('\n');
+				sb.append (getString (R.string.fmt_me_endpoint_timing, 
+									  ec.latency / n, ec.ttfb / n, ec.bytes / n));
+				sb.append ('\n');
+				p90 = ec.percentile (0.9f);
+				if (p90 < MeterSpec.EndpointCounter.BUCKETS.length)
+					sb.append (getString (R.string.fmt_me_endpoint_p90, 
+										  MeterSpec.EndpointCounter.BUCKETS [p90]));
+				else
+					sb.append (getString (R.string.fmt_me_endpoint_p90_over,
+										  MeterSpec.EndpointCounter.BUCKETS [p90 - 1]));
+			}
+			
+			resw.setText (ec.resource);
+			dataw.setText (sb.toString ());
+			epw.addView (view);
+		}
+	}
+	
+	/**
+	 * Fills the items cache table. These figures are collected since
+	 * the process was started, and they are not scaled either.
+	 */
+	private void refreshCache ()
+	{
+		LayoutInflater inflater;
+		TextView resw, dataw;
+		CacheStats.Timing rd, wr;
+		CacheStats cs;
+		View view;
+		
+		cs = CacheStats.get ();
+		inflater = getLayoutInflater ();
+		ctw.removeAllViews ();
+		for (Item.Type type : Item.Type.values ()) {
+			view = inflater.inflate (R.layout.meters_ep, ctw, false);
+			resw = (TextView) view.findViewById (R.id.mep_resource);
+			dataw = (TextView) view.findViewById (R.id.mep_data);
+			
+			resw.setText (getTypeName (type));
+			dataw.setText (getString (R.string.fmt_me_cache_type,
+									  cs.getCount (type, Connection.CacheOutcome.HIT),
+									  cs.getCount (type, Connection.CacheOutcome.MISS),
+									  cs.getCount (type, Connection.CacheOutcome.STALE),
+									  cs.getCount (type, Connection.CacheOutcome.REVALIDATED)));
+			ctw.addView (view);
+		}
+		
+		rd = cs.getReads ();
+		wr = cs.getWrites ();
+		cdbw.setText (getString (R.string.fmt_me_cache_db, 
+								 rd.count, rd.average (), rd.max,
+								 wr.count, wr.average (), wr.max,
+								 ItemsDatabase.getSize (this) / 1024));
+	}
+	
+	private String getTypeName (Item.Type type)
+	{
+		switch (type) {
+		case RADICAL:
+			return getString (R.string.tag_radicals);
+			
+		case KANJI:
+			return getString (R.string.tag_kanji);
+			
+		case VOCABULARY:
+			return getString (R.string.tag_vocab);
+		}
+		
+		return type.name ();
+	}
+	
+	/**
+	 * Writes the cache statistics, including the breakdown by level, to a file
+	 * in the same directory where exported data goes.
+	 */
+	private void dumpCache ()
+	{
+		PrintWriter pw;
+		File file;
+		
+		file = new File (new File (DataExporter.getDefaultExportFile (this)).getParentFile (), 
+						 CACHE_STATS_FILE);
+		pw = null;
+		try {
+			file.getParentFile ().mkdirs ();
+			pw = new PrintWriter (new FileWriter (file));
+			CacheStats.get ().dump (pw, ItemsDatabase.getSize (this));
+			if (pw.checkError ())
+				throw new IOException ();
+			Toast.makeText (this, getString (R.string.fmt_me_cache_dumped, file.getAbsolutePath ()),
+							Toast.LENGTH_LONG).show ();
+		} catch (IOException e) {
+			Toast.makeText (this, getString (R.string.tag_me_cache_dump_error), 
+							Toast.LENGTH_LONG).show ();
+		} finally {
+			if (pw != null)
+				pw.close ();
+		}
 	}
 
 }
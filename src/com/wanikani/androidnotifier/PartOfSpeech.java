@@ -18,8 +18,28 @@ public class PartOfSpeech {
 		Pattern.compile (".*://www.wanikani.com/review/session.*"),
 		Pattern.compile (".*://www.wanikani.com/lesson/session.*")
 	};
+	
+	/// The script, loaded from the assets the first time it is needed
+	private static String script;
 
 	public static void enter (Context ctxt, FocusWebView wv, String url)
+	{
+		String s;
+		
+		if (!matches (url))
+			return;
+		
+		s = getScript (ctxt);
+		if (s != null)
+			wv.js (s);
+	}
+	
+	/**
+	 * Returns the script. It is read from the assets only once per process.
+	 * @param ctxt the context
+	 * @return the script, or <code>null</code> if it could not be read 
+	 */
+	private static synchronized String getScript (Context ctxt)
 	{
 		AssetManager mgr;
 		InputStream is;
@@ -28,15 +48,15 @@ public class PartOfSpeech {
 		char buf [];
 		StringBuffer sb;
 		
-		if (!matches (url))
-			return;
+		if (script != null)
+			return script;
 		
 		mgr = ctxt.getAssets ();
 		r = null;
 		try {
 			is = mgr.open (SCRIPT_FNAME);
 			r = new InputStreamReader (is);
-			sb = wv.jsStart ();
+			sb = new StringBuffer ();
 			buf = new char [1024];
 			while (true) {
 				rd = r.read (buf);
@@ -44,7 +64,7 @@ public class PartOfSpeech {
 					break;
 				sb.append (buf, 0, rd);
 			}
-			wv.jsEnd (sb);
+			script = sb.toString ();
 		} catch (Throwable t) {
 			/* empty */
 		} finally {
@@ -55,6 +75,8 @@ public class PartOfSpeech {
 				/* empty */
 			}
 		}
+		
+		return script;
 	}
 	
 	protected static boolean matches (String url)
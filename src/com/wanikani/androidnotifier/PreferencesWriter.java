@@ -0,0 +1,148 @@
+package com.wanikani.androidnotifier;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import android.annotation.TargetApi;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.os.Build;
+
+/*
+ *  Copyright (c) 2013 Alberto Cuda
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A wrapper of a preferences editor that collects several updates and writes them
+ * all at once. Values that are not actually changed are not written, and if
+ * nothing changes, the preferences file is not touched at all.
+ * On devices that support it, the file is written asynchronously: the new
+ * values are immediately visible to other readers in the same process, and
+ * the OS makes sure pending writes complete before a service or activity is stopped.
+ */
+public class PreferencesWriter {
+	
+	/// The preferences
+	private SharedPreferences prefs;
+	
+	/// The editor. Created when the first change is recorded
+	private Editor editor;
+	
+	/// The keys updated through the editor
+	private Set<String> touched;
+	
+	/**
+	 * Constructor
+	 * @param prefs the preferences to update
+	 */
+	public PreferencesWriter (SharedPreferences prefs)
+	{
+		this.prefs = prefs;
+		
+		touched = new HashSet<String> ();
+	}
+	
+	private Editor edit (String key)
+	{
+		if (editor == null)
+			editor = prefs.edit ();
+		touched.add (key);
+		
+		return editor;
+	}
+	
+	/**
+	 * Tells whether a key needs to be written. This happens if its stored value
+	 * differs from the new one, or if it has already been updated in this batch.
+	 * @param key the key
+	 * @param same <code>true</code> if the stored value equals the new one 
+	 * @return <code>true</code> if the key must be written
+	 */
+	private boolean changed (String key, boolean same)
+	{
+		return !same || !prefs.contains (key) || touched.contains (key);
+	}
+	
+	public PreferencesWriter putInt (String key, int value)
+	{
+		if (changed (key, prefs.getInt (key, 0) == value))
+			edit (key).putInt (key, value);
+		
+		return this;
+	}
+	
+	public PreferencesWriter putLong (String key, long value)
+	{
+		if (changed (key, prefs.getLong (key, 0) == value))
+			edit (key).putLong (key, value);
+		
+		return this;
+	}
+	
+	public PreferencesWriter putBoolean (String key, boolean value)
+	{
+		if (changed (key, prefs.getBoolean (key, false) == value))
+			edit (key).putBoolean (key, value);
+		
+		return this;
+	}
+	
+	public PreferencesWriter putString (String key, String value)
+	{
+		String s;
+		
+		s = prefs.getString (key, null);
+		if (changed (key, s == null ? value == null : s.equals (value)))
+			edit (key).putString (key, value);
+		
+		return this;
+	}
+	
+	public PreferencesWriter remove (String key)
+	{
+		if (prefs.contains (key) || touched.contains (key))
+			edit (key).remove (key);
+		
+		return this;
+	}
+	
+	/**
+	 * Tells whether there are changes that have not been written yet
+	 * @return <code>true</code> if so
+	 */
+	public boolean isDirty ()
+	{
+		return editor != null;
+	}
+	
+	/**
+	 * Writes all the pending changes. Nothing happens if no value has changed.
+	 */
+	@TargetApi(9)
+	public void flush ()
+	{
+		if (editor == null)
+			return;
+		
+		if (Build.VERSION.SDK_INT >= 9)
+			editor.apply ();
+		else
+			editor.commit ();
+		
+		editor = null;
+		touched.clear ();
+	}
+}
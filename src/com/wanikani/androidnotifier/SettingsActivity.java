@@ -14,6 +14,11 @@ import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 
+import com.wanikani.androidnotifier.db.BinaryFormat;
+import com.wanikani.androidnotifier.db.CSVFormat;
+import com.wanikani.androidnotifier.db.Format;
+import com.wanikani.androidnotifier.db.ItemsDatabase;
+import com.wanikani.androidnotifier.notification.NotificationService;
 import com.wanikani.wklib.Config;
 import com.wanikani.wklib.Connection;
 import com.wanikani.wklib.UserLogin;
@@ -87,6 +92,8 @@ public class SettingsActivity
 	private static final String KEY_PREF_USERKEY = "pref_userkey";
 	/** Refresh timeout. Must match preferences.xml */
 	private static final String KEY_PREF_REFRESH_TIMEOUT = "pref_refresh_timeout";
+	/** Connectivity changes coalescing window. Must match preferences.xml */
+	private static final String KEY_PREF_COALESCE_WINDOW = "pref_coalesce_window";
 	/** Enable reviews improvements. Must match preferences.xml */
 	private static final String KEY_PREF_REVIEW_IMPROVEMENTS = "pref_review_improvements";
 	/** Show mute button. Must match preferences.xml */
@@ -131,12 +138,16 @@ public class SettingsActivity
 	private static final String KEY_LEAK_KLUDGE = "pref_leak_kludge";
 	/** The even more infamous timer reaper kludge */
 	private static final String KEY_TIMER_REAPER = "pref_timer_reaper";
+	/** The review page assets cache */
+	private static final String KEY_ASSET_CACHE = "pref_asset_cache";
 	/** The layout type */
 	private static final String KEY_LAYOUT = "pref_layout";
 	/** The export destination */
 	private static final String KEY_PREF_EXPORT_DEST = "pref_export_dest";
 	/** The export file */
 	private static final String KEY_PREF_EXPORT_FILE = "pref_export_file";
+	/** The export format */
+	private static final String KEY_PREF_EXPORT_FORMAT = "pref_export_format";
 	/** Disable keyboard suggestions */
 	private static final String KEY_PREF_DISABLE_SUGGESTIONS = "pref_disable_suggestions";
 	/** Use hardware acceleration */
@@ -165,6 +176,18 @@ public class SettingsActivity
 	/** Default timeout */
 	private static final int DEFAULT_REFRESH_TIMEOUT = 5;
 	
+	/** Default coalescing window, in seconds */
+	private static final int DEFAULT_COALESCE_WINDOW = 5;
+	
+	/** The connection shared by background components */
+	private static Connection sharedConn;
+	
+	/** The login {@link #sharedConn} was created for */
+	private static UserLogin sharedLogin;
+	
+	/** The config {@link #sharedConn} was created for */
+	private static Config sharedConfig;
+	
 	/** The current login. Used to check whether something gets changed */
 	private UserLogin login;
 	
@@ -242,10 +265,12 @@ public class SettingsActivity
 		onSharedPreferenceChanged (prefs, KEY_PREF_ENABLED);
 		onSharedPreferenceChanged (prefs, KEY_PREF_REFRESH_TIMEOUT);
 		onSharedPreferenceChanged (prefs, KEY_PREF_NOT_THRESHOLD);
+		onSharedPreferenceChanged (prefs, KEY_PREF_COALESCE_WINDOW);
 		onSharedPreferenceChanged (prefs, KEY_PREF_USE_INTEGRATED_BROWSER);
 		onSharedPreferenceChanged (prefs, KEY_PREF_REVIEW_IMPROVEMENTS);
 		onSharedPreferenceChanged (prefs, KEY_PREF_EXPORT_DEST);
 		onSharedPreferenceChanged (prefs, KEY_PREF_EXPORT_FILE);
+		onSharedPreferenceChanged (prefs, KEY_PREF_EXPORT_FORMAT);
 		onSharedPreferenceChanged (prefs, KEY_PREF_EXTERNAL_FRAME_PLACER);
 		onSharedPreferenceChanged (prefs, KEY_PREF_PERSISTENT);
 		inited = true;
@@ -311,6 +336,10 @@ public class SettingsActivity
 			else
 				s = res.getString (R.string.pref_not_threshold_one_desc);
 			pref.setSummary (s);
+		} else if (key.equals (KEY_PREF_COALESCE_WINDOW)) {
+			s = res.getString (R.string.pref_coalesce_window_desc, getCoalesceWindow (prefs),
+							   NotificationService.getCoalescedIntents (this));
+			pref.setSummary (s);
 		} else if (key.equals (KEY_URL)) {
 			s = getURL (prefs);
 			if (s.length () == 0)
@@ -325,6 +354,12 @@ public class SettingsActivity
 			s = getExportFile (prefs);			
 			if (s.length () == 0)
 				setString (pref, KEY_PREF_EXPORT_FILE, DataExporter.getDefaultExportFile (this));
+		} else if (key.equals (KEY_PREF_EXPORT_FORMAT)) {
+			/* Keep the extension in sync, unless the user chose a file name */
+			s = getExportFile (prefs);
+			if (s.length () > 0 && DataExporter.isDefaultExportFile (this, s))
+				setString (findPreference (KEY_PREF_EXPORT_FILE), KEY_PREF_EXPORT_FILE, 
+						   DataExporter.getDefaultExportFile (this));
 		} else if (key.equals (KEY_PREF_REVIEW_IMPROVEMENTS))
 			runReviewImprovementsHooks (prefs);
 		else if (key.equals (KEY_PREF_EXTERNAL_FRAME_PLACER))
@@ -503,11 +538,44 @@ public class SettingsActivity
 	public static Connection newConnection (Context ctxt)
 	{
 		SharedPreferences prefs;
+		Connection ans;
 		
 		prefs = prefs (ctxt);
 		
-		return new Connection (getLogin (prefs), 
-							   getTLS (prefs) ? Config.DEFAULT_TLS : Config.DEFAULT_TCP);
+		ans = new Connection (getLogin (prefs), 
+							  getTLS (prefs) ? Config.DEFAULT_TLS : Config.DEFAULT_TCP);
+		ans.validators = new ValidatorPreferences (ctxt);
+		
+		return ans;
+	}
+	
+	/**
+	 * Returns the process-wide connection used by background components. 
+	 * Unlike {@link #newConnection(Context)}, it is backed by the persistent 
+	 * items cache, so item lists are downloaded again only when they become stale.
+	 * The connection is rebuilt whenever user key or transport settings change.
+	 * @param ctxt the context
+	 * @return the shared connection
+	 */
+	public static synchronized Connection getSharedConnection (Context ctxt)
+	{
+		SharedPreferences prefs;
+		UserLogin login;
+		Config config;
+		
+		prefs = prefs (ctxt);
+		login = getLogin (prefs);
+		config = getTLS (prefs) ? Config.DEFAULT_TLS : Config.DEFAULT_TCP;
+		
+		if (sharedConn == null || !login.equals (sharedLogin) || config != sharedConfig) {
+			sharedConn = new Connection (login, config);
+			sharedConn.cache = new ItemsDatabase (ctxt.getApplicationContext ()).getCache ();
+			sharedConn.validators = new ValidatorPreferences (ctxt);
+			sharedLogin = login;
+			sharedConfig = config;
+		}
+		
+		return sharedConn;
 	}
 	
 	private static UserLogin getLogin (SharedPreferences prefs)
@@ -585,6 +653,16 @@ public class SettingsActivity
 		return prefs.getString (KEY_PREF_USERKEY, "").length () > 0;
 	}
 	
+	public static int getCoalesceWindow (Context ctxt)
+	{
+		return getCoalesceWindow (prefs (ctxt));
+	}
+	
+	private static int getCoalesceWindow (SharedPreferences prefs)
+	{
+		return Math.max (getInt (prefs, KEY_PREF_COALESCE_WINDOW, DEFAULT_COALESCE_WINDOW), 0);
+	}
+	
 	public static int getRefreshTimeout (Context ctxt)
 	{
 		return getInt (prefs (ctxt), KEY_PREF_REFRESH_TIMEOUT, DEFAULT_REFRESH_TIMEOUT);
@@ -777,6 +855,11 @@ public class SettingsActivity
 		return prefs (ctxt).getBoolean (KEY_TIMER_REAPER, true);
 	}
 
+	public static boolean getAssetCache (Context ctxt)
+	{
+		return prefs (ctxt).getBoolean (KEY_ASSET_CACHE, true);
+	}
+
 	public static String getURL (Context ctxt)
 	{
 		return fixScheme (ctxt, getURL (prefs (ctxt)));
@@ -845,6 +928,24 @@ public class SettingsActivity
 		return DataExporter.Destination.BLUETOOTH;
 	}
 	
+	public static Format getExportFormat (Context ctxt)
+	{
+		int i;
+		
+		try { 
+			i = Integer.parseInt (prefs (ctxt).getString (KEY_PREF_EXPORT_FORMAT, "0"));
+		} catch (NumberFormatException e) {
+			i = 0;
+		}
+		
+		switch (i) {
+		case 1:
+			return BinaryFormat.newInstance (ctxt);
+		}
+		
+		return CSVFormat.newInstance (ctxt);
+	}
+	
 	public static String getExportFile (Context ctxt)
 	{
 		return getExportFile (prefs (ctxt));
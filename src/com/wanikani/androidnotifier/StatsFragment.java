@@ -345,15 +345,10 @@ public class StatsFragment extends Fragment implements Tab {
 		@Override
 		protected void fillPartialSegment (Pager.Segment segment, PageSegment pseg)
 		{
-			int i;
-			
 			segment.series = partialSeries;
-			segment.data = new float [2][pseg.srsl.size ()];
-			i = 0;
-			for (SRSDistribution srs : pseg.srsl) {
-				segment.data [0][i] = srs.apprentice.total;
-				segment.data [1][i++] = srs.burned.total;
-			}
+			segment.data = new float [2][pseg.size ()];
+			pseg.sum (segment.data [0], PageSegment.UNLOCKED, ALL_KINDS);
+			pseg.sum (segment.data [1], PageSegment.BURNED, ALL_KINDS);
 		}
 
 		/**
@@ -364,19 +359,13 @@ public class StatsFragment extends Fragment implements Tab {
 		 */
 		protected void fillSegment (Pager.Segment segment, PageSegment pseg)
 		{
-			int i;
-			
 			segment.series = completeSeries;
-			segment.data = new float [5][pseg.srsl.size ()];
-			i = 0;
-			for (SRSDistribution srs : pseg.srsl) {
-				segment.data [0][i] = srs.apprentice.total;
-				segment.data [1][i] = srs.guru.total;
-				segment.data [2][i] = srs.master.total;
-				segment.data [3][i] = srs.enlighten.total;
-				segment.data [4][i] = srs.burned.total;
-				i++;
-			}			
+			segment.data = new float [5][pseg.size ()];
+			pseg.sumApprentice (segment.data [0], ALL_KINDS);
+			pseg.sum (segment.data [1], PageSegment.GURU, ALL_KINDS);
+			pseg.sum (segment.data [2], PageSegment.MASTER, ALL_KINDS);
+			pseg.sum (segment.data [3], PageSegment.ENLIGHTEN, ALL_KINDS);
+			pseg.sum (segment.data [4], PageSegment.BURNED, ALL_KINDS);
 		}
 		
 	}
@@ -452,15 +441,10 @@ public class StatsFragment extends Fragment implements Tab {
 		 */
 		protected void fillPartialSegment (Pager.Segment segment, PageSegment pseg)
 		{
-			int i;
-			
 			segment.series = partialSeries;
-			segment.data = new float [2][pseg.srsl.size ()];
-			i = 0;
-			for (SRSDistribution srs : pseg.srsl) {
-				segment.data [0][i] = srs.apprentice.kanji;
-				segment.data [1][i++] = srs.burned.kanji;
-			}
+			segment.data = new float [2][pseg.size ()];
+			pseg.sum (segment.data [0], PageSegment.UNLOCKED, KANJI_KINDS);
+			pseg.sum (segment.data [1], PageSegment.BURNED, KANJI_KINDS);
 		}
 
 		/**
@@ -471,19 +455,13 @@ public class StatsFragment extends Fragment implements Tab {
 		 */
 		protected void fillSegment (Pager.Segment segment, PageSegment pseg)
 		{
-			int i;
-			
 			segment.series = completeSeries;
-			segment.data = new float [5][pseg.srsl.size ()];
-			i = 0;
-			for (SRSDistribution srs : pseg.srsl) {
-				segment.data [0][i] = srs.apprentice.kanji;
-				segment.data [1][i] = srs.guru.kanji;
-				segment.data [2][i] = srs.master.kanji;
-				segment.data [3][i] = srs.enlighten.kanji;
-				segment.data [4][i] = srs.burned.kanji;
-				i++;
-			}			
+			segment.data = new float [5][pseg.size ()];
+			pseg.sumApprentice (segment.data [0], KANJI_KINDS);
+			pseg.sum (segment.data [1], PageSegment.GURU, KANJI_KINDS);
+			pseg.sum (segment.data [2], PageSegment.MASTER, KANJI_KINDS);
+			pseg.sum (segment.data [3], PageSegment.ENLIGHTEN, KANJI_KINDS);
+			pseg.sum (segment.data [4], PageSegment.BURNED, KANJI_KINDS);
 		}
 		
 	}
@@ -559,15 +537,10 @@ public class StatsFragment extends Fragment implements Tab {
 		 */
 		protected void fillPartialSegment (Pager.Segment segment, PageSegment pseg)
 		{
-			int i;
-			
 			segment.series = partialSeries;
-			segment.data = new float [2][pseg.srsl.size ()];
-			i = 0;
-			for (SRSDistribution srs : pseg.srsl) {
-				segment.data [0][i] = srs.apprentice.vocabulary;
-				segment.data [1][i++] = srs.burned.vocabulary;
-			}
+			segment.data = new float [2][pseg.size ()];
+			pseg.sum (segment.data [0], PageSegment.UNLOCKED, VOCAB_KINDS);
+			pseg.sum (segment.data [1], PageSegment.BURNED, VOCAB_KINDS);
 		}
 
 		/**
@@ -578,19 +551,13 @@ public class StatsFragment extends Fragment implements Tab {
 		 */
 		protected void fillSegment (Pager.Segment segment, PageSegment pseg)
 		{
-			int i;
-			
 			segment.series = completeSeries;
-			segment.data = new float [5][pseg.srsl.size ()];
-			i = 0;
-			for (SRSDistribution srs : pseg.srsl) {
-				segment.data [0][i] = srs.apprentice.vocabulary;
-				segment.data [1][i] = srs.guru.vocabulary;
-				segment.data [2][i] = srs.master.vocabulary;
-				segment.data [3][i] = srs.enlighten.vocabulary;
-				segment.data [4][i] = srs.burned.vocabulary;
-				i++;
-			}			
+			segment.data = new float [5][pseg.size ()];
+			pseg.sumApprentice (segment.data [0], VOCAB_KINDS);
+			pseg.sum (segment.data [1], PageSegment.GURU, VOCAB_KINDS);
+			pseg.sum (segment.data [2], PageSegment.MASTER, VOCAB_KINDS);
+			pseg.sum (segment.data [3], PageSegment.ENLIGHTEN, VOCAB_KINDS);
+			pseg.sum (segment.data [4], PageSegment.BURNED, VOCAB_KINDS);
 		}
 		
 	}
@@ -1085,6 +1052,16 @@ public class StatsFragment extends Fragment implements Tab {
 	/// Overall number of levels
 	private static final int ALL_THE_LEVELS = 50;
 	
+	/// The page segment columns of all the item types 
+	private static final int ALL_KINDS [] = new int [] 
+			{ PageSegment.RADICALS, PageSegment.KANJI, PageSegment.VOCAB };
+	
+	/// The page segment columns of kanji
+	private static final int KANJI_KINDS [] = new int [] { PageSegment.KANJI };
+
+	/// The page segment columns of vocab items
+	private static final int VOCAB_KINDS [] = new int [] { PageSegment.VOCAB };
+	
 	/// The database
 	HistoryDatabaseCache hdbc;
 	
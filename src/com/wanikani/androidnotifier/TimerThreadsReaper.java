@@ -3,7 +3,10 @@ package com.wanikani.androidnotifier;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Vector;
@@ -44,7 +47,10 @@ import android.os.Handler;
  * is enabled; the other is not used. As a result, if autoplay is disabled, each
  * vocab item introduces two threads, and the app quickly becomes unusable.
  * This class looks for all those timers, and kills them: it has no effect on
- * newer releases, since only timers containing a task are killed.  
+ * newer releases, since only timers containing a task are killed.
+ * Looking for timers is not cheap, since it means inspecting each thread
+ * through reflection, so the page should tell the {@link ReaperTask} when new audio
+ * tags show up, instead of relying on its (slow) fallback period.
  */
 public class TimerThreadsReaper {
 
@@ -102,8 +108,9 @@ public class TimerThreadsReaper {
 			Method method;
 
 			try {
-				method = tag.getClass().getDeclaredMethod ("resetMediaPlayer", new Class [0]);
-				method.setAccessible (true);
+				method = TimerThreadsReaper.getMethod (tag.getClass (), "resetMediaPlayer");
+				if (method == null)
+					return false;
 				method.invoke (tag, new Object [0]);
 			} catch (Throwable t) {
 				return false;
@@ -157,7 +164,8 @@ public class TimerThreadsReaper {
 	}
 	
 	/**
-	 * A periodic task that takes care of reaping all the timers.
+	 * A task that takes care of reaping all the timers. It runs shortly after
+	 * {@link #trigger()} is called, and periodically as a fallback.
 	 * A configurable number of the latest timers are spared, to make sure that
 	 * we don't accidentally destroy a tag being currently played. 
 	 */
@@ -169,9 +177,12 @@ public class TimerThreadsReaper {
 		/// Number of timers to spare
 		int grace;
 		
-		/// Number of milliseconds between two runs
+		/// Number of milliseconds between two runs, if nobody calls {@link #trigger()}
 		long period;
 		
+		/// Number of milliseconds between {@link #trigger()} and the actual run
+		long delay;
+		
 		/// True if active
 		boolean active;
 		
@@ -186,12 +197,14 @@ public class TimerThreadsReaper {
 		 * @param handler OS handler
 		 * @param grace number of timers to spare
 		 * @param period interval between two runs
+		 * @param delay delay between a trigger and the actual run
 		 */
-		private ReaperTask (Handler handler, int grace, long period)
+		private ReaperTask (Handler handler, int grace, long period, long delay)
 		{			
 			this.handler = handler;
 			this.grace = grace;
 			this.period = period;
+			this.delay = delay;
 		}
 		
 		/**
@@ -218,6 +231,18 @@ public class TimerThreadsReaper {
 		public void pause ()
 		{
 			active = false;
+			handler.removeCallbacks (this);
+		}
+		
+		/**
+		 * Called when new audio tags may have been created (e.g. an audio tag
+		 * has been loaded or played). The task runs after a short delay, so a burst of
+		 * events causes one run only. May be called from any thread.
+		 */
+		public void trigger ()
+		{
+			handler.removeCallbacks (this);
+			handler.postDelayed (this, delay);
 		}
 		
 		/**
@@ -235,31 +260,46 @@ public class TimerThreadsReaper {
 			if (listener != null)
 				listener.reaped (count, total);
 			
+			handler.removeCallbacks (this);
 			handler.postDelayed (this, period);
 		}		
 	}
 	
-	/// A list of all the reaped tags. We keep it to avoid killing them twice
-	List<AudioTagWrapper> reaped;
+	/// Name of the android class that implements the recurring timer task
+	private static final String TIMEUPDATE_TASK = "android.webkit.HTML5Audio.TimeupdateTask";
+	
+	/// Cached fields, indexed by class and field name. Missing fields are stored as <tt>null</tt>
+	private static Map<Class<?>, Map<String, Field>> fields = new HashMap<Class<?>, Map<String, Field>> ();
+	
+	/// Cached methods, indexed by class and method name. Missing methods are stored as <tt>null</tt>
+	private static Map<Class<?>, Map<String, Method>> methods = new HashMap<Class<?>, Map<String, Method>> ();
+	
+	/// The timeupdate task class, once we have met it
+	private static Class<?> timeupdateClass;
+	
+	/// The reaped tags whose timer thread is still alive. We keep them to avoid
+	/// killing them twice. The tags are compared by identity
+	Map<Object, Boolean> reaped;
 	
 	/**
 	 * Constrcutor.
 	 */
 	public TimerThreadsReaper ()
 	{
-		reaped = new Vector<AudioTagWrapper> ();
+		reaped = new IdentityHashMap<Object, Boolean> ();
 	}
 		
 	/**
-	 * Creates a periodic task that reapes the timers. This step is optional
+	 * Creates a task that reapes the timers. This step is optional
 	 * @param handler the OS handler
 	 * @param grace the number of timers to spare
-	 * @param period the interval between two runs
+	 * @param period the interval between two runs, when the task is not triggered
+	 * @param delay the delay between a trigger and the actual run
 	 * @return the task being created. It is initially stopped
 	 */
-	public ReaperTask createTask (Handler handler, int grace, long period)
+	public ReaperTask createTask (Handler handler, int grace, long period, long delay)
 	{
-		return new ReaperTask (handler, grace, period);
+		return new ReaperTask (handler, grace, period, delay);
 	}
 	
 	/**
@@ -278,20 +318,28 @@ public class TimerThreadsReaper {
 	 */
 	public int killDelta (int grace)
 	{
+		Map<Object, Boolean> alive;
 		List<AudioTagWrapper> current;
 		AudioTagWrapper w;
 		int count, i;
 
 		current = snapshot ();
+		alive = new IdentityHashMap<Object, Boolean> ();
 
 		count = 0;
-		for (i = 0; i < current.size () - grace; i++) {
+		for (i = 0; i < current.size (); i++) {
 			w = current.get (i);
-			if (!reaped.contains (w) && current.get (i).release ())
-				count++;
-			reaped.add (w);
+			if (i < current.size () - grace) {
+				if (!reaped.containsKey (w.tag) && w.release ())
+					count++;
+				alive.put (w.tag, Boolean.TRUE);
+			} else if (reaped.containsKey (w.tag))
+				alive.put (w.tag, Boolean.TRUE);
 		}
 		
+		/* Tags whose timer thread is gone can't show up again: forget them */
+		reaped = alive;
+		
 		return count;
 	}
 
@@ -374,8 +422,7 @@ public class TimerThreadsReaper {
 				continue;
 			}
 			
-			if (task.getClass ().getCanonicalName ()
-					.equals ("android.webkit.HTML5Audio.TimeupdateTask")) {
+			if (isTimeupdateTask (task)) {
 				obj = getField (task, "this$0", Object.class);
 				if (obj != null)
 					wrappers.add (new AudioTagWrapper (tcount, obj));
@@ -384,7 +431,85 @@ public class TimerThreadsReaper {
 	}
 
 	/**
-	 * Convenience method that returns a (possible private) field of an object.
+	 * Tells whether a timer task is the recurring task of an audio tag.
+	 * @param task the task
+	 * @return <tt>true</tt> if it is
+	 */
+	private static synchronized boolean isTimeupdateTask (Object task)
+	{
+		if (timeupdateClass != null)
+			return task.getClass () == timeupdateClass;
+		
+		if (!TIMEUPDATE_TASK.equals (task.getClass ().getCanonicalName ()))
+			return false;
+		
+		timeupdateClass = task.getClass ();
+		
+		return true;
+	}
+	
+	/**
+	 * Returns a (possibly private) field of a class. Lookups are cached, so
+	 * reflection is done only once per class and field. 
+	 * @param pclass the class
+	 * @param name the field name
+	 * @return the field (already accessible), or <tt>null</tt> if it does not exist
+	 */
+	private static synchronized Field getField (Class<?> pclass, String name)
+	{
+		Map<String, Field> cache;
+		Field field;
+		
+		cache = fields.get (pclass);
+		if (cache == null) {
+			cache = new HashMap<String, Field> ();
+			fields.put (pclass, cache);
+		} else if (cache.containsKey (name))
+			return cache.get (name);
+		
+		try {
+			field = pclass.getDeclaredField (name);
+			field.setAccessible (true);
+		} catch (Throwable t) {
+			field = null;
+		}
+		cache.put (name, field);
+		
+		return field;
+	}
+
+	/**
+	 * Returns a (possibly private) method of a class, taking no arguments.
+	 * Lookups are cached, so reflection is done only once per class and method. 
+	 * @param pclass the class
+	 * @param name the method name
+	 * @return the method (already accessible), or <tt>null</tt> if it does not exist
+	 */
+	private static synchronized Method getMethod (Class<?> pclass, String name)
+	{
+		Map<String, Method> cache;
+		Method method;
+		
+		cache = methods.get (pclass);
+		if (cache == null) {
+			cache = new HashMap<String, Method> ();
+			methods.put (pclass, cache);
+		} else if (cache.containsKey (name))
+			return cache.get (name);
+		
+		try {
+			method = pclass.getDeclaredMethod (name, new Class [0]);
+			method.setAccessible (true);
+		} catch (Throwable t) {
+			method = null;
+		}
+		cache.put (name, method);
+		
+		return method;
+	}
+
+	/**
+	 * Convenience method that returns the value of a (possible private) field of an object.
 	 * @param parent the object
 	 * @param name the field name
 	 * @param clazz the expected class name
@@ -393,18 +518,14 @@ public class TimerThreadsReaper {
 	 */
 	private static Object getField (Object parent, String name, Class clazz) 
 	{
-		Class pclass;
 		Field field;
 		Object obj;
 
-		pclass = parent.getClass();		
 		try {
-			field = pclass.getDeclaredField (name);
+			field = getField (parent.getClass (), name);
 			if (field == null)
 				return null;
 
-			field.setAccessible (true);
-
 			obj = field.get (parent);
 			if (obj == null)
 				return null;
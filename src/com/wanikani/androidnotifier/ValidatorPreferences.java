@@ -0,0 +1,106 @@
+package com.wanikani.androidnotifier;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.wanikani.wklib.Connection;
+
+/*
+ *  Copyright (c) 2013 Alberto Cuda
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A {@link Connection.ValidatorStore} backed by a private preferences file.
+ * The process is usually started again for each notification poll, so keeping
+ * validators in memory only would make conditional requests quite rare.
+ * Entries are indexed by the SHA-1 of the URL, which contains the user key.
+ * The file is opened lazily, since connections are created on the UI thread
+ * while validators are used by the background threads only.
+ */
+public class ValidatorPreferences implements Connection.ValidatorStore {
+	
+	private static final String PREFERENCES_FILE = "validators.xml";
+	
+	private static final String K_ETAG = "etag.";
+	
+	private static final String K_BODY = "body.";
+	
+	/// The application context
+	private Context ctxt;
+	
+	/**
+	 * Constructor.
+	 * @param ctxt the context
+	 */
+	public ValidatorPreferences (Context ctxt)
+	{
+		this.ctxt = ctxt.getApplicationContext ();
+	}
+	
+	private SharedPreferences prefs ()
+	{
+		return ctxt.getSharedPreferences (PREFERENCES_FILE, Context.MODE_PRIVATE);
+	}
+	
+	@Override
+	public String [] get (String url)
+	{
+		SharedPreferences prefs;
+		String key, etag, body;
+		
+		key = key (url);
+		if (key == null)
+			return null;
+		
+		prefs = prefs ();
+		etag = prefs.getString (K_ETAG + key, null);
+		body = prefs.getString (K_BODY + key, null);
+		
+		return etag != null && body != null ? new String [] { etag, body } : null;
+	}
+	
+	@Override
+	public void put (String url, String etag, String body)
+	{
+		SharedPreferences.Editor e;
+		String key;
+		
+		key = key (url);
+		if (key == null)
+			return;
+		
+		e = prefs ().edit ();
+		if (etag != null && body != null) {
+			e.putString (K_ETAG + key, etag);
+			e.putString (K_BODY + key, body);
+		} else {
+			e.remove (K_ETAG + key);
+			e.remove (K_BODY + key);
+		}
+		e.commit ();
+	}
+	
+	private static String key (String url)
+	{
+		try {
+			return AssetCache.hex (AssetCache.sha1 ().digest (url.getBytes ("UTF-8")));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
@@ -208,6 +208,9 @@ public class WaniKaniImprove {
 	private static final String JS_UNINIT_PAGE = 
 "$('#option-show-previous').remove ()";			
 
+	/// Name of the function that runs {@link #JS_CODE}
+	private static final String FN_CODE = "wanikaniImprove";
+	
 	/// This code must be run when the "next" button is pressed.
 	private static final String JS_CODE =
 // Original script
@@ -293,6 +296,7 @@ public class WaniKaniImprove {
 		this.wv = wv;
 
 		wv.addJavascriptInterface (this, "wknWanikaniImprove");
+		wv.define (FN_CODE, "", LocalIMEKeyboard.ifReviews (JS_CODE));
 	}
 	
 	/**
@@ -363,9 +367,14 @@ public class WaniKaniImprove {
 		dialog.show ();
 	}
 	
+	/**
+	 * Returns the code that must be run when the "next" button is pressed.
+	 * This is just a call to a function installed by {@link FocusWebView#installFunctions()}.
+	 * @return the code
+	 */
 	public static String getCode ()
 	{
-		return LocalIMEKeyboard.ifReviews (JS_CODE);
+		return FocusWebView.call (FN_CODE, "");
 	}
 	
 }
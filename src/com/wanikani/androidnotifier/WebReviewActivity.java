@@ -3,6 +3,7 @@ package com.wanikani.androidnotifier;
 import java.io.File;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -28,6 +29,7 @@ import android.webkit.CookieSyncManager;
 import android.webkit.DownloadListener;
 import android.webkit.JavascriptInterface;
 import android.webkit.WebChromeClient;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 import android.widget.Button;
@@ -37,7 +39,9 @@ import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.wanikani.androidnotifier.db.FontDatabase;
 import com.wanikani.androidnotifier.notification.NotificationService;
+import com.wanikani.wklib.Connection;
 
 /* 
  *  Copyright (c) 2013 Alberto Cuda
@@ -195,6 +199,20 @@ public class WebReviewActivity extends Activity {
     		return false;
 	    }
 	    
+	    /**
+	     * Called (on API level 11 and above) before loading a resource. We serve
+	     * static resources from the {@link AssetCache}, if enabled.
+	     * 	@param view the web view
+	     *  @param url the resource URL
+	     *  @return the cached resource, or <code>null</code> to let the web view load it
+	     */
+	    @Override
+	    @TargetApi(11)
+	    public WebResourceResponse shouldInterceptRequest (WebView view, String url)
+	    {
+	    	return assets != null ? assets.load (url) : null;
+	    }
+	    
 	    /**
 	     * Tells if we should spawn an external browser
 	     *  @param url the url we are opening
@@ -266,6 +284,8 @@ public class WebReviewActivity extends Activity {
 			if (url.startsWith ("http")) {
 				
 				wv.js (JS_INIT_KBD);
+				if (rtask != null)
+					wv.js (JS_INIT_REAPER);
 				if (SettingsActivity.getExternalFramePlacer (WebReviewActivity.this)) {
 					dict = SettingsActivity.getExternalFramePlacerDictionary (WebReviewActivity.this);
 					ExternalFramePlacer.run (wv, dict);
@@ -375,6 +395,23 @@ public class WebReviewActivity extends Activity {
 		}
 	}
 	
+	/**
+	 * This class implements the <code>wknReaper</code> javascript object.
+	 * It tells the timer reaper when audio tags are loaded or played.
+	 */
+	private class WKNReaper {
+		
+		/**
+		 * Called by javascript when an audio tag is loaded or played.
+		 */
+		@JavascriptInterface
+		public void audio ()
+		{
+			if (rtask != null)
+				rtask.trigger ();
+		}
+	}
+	
 	/**
 	 * Our implementation of a menu listener. We listen for configuration changes. 
 	 */
@@ -418,6 +455,8 @@ public class WebReviewActivity extends Activity {
 		public void refresh ()
 		{
 			wv.clearCache (true);
+			if (assets != null)
+				assets.clear ();
 			wv.js ("window.location.reload (true)");
 		}
 	}
@@ -560,6 +599,31 @@ public class WebReviewActivity extends Activity {
 			dbar.setProgress (percentage);
 		}
 		
+		@Override
+		public void stats (Connection.Outcome outcome, long bytes, long elapsed, boolean resumed)
+		{
+			MeterSpec meter;
+			
+			/* Throughput and resumes show up in the endpoints list of the meters screen */
+			meter = (MeterSpec) MeterSpec.T.FONT_DOWNLOAD.get (WebReviewActivity.this);
+			meter.count ((int) bytes);
+			meter.sync ();
+			meter.endpoint (resumed ? "font download (resumed)" : "font download",
+							outcome, 0, elapsed, (int) bytes);
+			/* The activity is about to finish */
+			MeterSpec.flush (WebReviewActivity.this);
+		}
+		
+		@Override
+		public boolean inUse (File file)
+		{
+			for (FontDatabase.FontEntry fe : FontDatabase.getFonts (WebReviewActivity.this))
+				if (file.getAbsolutePath ().equals (fe.filename))
+					return true;
+			
+			return false;
+		}
+		
 		@Override
 		public void done (File file)
 		{
@@ -648,6 +712,22 @@ public class WebReviewActivity extends Activity {
 			"document.getElementsByTagName('head')[0].appendChild(style);";
 			
 	
+	/** Javascript that hooks audio events, to tell the reaper when new timers may have been created.
+	 *  Media events don't bubble, so we need to listen to them in the capture phase */
+	private static final String JS_INIT_REAPER =
+			"if (!window.wknReaperHooked) {" +
+			"   window.wknReaperHooked = true;" +
+			"   document.addEventListener ('loadstart', function () { wknReaper.audio (); }, true);" +
+			"   document.addEventListener ('play', function () { wknReaper.audio (); }, true);" +
+			"}";
+	
+	/** Timer reaper fallback period. Audio objects that are not attached to the DOM
+	 *  don't dispatch events to the document, so this must stay as short as it used to be */
+	private static final long REAPER_PERIOD = 7000;
+	
+	/** Delay between an audio event and the timer reaper run */
+	private static final long REAPER_DELAY = 1000;
+	
 	private static final String
 			JS_BULK_MODE = "if (window.trueRandom) Math.random=window.trueRandom;"; 
 	private static final String
@@ -709,6 +789,9 @@ public class WebReviewActivity extends Activity {
 	
 	/** The file downloader, if any */
 	private FileDownloader fda;
+	
+	/** The static resources cache, or <code>null</code> if disabled */
+	private AssetCache assets;
 		
 	/**
 	 * Called when the action is initially displayed. It initializes the objects
@@ -727,6 +810,9 @@ public class WebReviewActivity extends Activity {
 
 		mh = new MenuHandler (this, new MenuListener ());
 		
+		if (bundle == null)
+			AudioPrefetcher.newSession ();
+		
 		if (SettingsActivity.getFullscreen (this)) {
 			getWindow ().addFlags (WindowManager.LayoutParams.FLAG_FULLSCREEN);
 			requestWindowFeature (Window.FEATURE_NO_TITLE);
@@ -764,7 +850,10 @@ public class WebReviewActivity extends Activity {
 		wv.getSettings ().setDomStorageEnabled (true);
 		wv.getSettings ().setDatabasePath (getFilesDir ().getPath () + "/wv");
 		wv.addJavascriptInterface (new WKNKeyboard (), "wknKeyboard");
+		wv.addJavascriptInterface (new WKNReaper (), "wknReaper");
 		wv.setScrollBarStyle (ScrollView.SCROLLBARS_OUTSIDE_OVERLAY);
+		if (SettingsActivity.getAssetCache (this))
+			assets = AssetCache.get (this);
 		wv.setWebViewClient (new WebViewClientImpl ());
 		wv.setWebChromeClient (new WebChromeClientImpl ());		
 
@@ -787,7 +876,7 @@ public class WebReviewActivity extends Activity {
 
 		if (SettingsActivity.getTimerReaper (this)) {
 			reaper = new TimerThreadsReaper ();
-			rtask = reaper.createTask (new Handler (), 2, 7000);
+			rtask = reaper.createTask (new Handler (), 2, REAPER_PERIOD, REAPER_DELAY);
 			rtask.setListener (new ReaperTaskListener ());
 		}
 	}
@@ -894,6 +983,9 @@ public class WebReviewActivity extends Activity {
 			rtask.pause ();
 		
 		keyboard.hide ();
+		
+		/* This process does not outlive the review session, so this is our last chance */
+		MeterSpec.flush (this);
 	}
 	
 	/**
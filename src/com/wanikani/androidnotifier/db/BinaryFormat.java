@@ -0,0 +1,532 @@
+package com.wanikani.androidnotifier.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.wanikani.androidnotifier.db.HistoryDatabase.FactType;
+import com.wanikani.androidnotifier.db.HistoryDatabase.Levels;
+
+/*
+ *  Copyright (c) 2013 Alberto Cuda
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A compact binary dump of the facts and levels tables. The file starts
+ * with a magic number and a version byte, followed by a deflated body
+ * and the CRC32 of the (uncompressed) body.
+ * The body contains:
+ * <ul>
+ * 	<li>The number of levels, followed by a (level, day, vacation) triple for each level
+ *  <li>The number of facts, followed by each row of the facts table
+ * </ul>
+ * Each fact is a type byte, followed by its columns (as in
+ * {@link HistoryDatabase.Facts#getColumns(Cursor, int[][], int)}). Partial facts
+ * only contain the burned and unlocked columns, while missing facts contain nothing at all.
+ * Since the table changes slowly from one day to the next, each column is stored
+ * as the difference with the last value written, encoded as a zigzag varint.
+ * Days are stored as the difference with the previous day, minus one,
+ * so a healthy table contains only zeroes.
+ */
+public class BinaryFormat implements Format {
+	
+	/** The magic number */
+	private static final byte MAGIC [] = new byte [] { 'W', 'K', 'M', 'B' };
+	
+	/** The current version */
+	private static final int VERSION = 1;
+	
+	/** Size of the I/O buffers */
+	private static final int BUFSIZE = 8192;
+	
+	/** Type byte of missing facts */
+	private static final int T_MISSING = 0;
+	
+	/** Type byte of partial facts */
+	private static final int T_PARTIAL = 1;
+	
+	/** Type byte of complete facts */
+	private static final int T_COMPLETE = 2;
+	
+	/** The columns stored in partial facts */
+	private static final int PARTIAL_COLUMNS [] = new int [] { 3, 4, 8, 9, 13, 14 };
+	
+	/** The columns stored in complete facts */
+	private static final int COMPLETE_COLUMNS [];
+	
+	static {
+		int i;
+		
+		COMPLETE_COLUMNS = new int [HistoryDatabase.Facts.DATA_COLUMNS];
+		for (i = 0; i < COMPLETE_COLUMNS.length; i++)
+			COMPLETE_COLUMNS [i] = i;
+	}
+	
+	/** The context */
+	Context ctxt;
+	
+	/**
+	 * Constructor
+	 * @param ctxt the context
+	 */
+	private BinaryFormat (Context ctxt)
+	{
+		this.ctxt = ctxt;
+	}
+	
+	/**
+	 * Creates a new instance
+	 * @param ctxt the context
+	 * @return the format
+	 */
+	public static Format newInstance (Context ctxt)
+	{
+		return new BinaryFormat (ctxt);
+	}
+	
+	/**
+	 * Tells whether a file looks like a binary dump, by checking its magic number.
+	 * @param file the file
+	 * @return <code>true</code> if this format should be used to import it
+	 */
+	public static boolean accepts (File file)
+	{
+		InputStream is;
+		byte magic [];
+		
+		magic = new byte [MAGIC.length];
+		is = null;
+		try {
+			is = new FileInputStream (file);
+			readFully (is, magic);
+			
+			return Arrays.equals (magic, MAGIC);
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				if (is != null)
+					is.close ();
+			} catch (IOException e) {
+				/* empty */
+			}
+		}
+	}
+	
+	@Override
+	public void export (OutputStream os)
+		throws IOException, SQLException
+	{
+		HistoryDatabase db;
+		
+		synchronized (HistoryDatabase.MUTEX) {
+			db = new HistoryDatabase (ctxt);
+			
+			try {
+				db.openR ();
+				
+				doExport (os, db);
+			} finally {
+				db.close ();
+			}
+		}
+	}
+	
+	/**
+	 * Performs the actual export. The output stream is not closed.
+	 * @param os the output stream
+	 * @param db the database
+	 */
+	protected void doExport (OutputStream os, HistoryDatabase db)
+		throws IOException, SQLException
+	{
+		Map<Integer, HistoryDatabase.LevelInfo> levelInfo;
+		HistoryDatabase.LevelInfo li;
+		DeflaterOutputStream dos;
+		CheckedOutputStream cos;
+		OutputStream bos;
+		Deflater deflater;
+		int cols [][], last [];
+		int level, lday, day;
+		Object levels [];
+		long crc;
+		Cursor c;
+		
+		os.write (MAGIC);
+		os.write (VERSION);
+		
+		deflater = new Deflater (Deflater.BEST_COMPRESSION);
+		dos = new DeflaterOutputStream (os, deflater, BUFSIZE);
+		cos = new CheckedOutputStream (new BufferedOutputStream (dos, BUFSIZE), new CRC32 ());
+		bos = cos;
+		c = null;
+		try {
+			levelInfo = db.getLevelInfo ();
+			levels = levelInfo.keySet ().toArray ();
+			Arrays.sort (levels);
+			writeVarint (bos, levels.length);
+			level = lday = 0;
+			for (Object l : levels) {
+				li = levelInfo.get (l);
+				writeSigned (bos, (Integer) l - level);
+				writeSigned (bos, li.day - lday);
+				writeVarint (bos, li.vacation);
+				level = (Integer) l;
+				lday = li.day;
+			}
+			
+			c = db.selectFacts ();
+			cols = new int [HistoryDatabase.Facts.DATA_COLUMNS][1];
+			last = new int [HistoryDatabase.Facts.DATA_COLUMNS];
+			writeVarint (bos, c.getCount ());
+			lday = -1;
+			while (c.moveToNext ()) {
+				day = HistoryDatabase.Facts.getDay (c);
+				writeVarint (bos, day - lday - 1);
+				lday = day;
+				
+				switch (HistoryDatabase.Facts.getType (c)) {
+				case COMPLETE:
+					bos.write (T_COMPLETE);
+					HistoryDatabase.Facts.getColumns (c, cols, 0);
+					writeColumns (bos, COMPLETE_COLUMNS, cols, last);
+					break;
+				
+				case PARTIAL:
+					bos.write (T_PARTIAL);
+					HistoryDatabase.Facts.getColumns (c, cols, 0);
+					writeColumns (bos, PARTIAL_COLUMNS, cols, last);
+					break;
+				
+				case MISSING:
+					bos.write (T_MISSING);
+				}
+			}
+			
+			bos.flush ();
+			crc = cos.getChecksum ().getValue ();
+			writeInt (bos, (int) crc);
+			bos.flush ();
+			dos.finish ();
+		} finally {
+			if (c != null)
+				c.close ();
+			deflater.end ();
+		}
+	}
+	
+	@Override
+	public ImportResult importFile (File file)
+		throws IOException, SQLException
+	{
+		HistoryDatabase hdb;
+		SQLiteStatement stmt;
+		ImportResult ans;
+		Inflater inflater;
+		CheckedInputStream cis;
+		InputStream is, bis;
+		int i, n, level, day, cols [][], last [], expected;
+		HistoryDatabase.FactType type;
+		byte magic [];
+		long crc;
+		
+		ans = new ImportResult ();
+		magic = new byte [MAGIC.length];
+		inflater = new Inflater ();
+		is = new BufferedInputStream (new FileInputStream (file), BUFSIZE);
+		try {
+			readFully (is, magic);
+			if (!Arrays.equals (magic, MAGIC))
+				throw new IOException ("Not a binary dump");
+			i = is.read ();
+			if (i < 0 || i > VERSION)
+				throw new IOException ("Unsupported dump version: " + i);
+			
+			cis = new CheckedInputStream (new BufferedInputStream
+						(new InflaterInputStream (is, inflater, BUFSIZE), BUFSIZE), new CRC32 ());
+			bis = cis;
+			
+			synchronized (HistoryDatabase.MUTEX) {
+				hdb = new HistoryDatabase (ctxt);
+				hdb.openW ();
+				stmt = null;
+				hdb.db.beginTransaction ();
+				try {
+					n = readVarint (bis);
+					level = day = 0;
+					for (i = 0; i < n; i++) {
+						level += readSigned (bis);
+						day += readSigned (bis);
+						Levels.insertOrUpdate (hdb.db, level, day, readVarint (bis));
+					}
+					
+					stmt = HistoryDatabase.Facts.prepareInsertDay (hdb.db);
+					cols = new int [HistoryDatabase.Facts.DATA_COLUMNS][1];
+					last = new int [HistoryDatabase.Facts.DATA_COLUMNS];
+					n = readVarint (bis);
+					day = -1;
+					for (i = 0; i < n; i++) {
+						day += readVarint (bis) + 1;
+						switch (bis.read ()) {
+						case T_COMPLETE:
+							type = FactType.COMPLETE;
+							readColumns (bis, COMPLETE_COLUMNS, cols, last);
+							break;
+						
+						case T_PARTIAL:
+							type = FactType.PARTIAL;
+							readColumns (bis, PARTIAL_COLUMNS, cols, last);
+							break;
+						
+						case T_MISSING:
+							type = FactType.MISSING;
+							break;
+						
+						default:
+							throw new IOException ("Bad fact type at row " + i);
+						}
+						
+						HistoryDatabase.Facts.insertDay (stmt, day);
+						ans.updated += HistoryDatabase.Facts.importDay
+							(hdb.db, day, HistoryDatabase.Facts.getSRSDistribution (cols, 0), type);
+						ans.read++;
+					}
+					
+					crc = cis.getChecksum ().getValue ();
+					expected = readInt (bis);
+					if (expected != (int) crc)
+						throw new IOException ("Checksum mismatch");
+					
+					if (day >= 0)
+						HistoryDatabase.Facts.fillGapsThoroughly (hdb.db, day);
+					
+					hdb.db.setTransactionSuccessful ();
+				} finally {
+					hdb.db.endTransaction ();
+					if (stmt != null)
+						stmt.close ();
+					hdb.close ();
+				}
+			}
+		} finally {
+			try {
+				is.close ();
+			} catch (IOException e) {
+				/* empty */
+			}
+			inflater.end ();
+		}
+		
+		return ans;
+	}
+	
+	/**
+	 * Writes a subset of columns, each one as the difference with the last
+	 * value written in that column.
+	 * @param os the output stream
+	 * @param which the columns to write
+	 * @param cols the current row, as returned by
+	 * 	{@link HistoryDatabase.Facts#getColumns(Cursor, int[][], int)}
+	 * @param last the last values written, updated by this method
+	 */
+	private static void writeColumns (OutputStream os, int which [], int cols [][], int last [])
+		throws IOException
+	{
+		int i, col;
+		
+		for (i = 0; i < which.length; i++) {
+			col = which [i];
+			writeSigned (os, cols [col][0] - last [col]);
+			last [col] = cols [col][0];
+		}
+	}
+	
+	/**
+	 * Reads a subset of columns, written by {@link #writeColumns(OutputStream, int[], int[][], int[])}.
+	 * Columns that are not part of the subset are cleared.
+	 * @param is the input stream
+	 * @param which the columns to read
+	 * @param cols the output row
+	 * @param last the last values read, updated by this method 
+	 */
+	private static void readColumns (InputStream is, int which [], int cols [][], int last [])
+		throws IOException
+	{
+		int i, col;
+		
+		for (i = 0; i < cols.length; i++)
+			cols [i][0] = 0;
+		
+		for (i = 0; i < which.length; i++) {
+			col = which [i];
+			last [col] += readSigned (is);
+			cols [col][0] = last [col];
+		}
+	}
+	
+	/**
+	 * Writes an unsigned varint (7 bits per byte, MSB set on all bytes but the last).
+	 * @param os the output stream
+	 * @param value the value
+	 */
+	private static void writeVarint (OutputStream os, int value)
+		throws IOException
+	{
+		while ((value & ~0x7F) != 0) {
+			os.write ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		os.write (value);
+	}
+	
+	/**
+	 * Writes a signed value as a zigzag varint, so that small negative
+	 * numbers take little space as well.
+	 * @param os the output stream
+	 * @param value the value
+	 */
+	private static void writeSigned (OutputStream os, int value)
+		throws IOException
+	{
+		writeVarint (os, (value << 1) ^ (value >> 31));
+	}
+	
+	/**
+	 * Writes a 32 bit big endian integer
+	 * @param os the output stream
+	 * @param value the value
+	 */
+	private static void writeInt (OutputStream os, int value)
+		throws IOException
+	{
+		os.write (value >>> 24);
+		os.write (value >>> 16);
+		os.write (value >>> 8);
+		os.write (value);
+	}
+	
+	/**
+	 * Reads an unsigned varint.
+	 * @param is the input stream
+	 * @return the value
+	 */
+	private static int readVarint (InputStream is)
+		throws IOException
+	{
+		int ans, shift, b;
+		
+		ans = 0;
+		for (shift = 0; shift < 35; shift += 7) {
+			b = read (is);
+			ans |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return ans;
+		}
+		
+		throw new IOException ("Malformed varint");
+	}
+	
+	/**
+	 * Reads a zigzag varint.
+	 * @param is the input stream
+	 * @return the value
+	 */
+	private static int readSigned (InputStream is)
+		throws IOException
+	{
+		int value;
+		
+		value = readVarint (is);
+		
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	/**
+	 * Reads a 32 bit big endian integer
+	 * @param is the input stream
+	 * @return the value
+	 */
+	private static int readInt (InputStream is)
+		throws IOException
+	{
+		return (read (is) << 24) | (read (is) << 16) | (read (is) << 8) | read (is);
+	}
+	
+	/**
+	 * Reads a byte, throwing an exception on EOF.
+	 * @param is the input stream
+	 * @return the byte
+	 */
+	private static int read (InputStream is)
+		throws IOException
+	{
+		int ans;
+		
+		ans = is.read ();
+		if (ans < 0)
+			throw new EOFException ("Truncated dump");
+		
+		return ans;
+	}
+	
+	/**
+	 * Fills a byte array, throwing an exception on EOF.
+	 * @param is the input stream
+	 * @param buf the buffer
+	 */
+	private static void readFully (InputStream is, byte buf [])
+		throws IOException
+	{
+		int n, rd;
+		
+		for (n = 0; n < buf.length; n += rd) {
+			rd = is.read (buf, n, buf.length - n);
+			if (rd < 0)
+				throw new EOFException ("Truncated dump");
+		}
+	}
+	
+	@Override
+	public String getType ()
+	{
+		return "application/octet-stream";
+	}
+	
+	@Override
+	public String getExtension ()
+	{
+		return "wkb";
+	}
+}
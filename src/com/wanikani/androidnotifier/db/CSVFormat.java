@@ -1,19 +1,22 @@
 package com.wanikani.androidnotifier.db;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.Date;
 import java.util.Hashtable;
 import java.util.Map;
-import java.util.Set;
+import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteStatement;
 
 import com.wanikani.androidnotifier.db.HistoryDatabase.FactType;
 import com.wanikani.androidnotifier.db.HistoryDatabase.Levels;
@@ -57,11 +60,23 @@ public class CSVFormat implements Format {
 	private static final String DAY_TAG = "Day";
 	
 	private static final int VERSION = 1;
+	
+	/** Size of the output buffer */
+	private static final int BUFSIZE = 16384;
+	
+	/** The compiled separator pattern, used to split rows */
+	private static final Pattern SPLIT = Pattern.compile ("\\s*" + SEPARATOR + "\\s*");
 
 	File file;
 	
 	Context ctxt;
 	
+	/** The row being formatted. Reused for all the rows of an export */
+	private StringBuilder rowbuf;
+	
+	/** Number of cells in the current row */
+	private int cells;
+	
 	private CSVFormat (Context ctxt)
 	{
 		this.ctxt = ctxt;
@@ -76,6 +91,7 @@ public class CSVFormat implements Format {
 		throws IOException, SQLException
 	{
 		HistoryDatabase db;
+		Writer w;
 		
 		synchronized (HistoryDatabase.MUTEX) {
 			db = new HistoryDatabase (ctxt);
@@ -83,25 +99,126 @@ public class CSVFormat implements Format {
 			try {
 				db.openR ();
 			
-				doExport (new PrintStream (os), db);			
+				w = new BufferedWriter (new OutputStreamWriter (os, "UTF-8"), BUFSIZE);
+				rowbuf = new StringBuilder ();
+				doExport (w, db);
+				w.flush ();
 			} finally {
+				rowbuf = null;
 				db.close ();
 			}
 		}
 	}
 	
+	/**
+	 * Imports a file. This is done in a single pass: each row is validated 
+	 * and applied to the database as soon as it is read, inside a single 
+	 * transaction. If something goes wrong (including a malformed row 
+	 * near the end of the file), the transaction is rolled back, so the database
+	 * is either fully updated or left untouched.
+	 * @param file the file to import
+	 * @return the import result
+	 */
 	@Override
 	public ImportResult importFile (File file)
 		throws IOException, SQLException
 	{
-		int day;
+		HistoryDatabase hdb;
+		SQLiteStatement stmt;
+		BufferedReader is;
+		ImportState istate;
+		int version, line, day;
+		String tab [];
+
+		istate = new ImportState ();
+		line = 1;
+		is = new BufferedReader (new FileReader (file));
+		try {
+			version = Integer.parseInt (rdVar (is, VERSION_TAG));
+			if (version < 0 || version > VERSION)
+				throw new IOException ("Unsupported dump version: " + version);
+
+			line++;
+			rdVar (is, DATE_TAG);
+			
+			line++;
+			rdRow (is);
+			
+			synchronized (HistoryDatabase.MUTEX) {
+				hdb = new HistoryDatabase (ctxt);
+				hdb.openW ();
+				stmt = null;
+				hdb.db.beginTransaction ();
+				try {
+					stmt = HistoryDatabase.Facts.prepareInsertDay (hdb.db);
+					day = -1;
+					while (true) {
+						line++;
+						tab = rdRow (is);
+						/* Assume EOF */
+						if (tab == null || tab.length == 0)
+							break;
+						
+						validate (tab, ++day, line);
+						
+						/* Days are sequential, so this is equivalent to filling the gaps */
+						HistoryDatabase.Facts.insertDay (stmt, day);
+						insert (hdb, tab, istate);
+					}
+					
+					while (tab != null) {
+						if (tab.length != 0)
+							throw new IOException ("Trailing stuff at line " + line);
+						line++;
+						tab = rdRow (is);
+					}
+					
+					hdb.db.setTransactionSuccessful ();
+				} finally {
+					hdb.db.endTransaction ();
+					if (stmt != null)
+						stmt.close ();
+					hdb.close ();
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException ("Bad integer at line " + line);
+		} finally {
+			try {
+				is.close ();
+			} catch (IOException e) {
+				/* empty */
+			}
+		}
+		
+		return istate;
+	}
+	
+	/**
+	 * Checks whether a row is well formed.
+	 * @param tab the row
+	 * @param day the expected day
+	 * @param line the line number, for error reporting
+	 * @throws IOException if the row is malformed
+	 * @throws NumberFormatException if some cell is not an integer
+	 */
+	protected void validate (String tab [], int day, int line)
+		throws IOException
+	{
+		int i;
 		
-		day = passOne (file);
+		if (tab.length < 2 || tab [0].length () == 0 || tab [1].length () == 0)
+			throw new IOException ("Expecting at least two columns at line " + line);
 		
-		return passTwo (file, day);
+		if (Integer.parseInt (tab [0]) != day)
+			throw new IOException ("Bad day sequence at line " + line);
+						
+		for (i = 0; i < tab.length; i++)
+			if (tab [i].length () != 0)
+				Integer.parseInt (tab [i]);		
 	}
 	
-	protected void doExport (PrintStream os, HistoryDatabase db)
+	protected void doExport (Writer os, HistoryDatabase db)
 		throws IOException, SQLException
 	{
 		Map<Integer, HistoryDatabase.LevelInfo> levelInfo;
@@ -155,115 +272,7 @@ public class CSVFormat implements Format {
 		}
 	}
 	
-	protected int passOne (File file)
-		throws IOException
-	{
-		BufferedReader is;
-		int version, line, day, i;
-		String tab [];
-
-		line = 1;
-		is = new BufferedReader (new FileReader (file));
-		try {
-			version = Integer.parseInt (rdVar (is, VERSION_TAG));
-			if (version < 0 || version > VERSION)
-				throw new IOException ("Unsupported dump version: " + version);
-
-			line++;
-			rdVar (is, DATE_TAG);
-			
-			line++;
-			rdRow (is);
-			
-			day = -1;
-			while (true) {
-				line++;
-				tab = rdRow (is);
-				if (tab == null)
-					break;
-				
-				/* Assume EOF */
-				if (tab.length == 0)
-					break;
-				
-				if (tab.length < 2 || tab [0].length () == 0 || tab [1].length () == 0)
-					throw new IOException ("Expecting at least two columns at line " + line);
-				
-				if (Integer.parseInt (tab [0]) != ++day)
-					throw new IOException ("Bad day sequence at line " + line);
-								
-				for (i = 0; i < tab.length; i++)
-					if (tab [i].length () != 0)
-						Integer.parseInt (tab [i]);				
-			}
-			
-			while (tab != null) {
-				if (tab.length != 0)
-					throw new IOException ("Trailing stuff at line " + line);
-				line++;
-				tab = rdRow (is);
-			}
-			
-		} catch (NumberFormatException e) {
-			throw new IOException ("Bad integer at line " + line);
-		} finally {
-			try {
-				is.close ();
-			} catch (IOException e) {
-				/* empty */
-			}
-		}
-		
-		return day;
-	}
-		
-	protected ImportState passTwo (File file, int day)
-			throws IOException, SQLException
-	{
-		HistoryDatabase hdb;
-		BufferedReader is;
-		Set<Integer> recl;
-		String tab [];
-		ImportState istate;
-			
-		istate = new ImportState ();
-		
-		if (day < 0)
-			return istate;
-		
-		is = new BufferedReader (new FileReader (file));
-		try {
-			rdVar (is, VERSION_TAG);
-			rdVar (is, DATE_TAG);
-			rdRow (is);
-			synchronized (HistoryDatabase.MUTEX) {
-				hdb = new HistoryDatabase (ctxt);
-				hdb.openW ();
-				try {
-					HistoryDatabase.Facts.fillGapsThoroughly (hdb.db, day);
-					recl = HistoryDatabase.Levels.getReconstructedLevels (hdb.db);
-					while (true) {
-						tab = rdRow (is);
-						if (tab == null || tab.length == 0)
-							break;
-						insert (hdb, recl, tab, istate);
-					}
-				} finally {
-					hdb.close ();
-				}
-			}
-		} finally {
-			try {
-				is.close ();
-			} catch (IOException e) {
-					/* empty */
-			}
-		}
-		
-		return istate;
-	}		
-	
-	protected void var (PrintStream os, String tag, Object value)
+	protected void var (Writer os, String tag, Object value)
 		throws IOException
 	{
 		row (os, tag, value);
@@ -281,7 +290,8 @@ public class CSVFormat implements Format {
 		return tab [1];
 	}
 
-	protected void heading (PrintStream os)
+	protected void heading (Writer os)
+		throws IOException
 	{
 		row (os, DAY_TAG, "Level",
 			 "Apprentice Radicals", "Guru Radicals", "Master Radicals", 
@@ -293,38 +303,70 @@ public class CSVFormat implements Format {
 			 "Vacation days");			 
 	}
 	
-	protected void dumpComplete (PrintStream os, int day, int level, HistoryDatabase.LevelInfo li, SRSDistribution srs)
+	protected void dumpComplete (Writer os, int day, int level, HistoryDatabase.LevelInfo li, SRSDistribution srs)
+		throws IOException
+	{
+		cell (day);
+		cell (level);
+		dumpComplete (srs.apprentice.radicals, srs.guru.radicals, srs.master.radicals,
+					  srs.enlighten.radicals, srs.burned.radicals);
+		dumpComplete (srs.apprentice.kanji, srs.guru.kanji, srs.master.kanji,
+					  srs.enlighten.kanji, srs.burned.kanji);
+		dumpComplete (srs.apprentice.vocabulary, srs.guru.vocabulary, srs.master.vocabulary,
+					  srs.enlighten.vocabulary, srs.burned.vocabulary);
+		dumpVacation (li);
+		endRow (os);
+	}
+	
+	private void dumpComplete (int apprentice, int guru, int master, int enlighten, int burned)
 	{
-		row (os, day, level,
-			 srs.apprentice.radicals, srs.guru.radicals, srs.master.radicals,
-			 srs.enlighten.radicals, srs.burned.radicals,
-			 srs.apprentice.radicals + srs.guru.radicals + srs.master.radicals + srs.enlighten.radicals,
-			 
-			 srs.apprentice.kanji, srs.guru.kanji, srs.master.kanji,
-			 srs.enlighten.kanji, srs.burned.kanji,
-			 srs.apprentice.kanji + srs.guru.kanji + srs.master.kanji + srs.enlighten.kanji,
-			 
-			 srs.apprentice.vocabulary, srs.guru.vocabulary, srs.master.vocabulary,
-			 srs.enlighten.vocabulary, srs.burned.vocabulary,
-			 srs.apprentice.vocabulary + srs.guru.vocabulary + srs.master.vocabulary + srs.enlighten.vocabulary,
-			 li != null ? li.vacation : "");
+		cell (apprentice);
+		cell (guru);
+		cell (master);
+		cell (enlighten);
+		cell (burned);
+		cell (apprentice + guru + master + enlighten);
 	}
 	
-	protected void dumpPartial (PrintStream os, int day, int level, HistoryDatabase.LevelInfo li, SRSDistribution srs)
+	protected void dumpPartial (Writer os, int day, int level, HistoryDatabase.LevelInfo li, SRSDistribution srs)
+		throws IOException
 	{
-		row (os, day, level,
-			 null, null, null, null, srs.burned.radicals, srs.apprentice.radicals,
-			 null, null, null, null, srs.burned.kanji, srs.apprentice.kanji,
-			 null, null, null, null, srs.burned.vocabulary, srs.apprentice.vocabulary,
-			 li != null ? li.vacation : "");				
+		cell (day);
+		cell (level);
+		dumpPartial (srs.burned.radicals, srs.apprentice.radicals);
+		dumpPartial (srs.burned.kanji, srs.apprentice.kanji);
+		dumpPartial (srs.burned.vocabulary, srs.apprentice.vocabulary);
+		dumpVacation (li);
+		endRow (os);
 	}
 	
-	protected void dumpMissing (PrintStream os, int day, int level)
+	private void dumpPartial (int burned, int unlocked)
 	{
-		row (os, day, level);
+		int i;
+		
+		for (i = 0; i < 4; i++)
+			cell ();
+		cell (burned);
+		cell (unlocked);
 	}
 	
-	protected void insert (HistoryDatabase hdb, Set<Integer> recl, String tab [], ImportState istate)
+	private void dumpVacation (HistoryDatabase.LevelInfo li)
+	{
+		if (li != null)
+			cell (li.vacation);
+		else
+			cell ();
+	}
+	
+	protected void dumpMissing (Writer os, int day, int level)
+		throws IOException
+	{
+		cell (day);
+		cell (level);
+		endRow (os);
+	}
+	
+	protected void insert (HistoryDatabase hdb, String tab [], ImportState istate)
 	{	
 		int day, level, vacation;
 		SRSDistribution srs;
@@ -385,19 +427,54 @@ public class CSVFormat implements Format {
 		return Integer.parseInt (tab [col]);
 	}
 
-	protected void row (PrintStream os, Object... data)
+	protected void row (Writer os, Object... data)
+		throws IOException
 	{
 		int i;
 		
 		for (i = 0; i < data.length; i++) {
 			if (i > 0)
-				os.print (SEPARATOR);
+				os.write (SEPARATOR);
 			if (data [i] != null)
-				os.print (wrap (data [i]));
+				os.write (wrap (data [i]));
 		}
 		
-		os.print ("\r\n");
+		os.write ("\r\n");
 	}	
+	
+	/**
+	 * Appends an integer cell to the current row. Unlike {@link #row(Writer, Object...)},
+	 * this does not box values or create intermediate strings.
+	 * @param value the value
+	 */
+	private void cell (int value)
+	{
+		cell ();
+		rowbuf.append (value);
+	}
+	
+	/**
+	 * Appends an empty cell to the current row.
+	 */
+	private void cell ()
+	{
+		if (cells++ > 0)
+			rowbuf.append (SEPARATOR);
+	}
+	
+	/**
+	 * Writes the current row, and clears the buffer to make room
+	 * for the next one. 
+	 * @param os the output writer
+	 */
+	private void endRow (Writer os)
+		throws IOException
+	{
+		rowbuf.append ("\r\n");
+		os.append (rowbuf);
+		rowbuf.setLength (0);
+		cells = 0;
+	}
 
 	protected String [] rdRow (BufferedReader is)
 		throws IOException
@@ -408,7 +485,7 @@ public class CSVFormat implements Format {
 		if (line == null)
 			return null;
 		
-		return line.split ("\\s*" + SEPARATOR + "\\s*");
+		return SPLIT.split (line);
 	}
 	
 	private String wrap (Object o)
@@ -451,4 +528,9 @@ public class CSVFormat implements Format {
 		return "text/csv";
 	}
 	
+	public String getExtension ()
+	{
+		return "csv";
+	}
+	
 }
@@ -0,0 +1,208 @@
+package com.wanikani.androidnotifier.db;
+
+import java.io.PrintWriter;
+import java.util.Date;
+
+import com.wanikani.wklib.Connection;
+import com.wanikani.wklib.Item;
+
+/*
+ *  Copyright (c) 2013 Alberto Cuda
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Instrumentation of the items cache. It collects, since the process was started:
+ * <ul>
+ * 	<li>How {@link Connection} requests are served (cache hits, misses,
+ * 		stale data refetched or revalidated), for each item type and level bucket
+ * 	<li>How long {@link ItemsDatabase} reads and writes take
+ * </ul>
+ * Figures are kept in memory only, so they are cheap to collect. They can
+ * be shown by the meters screen or dumped to a file.
+ */
+public class CacheStats {
+	
+	/**
+	 * Timing of a class of DB operations.
+	 */
+	public static class Timing {
+		
+		/// Number of operations
+		public int count;
+		
+		/// Number of items read or written
+		public long items;
+		
+		/// Overall time, in milliseconds
+		public long total;
+		
+		/// Slowest operation, in milliseconds
+		public long max;
+		
+		private void add (long elapsed, int items)
+		{
+			count++;
+			this.items += items;
+			total += elapsed;
+			max = Math.max (max, elapsed);
+		}
+		
+		public long average ()
+		{
+			return count > 0 ? total / count : 0;
+		}
+	}
+	
+	/** Number of levels in each level bucket */
+	public static final int BUCKET_SIZE = 10;
+	
+	/** Number of level buckets. The last one includes all the higher levels too */
+	public static final int BUCKETS = 6;
+	
+	/// The singleton
+	private static final CacheStats instance = new CacheStats ();
+	
+	/// Counters, indexed by item type, level bucket and outcome
+	private int counters [][][];
+	
+	/// DB reads
+	private Timing reads;
+	
+	/// DB writes
+	private Timing writes;
+	
+	/// When data collection started
+	private Date since;
+	
+	private CacheStats ()
+	{
+		reset ();
+	}
+	
+	public static CacheStats get ()
+	{
+		return instance;
+	}
+	
+	public synchronized void reset ()
+	{
+		counters = new int [Item.Type.values ().length][BUCKETS][Connection.CacheOutcome.values ().length];
+		reads = new Timing ();
+		writes = new Timing ();
+		since = new Date ();
+	}
+	
+	private static int bucket (int level)
+	{
+		return Math.max (0, Math.min ((level - 1) / BUCKET_SIZE, BUCKETS - 1));
+	}
+	
+	public synchronized void cache (Item.Type type, int level, Connection.CacheOutcome outcome)
+	{
+		counters [type.ordinal ()][bucket (level)][outcome.ordinal ()]++;
+	}
+	
+	synchronized void read (long elapsed, int items)
+	{
+		reads.add (elapsed, items);
+	}
+	
+	synchronized void write (long elapsed, int items)
+	{
+		writes.add (elapsed, items);
+	}
+	
+	/**
+	 * Returns the number of requests for a given item type and outcome.
+	 * @param type the item type
+	 * @param outcome the outcome
+	 * @return the number of requests, across all level buckets
+	 */
+	public synchronized int getCount (Item.Type type, Connection.CacheOutcome outcome)
+	{
+		int i, ans;
+		
+		ans = 0;
+		for (i = 0; i < BUCKETS; i++)
+			ans += counters [type.ordinal ()][i][outcome.ordinal ()];
+		
+		return ans;
+	}
+	
+	public synchronized Timing getReads ()
+	{
+		return copy (reads);
+	}
+	
+	public synchronized Timing getWrites ()
+	{
+		return copy (writes);
+	}
+	
+	private static Timing copy (Timing t)
+	{
+		Timing ans;
+		
+		ans = new Timing ();
+		ans.count = t.count;
+		ans.items = t.items;
+		ans.total = t.total;
+		ans.max = t.max;
+		
+		return ans;
+	}
+	
+	/**
+	 * Dumps all the figures in CSV format, including the breakdown by level bucket.
+	 * @param pw the output writer
+	 * @param size the size of the cache, in bytes
+	 */
+	public synchronized void dump (PrintWriter pw, long size)
+	{
+		Connection.CacheOutcome outcomes [];
+		int i, j;
+		
+		outcomes = Connection.CacheOutcome.values ();
+		
+		pw.println ("# Items cache statistics since " + since);
+		pw.println ("# Cache size (bytes): " + size);
+		pw.print ("type,levels");
+		for (Connection.CacheOutcome o : outcomes)
+			pw.print ("," + o.name ().toLowerCase ());
+		pw.println ();
+		for (Item.Type type : Item.Type.values ()) {
+			for (i = 0; i < BUCKETS; i++) {
+				pw.print (type.name ().toLowerCase () + "," + (i * BUCKET_SIZE + 1) + "-");
+				if (i < BUCKETS - 1)
+					pw.print ((i + 1) * BUCKET_SIZE);
+				for (j = 0; j < outcomes.length; j++)
+					pw.print ("," + counters [type.ordinal ()][i][j]);
+				pw.println ();
+			}
+		}
+		
+		pw.println ();
+		pw.println ("operation,count,items,total_ms,avg_ms,max_ms");
+		dump (pw, "read", reads);
+		dump (pw, "write", writes);
+	}
+	
+	private static void dump (PrintWriter pw, String op, Timing t)
+	{
+		pw.println (op + "," + t.count + "," + t.items + "," + t.total + "," +
+					t.average () + "," + t.max);
+	}
+}
@@ -0,0 +1,285 @@
+package com.wanikani.androidnotifier.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/*
+ *  Copyright (c) 2013 Alberto Cuda
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The set of CJK code points a font can render. It is built by reading the
+ * character map (<tt>cmap</tt> table) of a TrueType or OpenType file, so no
+ * trial rendering is needed. Only the range between {@link #FIRST} and {@link #LAST}
+ * (CJK punctuation, kana, ideographs and fullwidth forms) is indexed: code points
+ * outside that range are assumed to be covered by any font.
+ */
+public class FontCoverage {
+	
+	/** First indexed code point */
+	public static final int FIRST = 0x3000;
+	
+	/** Last indexed code point */
+	public static final int LAST = 0xFFFF;
+	
+	/** Tag of the font collection header */
+	private static final int TAG_TTCF = 0x74746366;
+	
+	/** Tag of the character map table */
+	private static final int TAG_CMAP = 0x636d6170;
+	
+	/** The bitmap, one bit for each code point between {@link #FIRST} and {@link #LAST} */
+	private byte bits [];
+	
+	/**
+	 * Constructor
+	 * @param bits the bitmap
+	 */
+	private FontCoverage (byte bits [])
+	{
+		this.bits = bits;
+	}
+	
+	/**
+	 * Constructor. Builds an empty set
+	 */
+	private FontCoverage ()
+	{
+		this (new byte [(LAST - FIRST + 8) / 8]);
+	}
+	
+	/**
+	 * Rebuilds a set from the output of {@link #toByteArray()}.
+	 * @param bits the bitmap
+	 * @return the set, or <code>null</code> if the bitmap is not valid
+	 */
+	public static FontCoverage fromByteArray (byte bits [])
+	{
+		if (bits == null || bits.length != (LAST - FIRST + 8) / 8)
+			return null;
+		
+		return new FontCoverage (bits);
+	}
+	
+	/**
+	 * Returns the bitmap, for persistence.
+	 * @return the bitmap
+	 */
+	public byte [] toByteArray ()
+	{
+		return bits;
+	}
+	
+	private void add (int first, int last)
+	{
+		int cp;
+		
+		first = Math.max (first, FIRST);
+		last = Math.min (last, LAST);
+		for (cp = first; cp <= last; cp++)
+			bits [(cp - FIRST) >> 3] |= 1 << ((cp - FIRST) & 7);
+	}
+	
+	/**
+	 * Tells whether a code point is covered.
+	 * @param cp the code point
+	 * @return <code>true</code> if it is covered, or it is not indexed
+	 */
+	public boolean covers (int cp)
+	{
+		if (cp < FIRST || cp > LAST)
+			return true;
+		
+		return (bits [(cp - FIRST) >> 3] & (1 << ((cp - FIRST) & 7))) != 0;
+	}
+	
+	/**
+	 * Tells whether all the characters of a string are covered.
+	 * @param s the string
+	 * @return <code>true</code> if all of them are
+	 */
+	public boolean covers (String s)
+	{
+		int i;
+		
+		if (s == null)
+			return true;
+		
+		for (i = 0; i < s.length (); i++)
+			if (!covers (s.charAt (i)))
+				return false;
+		
+		return true;
+	}
+	
+	/**
+	 * Reads the character map of a font file. If the file is a collection,
+	 * the first font is used.
+	 * @param file the font file
+	 * @return the coverage
+	 * @throws IOException if the file can't be read or is not a valid font
+	 */
+	public static FontCoverage read (File file)
+		throws IOException
+	{
+		RandomAccessFile raf;
+		ByteBuffer cmap;
+		
+		raf = new RandomAccessFile (file, "r");
+		try {
+			cmap = readCmap (raf);
+		} finally {
+			raf.close ();
+		}
+		
+		try {
+			return parse (cmap);
+		} catch (BufferUnderflowException e) {
+			throw new IOException ("Bad cmap table");
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException ("Bad cmap table");
+		} catch (IllegalArgumentException e) {
+			throw new IOException ("Bad cmap table");
+		}
+	}
+	
+	private static ByteBuffer readCmap (RandomAccessFile raf)
+		throws IOException
+	{
+		byte data [];
+		int i, tables, tag;
+		long offset, length;
+		
+		offset = 0;
+		if (raf.readInt () == TAG_TTCF) {
+			raf.seek (12);
+			offset = raf.readInt () & 0xffffffffL;
+		}
+		
+		raf.seek (offset + 4);
+		tables = raf.readUnsignedShort ();
+		for (i = 0; i < tables; i++) {
+			raf.seek (offset + 12 + i * 16);
+			tag = raf.readInt ();
+			if (tag != TAG_CMAP)
+				continue;
+			
+			raf.readInt ();		/* checksum */
+			offset = raf.readInt () & 0xffffffffL;
+			length = raf.readInt () & 0xffffffffL;
+			if (length > raf.length ())
+				throw new IOException ("Bad cmap length");
+			
+			data = new byte [(int) length];
+			raf.seek (offset);
+			raf.readFully (data);
+			
+			return ByteBuffer.wrap (data);
+		}
+		
+		throw new IOException ("No cmap table");
+	}
+	
+	/**
+	 * Parses the character map. We look for the best unicode subtable
+	 * (format 12, which covers all the planes, or format 4, which covers the BMP only).
+	 * @param cmap the table
+	 * @return the coverage
+	 * @throws IOException if no suitable subtable is found
+	 */
+	private static FontCoverage parse (ByteBuffer cmap)
+		throws IOException
+	{
+		FontCoverage ans;
+		int i, n, platform, encoding, offset, format, best4, best12;
+		
+		best4 = best12 = -1;
+		n = cmap.getShort (2) & 0xffff;
+		for (i = 0; i < n; i++) {
+			platform = cmap.getShort (4 + i * 8) & 0xffff;
+			encoding = cmap.getShort (6 + i * 8) & 0xffff;
+			offset = cmap.getInt (8 + i * 8);
+			if (platform != 0 && !(platform == 3 && (encoding == 1 || encoding == 10)))
+				continue;
+			
+			format = cmap.getShort (offset) & 0xffff;
+			if (format == 4 && best4 < 0)
+				best4 = offset;
+			else if (format == 12 && best12 < 0)
+				best12 = offset;
+		}
+		
+		ans = new FontCoverage ();
+		if (best12 >= 0)
+			parse12 (ans, cmap, best12);
+		else if (best4 >= 0)
+			parse4 (ans, cmap, best4);
+		else
+			throw new IOException ("No unicode cmap");
+		
+		return ans;
+	}
+	
+	private static void parse4 (FontCoverage fc, ByteBuffer cmap, int base)
+	{
+		int i, segs, ends, starts, deltas, ranges;
+		int start, end, delta, range, cp, glyph;
+		
+		segs = (cmap.getShort (base + 6) & 0xffff) / 2;
+		ends = base + 14;
+		starts = ends + segs * 2 + 2;
+		deltas = starts + segs * 2;
+		ranges = deltas + segs * 2;
+		
+		for (i = 0; i < segs; i++) {
+			end = cmap.getShort (ends + i * 2) & 0xffff;
+			if (end < FIRST)
+				continue;
+			start = cmap.getShort (starts + i * 2) & 0xffff;
+			delta = cmap.getShort (deltas + i * 2);
+			range = cmap.getShort (ranges + i * 2) & 0xffff;
+			if (range == 0) {
+				fc.add (start, end);
+				continue;
+			}
+			
+			/* Glyph IDs are looked up in the glyph array, and 0 means missing glyph */
+			for (cp = Math.max (start, FIRST); cp <= end && cp <= LAST; cp++) {
+				glyph = cmap.getShort (ranges + i * 2 + range + (cp - start) * 2) & 0xffff;
+				if (glyph != 0 && ((glyph + delta) & 0xffff) != 0)
+					fc.add (cp, cp);
+			}
+		}
+	}
+	
+	private static void parse12 (FontCoverage fc, ByteBuffer cmap, int base)
+	{
+		long i, groups, start, end;
+		int ofs;
+		
+		groups = cmap.getInt (base + 12) & 0xffffffffL;
+		for (i = 0; i < groups; i++) {
+			ofs = (int) (base + 16 + i * 12);
+			start = cmap.getInt (ofs) & 0xffffffffL;
+			end = cmap.getInt (ofs + 4) & 0xffffffffL;
+			if (end >= FIRST && start <= LAST)
+				fc.add ((int) start, (int) Math.min (end, LAST));
+		}
+	}
+}
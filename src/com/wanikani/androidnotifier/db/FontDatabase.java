@@ -1,8 +1,11 @@
 package com.wanikani.androidnotifier.db;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import android.content.ContentValues;
@@ -12,6 +15,7 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Typeface;
+import android.os.AsyncTask;
 
 /* 
  *  Copyright (c) 2013 Alberto Cuda
@@ -129,6 +133,10 @@ public class FontDatabase {
 		public boolean available;
 		
 		public boolean wellknown;
+		
+		/// The CJK code points this font covers. <code>null</code> if it is the system font
+		/// or the coverage has not been computed yet: in both cases we assume it covers everything
+		public FontCoverage coverage;
 						
 		public FontEntry (int id, String name, String filename, String url, 
 						  boolean enabled, boolean available, boolean wellknown)
@@ -155,15 +163,16 @@ public class FontDatabase {
 		
 		public Typeface load ()
 		{
-			try {
-				if (filename != null && face == null)
-					face = Typeface.createFromFile (filename);
-			} catch (Exception e) {
-				/* empty */
-			}
+			if (filename != null && face == null)
+				face = getTypeface (filename);
 			
 			return face;
 		}
+		
+		public boolean covers (String text)
+		{
+			return coverage == null || coverage.covers (text);
+		}
 	}
 	
 	public static class FontBox {
@@ -172,6 +181,9 @@ public class FontDatabase {
 		
 		List<FontEntry> fes;
 		
+		/// The font returned by the last call to {@link #nextFont()} or {@link #nextFont(String)}
+		FontEntry current;
+		
 		private FontBox (List<FontEntry> fes)
 		{
 			this.fes = fes;
@@ -179,16 +191,56 @@ public class FontDatabase {
 		
 		public Typeface nextFont ()
 		{
-			Typeface ans;
-			
 			if (fes == null || fes.isEmpty ())
 				return null;
 			
-			ans = fes.get (idx %= fes.size ()).load ();
+			current = fes.get (idx %= fes.size ());
 			
 			idx++;
 			
-			return ans;
+			return current.load ();
+		}
+		
+		/**
+		 * Returns the next font, in round robin order, that can render a string.
+		 * @param text the string
+		 * @return the typeface, or <code>null</code> if the system font should be used
+		 */
+		public Typeface nextFont (String text)
+		{
+			int i;
+			
+			if (fes == null || fes.isEmpty ())
+				return null;
+			
+			for (i = 0; i < fes.size (); i++) {
+				current = fes.get (idx++ % fes.size ());
+				if (current.covers (text))
+					return current.load ();
+			}
+			
+			current = null;
+			
+			return null;
+		}
+		
+		/**
+		 * Returns a font that can render a string, without moving to the next font
+		 * if the current one is fine.
+		 * @param text the string
+		 * @return the typeface, or <code>null</code> if the system font should be used
+		 */
+		public Typeface getFont (String text)
+		{
+			if (current != null && current.covers (text))
+				return current.load ();
+			
+			if (fes != null)
+				for (FontEntry fe : fes)
+					if (fe.covers (text))
+						return fe.load ();
+			
+			return null;
 		}
 		
 		public boolean isTrivial ()
@@ -216,6 +268,8 @@ public class FontDatabase {
 		
 		private static final String C_WELL_KNOWN = "wellknown";
 
+		private static final String C_COVERAGE = "coverage";
+
 		/** The SQL create statement */
 		private static final String SQL_CREATE = 
 				"CREATE TABLE " + TABLE + " (" +
@@ -225,9 +279,14 @@ public class FontDatabase {
 						C_URL + " TEXT NULL," +
 						C_ENABLED + " INTEGER NOT NULL," +
 						C_AVAILABLE + " INTEGER NOT NULL," +
-						C_WELL_KNOWN + " INTEGER NOT NULL" +
+						C_WELL_KNOWN + " INTEGER NOT NULL," +
+						C_COVERAGE + " BLOB NULL" +
 				")";
 
+		/** Adds the coverage column (version 2) */
+		private static final String SQL_ADD_COVERAGE =
+				"ALTER TABLE " + TABLE + " ADD COLUMN " + C_COVERAGE + " BLOB NULL";
+
 		/** The SQL drop statement */
 		private static final String SQL_DROP = 
 				"DROP TABLE IF EXISTS " + TABLE;
@@ -256,23 +315,38 @@ public class FontDatabase {
 			db.execSQL (SQL_DROP);
 		}
 		
+		/**
+		 * Upgrades the table
+		 * @param db the database
+		 * @param oldv the old DB version
+		 */
+		public static void onUpgrade (SQLiteDatabase db, int oldv)
+		{
+			if (oldv < 2)
+				db.execSQL (SQL_ADD_COVERAGE);
+		}
+		
 		public static List<FontEntry> getFonts (SQLiteDatabase db, String where)
 			throws SQLException
 		{
 			List<FontEntry> ans;
 			String cols [];
+			FontEntry fe;
 			Cursor c;
 			
-			cols = new String [] { C_ID, C_NAME, C_FILENAME, C_URL, C_ENABLED, C_AVAILABLE, C_WELL_KNOWN };
+			cols = new String [] { C_ID, C_NAME, C_FILENAME, C_URL, C_ENABLED, C_AVAILABLE, C_WELL_KNOWN, C_COVERAGE };
 			ans = new Vector<FontEntry> ();
 			
 			c = null;
 			try {
 				c = db.query (TABLE, cols, where, null, null, null, C_WELL_KNOWN);
-				while (c.moveToNext ())
-					ans.add (new FontEntry (c.getInt (0), c.getString (1), c.getString (2), 
-											c.getString (3), c.getInt (4) > 0,
-											c.getInt (5) > 0, c.getInt (6) > 0));
+				while (c.moveToNext ()) {
+					fe = new FontEntry (c.getInt (0), c.getString (1), c.getString (2), 
+										c.getString (3), c.getInt (4) > 0,
+										c.getInt (5) > 0, c.getInt (6) > 0);
+					fe.coverage = FontCoverage.fromByteArray (c.getBlob (7));
+					ans.add (fe);
+				}
 			} finally {
 				if (c != null)
 					c.close ();
@@ -328,6 +402,16 @@ public class FontDatabase {
 			cv = new ContentValues ();
 			cv.put (C_FILENAME, fe.filename);
 			cv.put (C_AVAILABLE, available ? 1 : 0);			
+			cv.putNull (C_COVERAGE);
+			db.update (TABLE, cv, SQL_WHERE_ID, new String [] { Integer.toString (fe.id) } );
+		}
+
+		public static void setCoverage (SQLiteDatabase db, FontEntry fe)
+		{
+			ContentValues cv;
+			
+			cv = new ContentValues ();
+			cv.put (C_COVERAGE, fe.coverage != null ? fe.coverage.toByteArray () : null);
 			db.update (TABLE, cv, SQL_WHERE_ID, new String [] { Integer.toString (fe.id) } );
 		}
 
@@ -365,7 +449,7 @@ public class FontDatabase {
 	static class OpenHelper extends SQLiteOpenHelper {
 		
 		/** DB Version */
-		private static final int VERSION = 1;
+		private static final int VERSION = 2;
 		
 		/** The db file */
 		private static final String NAME = "fonts.db";
@@ -405,6 +489,7 @@ public class FontDatabase {
 		@Override
 		public void onUpgrade (SQLiteDatabase db, int oldv, int newv)
 		{
+			FontTable.onUpgrade (db, oldv);
 			upgradeFrom (db, oldv);
 		}
 		
@@ -439,6 +524,48 @@ public class FontDatabase {
 		
 	public static final Object MUTEX = new Object ();
 	
+	/**
+	 * Loads the typefaces of the enabled fonts and computes the coverage
+	 * of those that don't have it yet. Typefaces are cached in memory,
+	 * while coverage information is saved into the DB, so the UI thread
+	 * can pick a suitable font for each glyph without loading or inspecting
+	 * font files.
+	 */
+	private static class PreloadTask extends AsyncTask<Void, Void, Void> {
+		
+		/// The context
+		Context ctxt;
+		
+		public PreloadTask (Context ctxt)
+		{
+			this.ctxt = ctxt.getApplicationContext ();
+		}
+		
+		@Override
+		protected Void doInBackground (Void... v)
+		{
+			for (FontEntry fe : getEnabledFonts (ctxt)) {
+				if (fe.filename == null)
+					continue;
+				
+				if (fe.coverage == null) {
+					try {
+						fe.coverage = FontCoverage.read (new File (fe.filename));
+						setCoverage (ctxt, fe);
+					} catch (IOException e) {
+						/* Assume it covers everything */
+					}
+				}
+				fe.load ();
+			}
+			
+			return null;
+		}
+	}
+	
+	/// Typefaces loaded so far, indexed by filename
+	private static final Map<String, Typeface> faces = new HashMap<String, Typeface> ();
+	
 	/**
 	 * Cosntructor
 	 * @param ctxt the context
@@ -523,6 +650,48 @@ public class FontDatabase {
 	{
 		return new FontBox (getEnabledFonts (ctxt));
 	}
+	
+	/**
+	 * Starts loading the enabled fonts in background. Must be called on the UI thread.
+	 * @param ctxt the context
+	 */
+	public static void preload (Context ctxt)
+	{
+		new PreloadTask (ctxt).execute ();
+	}
+	
+	/**
+	 * Returns the typeface stored in a file. Typefaces are loaded only once per process.
+	 * @param filename the font file
+	 * @return the typeface, or <code>null</code> if it can't be loaded
+	 */
+	static Typeface getTypeface (String filename)
+	{
+		Typeface ans;
+		
+		synchronized (faces) {
+			ans = faces.get (filename);
+			if (ans == null) {
+				try {
+					ans = Typeface.createFromFile (filename);
+					faces.put (filename, ans);
+				} catch (Exception e) {
+					/* empty */
+				}
+			}
+		}
+		
+		return ans;
+	}
+	
+	private static void forget (FontEntry fe)
+	{
+		if (fe.filename != null)
+			synchronized (faces) {
+				faces.remove (fe.filename);
+			}
+		fe.coverage = null;
+	}
 
 	public static void delete (Context ctxt, FontEntry fe)
 	{
@@ -532,6 +701,7 @@ public class FontDatabase {
 			fdb = new FontDatabase (ctxt);
 			fdb.openW ();
 			try {
+				forget (fe);
 				if (fe.wellknown)
 					FontTable.setAvailable (fdb.db, fe, false);
 				else
@@ -568,6 +738,7 @@ public class FontDatabase {
 				if (fe.id == -1)
 					FontTable.insertFont (fdb.db, fe.name, fe.filename, fe.url, false, available, false);
 				
+				forget (fe);
 				FontTable.setAvailable (fdb.db, fe, available);
 			} finally {
 				fdb.close ();
@@ -575,6 +746,21 @@ public class FontDatabase {
 		}
 	}
 	
+	public static void setCoverage (Context ctxt, FontEntry fe)
+	{
+		FontDatabase fdb;
+
+		synchronized (MUTEX) {
+			fdb = new FontDatabase (ctxt);
+			fdb.openW ();
+			try {
+				FontTable.setCoverage (fdb.db, fe);
+			} finally {
+				fdb.close ();
+			}
+		}
+	}
+	
 	public static boolean insertFixDuplicates (Context ctxt, FontEntry fe, boolean available)
 	{
 		String bname;
@@ -46,4 +46,10 @@ public interface Format {
 		throws IOException, SQLException;
 	
 	public String getType ();
+	
+	/**
+	 * Returns the file extension that should be used for exported files
+	 * @return the extension, without the dot
+	 */
+	public String getExtension ();
 }
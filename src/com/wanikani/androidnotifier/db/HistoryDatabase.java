@@ -47,6 +47,8 @@ import com.wanikani.wklib.Vocabulary;
  * <li>The facts table, that records all the SRS distribution state for each day
  * <li>The levels table, associating each level to the the day the user levelled up
  * </ul>   
+ * A third, single row, table ({@link Stats}) keeps the maxima of the facts table
+ * up to date, so {@link CoreStats} can be retrieved without scanning the facts.
  * In addition to these tables, this class creates an auxilary (and temporary) table
  * to perform item reconstruction. We do this to minimize the consequences of
  * an item reconstruction going wrong: the actual update of the facts table is
@@ -256,6 +258,10 @@ public class HistoryDatabase {
 		private static final int CX_BURNED_VOCAB = 14;
 		/** Unlocked vocab items column index */
 		private static final int CX_UNLOCKED_VOCAB = 15;
+		
+		/** Number of data columns (i.e. all the columns but the day), 
+		 *  as returned by {@link #getColumns(Cursor, int[][], int)} */
+		public static final int DATA_COLUMNS = CX_UNLOCKED_VOCAB;
 
 		/** The SQL create statement */
 		private static final String SQL_CREATE = 
@@ -294,6 +300,16 @@ public class HistoryDatabase {
 		private static final String SQL_INSERT_DAY =
 				"INSERT OR IGNORE INTO " + TABLE + " (" + C_DAY + ") VALUES (?)";
 		
+		/** An SQL query returning the gaps before a given day. Each row
+		 *  contains the first missing day of a gap, and the first existing
+		 *  day after the gap (which is null for the last gap) */
+		private static final String SQL_GAPS =
+				"SELECT a." + C_DAY + " + 1, " +
+				"(SELECT MIN(b." + C_DAY + ") FROM " + TABLE + " b WHERE b." + C_DAY + " > a." + C_DAY + ") " +
+				"FROM " + TABLE + " a " +
+				"WHERE a." + C_DAY + " < ? AND NOT EXISTS " +
+				"(SELECT 1 FROM " + TABLE + " c WHERE c." + C_DAY + " = a." + C_DAY + " + 1)";
+		
 		/** Where condition, selecting records between two days */
 		private static final String WHERE_DAY_BETWEEN = 
 				C_DAY + " BETWEEN ? AND ? ";
@@ -348,10 +364,9 @@ public class HistoryDatabase {
 		 */
 		public static void fillGap (SQLiteDatabase db, int day)
 		{
-			SQLiteStatement stmt;
 			String cols [];
 			Cursor c;
-			int i, n;
+			int n;
 			
 			cols = new String [] { "MAX(" + C_DAY + ")" };
 			
@@ -361,11 +376,7 @@ public class HistoryDatabase {
 			try {
 				if (c.moveToNext ()) {
 					n = c.isNull (0) ? -1 : (int) c.getLong (0);
-					stmt = db.compileStatement (SQL_INSERT_DAY);
-					for (i = n + 1; i < day; i++) {
-						stmt.bindLong (1, i);
-						stmt.executeInsert ();
-					}
+					insertDays (db, n + 1, day - 1);
 				}
 			} finally {
 				c.close ();
@@ -375,7 +386,8 @@ public class HistoryDatabase {
 		/**
 		 * Fills all the gaps in the database. This (maintenance) method 
 		 * goes through all the table and, if some day is missing in the sequence,
-		 * it adds it as an empty record
+		 * it adds it as an empty record. Gaps are located with a single query,
+		 * so only the missing days are actually inserted.
 		 * @param db the database
 		 * @param day the last day that should be present in the sequence
 		 * @throws SQLException
@@ -383,33 +395,104 @@ public class HistoryDatabase {
 		public static void fillGapsThoroughly (SQLiteDatabase db, int day)
 			throws SQLException
 		{
-			SQLiteStatement stmt;
 			String cols [], args [];
 			Cursor c;
-			int i;
+			int from, to;
 						
-			cols = new String [] { " COUNT (*)" };
+			cols = new String [] { " COUNT (*)", "MIN(" + C_DAY + ")" };
 			args = new String [] { Integer.toString (day) };
 		 	
-			/* First of all we must make sure that gaps do exist */
+			db.beginTransaction ();
 			c = null;
 			try {
+				/* First of all we must make sure that gaps do exist */
 				c = db.query (TABLE, cols, WHERE_DAY_LTE, args, null, null, null);
-				if (c.moveToNext () && !c.isNull (0)) {
-					if (c.getInt (0) == day + 1)
-						return;
+				if (!c.moveToNext () || c.isNull (1)) {
+					insertDays (db, 0, day);
+					db.setTransactionSuccessful ();
+					return;
+				}
+				if (c.getInt (0) == day + 1) {
+					db.setTransactionSuccessful ();
+					return;
 				}
+				
+				insertDays (db, 0, c.getInt (1) - 1);
+				c.close ();
+				
+				c = db.rawQuery (SQL_GAPS, args);
+				while (c.moveToNext ()) {
+					from = c.getInt (0);
+					to = c.isNull (1) ? day : Math.min (c.getInt (1) - 1, day);
+					insertDays (db, from, to);
+				}
+				
+				db.setTransactionSuccessful ();
 			} finally {
 				if (c != null)
 					c.close ();
-			}
+				db.endTransaction ();
+			}			
+		}
+		
+		/**
+		 * Compiles the statement that adds an empty record, if missing. 
+		 * This is meant for bulk operations that insert days one by one,
+		 * through {@link #insertDay(SQLiteStatement, int)}. The caller must
+		 * close the statement when done.
+		 * @param db the database
+		 * @return the statement
+		 * @throws SQLException
+		 */
+		public static SQLiteStatement prepareInsertDay (SQLiteDatabase db)
+			throws SQLException
+		{
+			return db.compileStatement (SQL_INSERT_DAY);
+		}
+		
+		/**
+		 * Adds an empty record, unless the day is already present.
+		 * @param stmt the statement returned by {@link #prepareInsertDay(SQLiteDatabase)}
+		 * @param day the day
+		 * @throws SQLException
+		 */
+		public static void insertDay (SQLiteStatement stmt, int day)
+			throws SQLException
+		{
+			stmt.bindLong (1, day);
+			stmt.executeInsert ();
+		}
+		
+		/**
+		 * Adds empty records for a range of days. All the records
+		 * are inserted in a single transaction, reusing the same statement.
+		 * Existing records are left untouched.
+		 * @param db the database
+		 * @param from the first day
+		 * @param to the last day (inclusive). If lower than <code>from</code>,
+		 * 	nothing is done
+		 * @throws SQLException
+		 */
+		private static void insertDays (SQLiteDatabase db, int from, int to)
+			throws SQLException
+		{
+			SQLiteStatement stmt;
+			int i;
+			
+			if (from > to)
+				return;
 			
-			/* Yeah, I know, using rowcount I could identify where gaps lie, 
-			 * but this should never happen, so we can afford being brutal */
 			stmt = db.compileStatement (SQL_INSERT_DAY);
-			for (i = 0; i <= day; i++) {
-				stmt.bindLong (1, i);
-				stmt.executeInsert ();
+			db.beginTransaction ();
+			try {
+				for (i = from; i <= to; i++) {
+					stmt.bindLong (1, i);
+					stmt.executeInsert ();
+				}
+				db.setTransactionSuccessful ();
+			} finally {
+				db.endTransaction ();
+				stmt.close ();
 			}
 		}
 		
@@ -462,16 +545,29 @@ public class HistoryDatabase {
 			try {
 				db.delete (TABLE, WHERE_DAY_IS, deleteArgs);
 				db.insertOrThrow (TABLE, null, cv);
+				Stats.update (db, cv);
 				db.setTransactionSuccessful ();
 			} finally {
 				db.endTransaction ();
 			}
 		}
 
+		/**
+		 * Imports a fact into the table. The row must already exist, and it
+		 * is updated only if it carries less information than the imported one.
+		 * @param db the database
+		 * @param day the day
+		 * @param srs the data to store. On partial facts, the apprentice level
+		 * 	contains the number of unlocked items
+		 * @param type the amount of information contained in <code>srs</code>
+		 * @return the number of updated rows
+		 * @throws SQLException
+		 */
 		public static int importDay (SQLiteDatabase db, int day, SRSDistribution srs, FactType type)
 		{
 			ContentValues cv;
 			String where, args [];
+			int ans;
 			
 			args = new String [] { Integer.toString (day) };
 			
@@ -526,7 +622,11 @@ public class HistoryDatabase {
 				return 0;
 			}
 			
-			return db.update (TABLE, cv, where, args);
+			ans = db.update (TABLE, cv, where, args);
+			if (ans > 0)
+				Stats.update (db, cv);
+			
+			return ans;
 		}
 		
 		/**
@@ -561,7 +661,7 @@ public class HistoryDatabase {
 		
 		/**
 		 * Returns a {@link CoreStats} object, containing some overall info regarding
-		 * this database.
+		 * this database. This is a single row read from the {@link Stats} table.
 		 * @param db the database
 		 * @param ui user information
 		 * @return the overall info
@@ -570,38 +670,7 @@ public class HistoryDatabase {
 		public static CoreStats getCoreStats (SQLiteDatabase db, UserInformation ui)
 				throws SQLException
 		{
-			CoreStats cs;
-			String cols [];
-			Cursor c;
-			
-			cols = new String [] {
-				"MAX(" + C_UNLOCKED_RADICALS + ")",
-				"MAX(" + C_UNLOCKED_KANJI + ")",
-				"MAX(" + C_UNLOCKED_VOCAB + ")",
-				"MAX(" + C_UNLOCKED_RADICALS + " + " + C_BURNED_RADICALS + ")",
-				"MAX(" + C_UNLOCKED_KANJI + " + " + C_BURNED_KANJI + ")",
-				"MAX(" + C_UNLOCKED_VOCAB + " + " + C_BURNED_VOCAB + ")"
-			};
-			c = null;
-			cs = null;
-			try {
-				c = db.query(TABLE, cols, null, null, null, null, null);
-				c.moveToFirst ();
-				cs = new CoreStats (getIntOrZero (c, 0),
-									getIntOrZero (c, 1),
-									getIntOrZero (c, 2),
-									getIntOrZero (c, 3),
-									getIntOrZero (c, 4),
-									getIntOrZero (c, 5),
-									Levels.getLevelInfo (db, ui));
-			} catch (SQLException e) {
-				cs = new CoreStats (0, 0, 0, 0, 0, 0, null);
-			} finally {
-				if (c != null)
-					c.close ();
-			}
-			
-			return cs;
+			return Stats.getCoreStats (db, ui);
 		}
 
 		/**
@@ -675,6 +744,70 @@ public class HistoryDatabase {
 			return srs;
 		}
 		
+		/**
+		 * Copies the data columns of the row selected by the cursor into
+		 * a packed column array. Columns are stored in the same order
+		 * as the table, without the day column. Null values are stored as zero.
+		 * @param c the cursor
+		 * @param columns the output array, which must have 
+		 * 	{@link #DATA_COLUMNS} columns
+		 * @param row the row of the output array to fill
+		 */
+		public static void getColumns (Cursor c, int columns [][], int row)
+		{
+			int i;
+			
+			for (i = 0; i < DATA_COLUMNS; i++)
+				columns [i][row] = getIntOrZero (c, CX_GURU_RADICALS + i);
+		}
+		
+		/**
+		 * Returns the SRS distribution stored in a row of a packed column array,
+		 * as filled by {@link #getColumns(Cursor, int[][], int)}.
+		 * Like {@link #getSRSDistribution(Cursor)}, in case of partial information 
+		 * the total number of unlocked items is in the apprentice level.  
+		 * @param columns the packed columns
+		 * @param row the row
+		 * @return the distribution
+		 */
+		public static SRSDistribution getSRSDistribution (int columns [][], int row)
+		{
+			SRSDistribution srs;
+			
+			srs = new SRSDistribution ();
+			loadLevels (srs.guru, columns, row, CX_GURU_RADICALS);
+			loadLevels (srs.master, columns, row, CX_MASTER_RADICALS);
+			loadLevels (srs.enlighten, columns, row, CX_ENLIGHTEN_RADICALS);
+			loadLevels (srs.burned, columns, row, CX_BURNED_RADICALS);
+			loadLevels (srs.apprentice, columns, row, CX_UNLOCKED_RADICALS);
+			
+			srs.apprentice.radicals -= srs.guru.radicals + srs.master.radicals + srs.enlighten.radicals;
+			srs.apprentice.kanji -= srs.guru.kanji + srs.master.kanji + srs.enlighten.kanji;
+			srs.apprentice.vocabulary -= srs.guru.vocabulary + srs.master.vocabulary + srs.enlighten.vocabulary;
+			
+			fixupTotals (srs);
+			
+			return srs;
+		}
+		
+		/**
+		 * Loads an SRS level from a row of a packed column array.
+		 * @param level the level to fill
+		 * @param columns the packed columns
+		 * @param row the row
+		 * @param cx the index of the radicals column of this level
+		 */
+		private static void loadLevels (SRSDistribution.Level level, int columns [][], int row, int cx)
+		{
+			int base;
+			
+			/* Packed columns have no day column */
+			base = cx - CX_GURU_RADICALS;
+			level.radicals = columns [base][row];
+			level.kanji = columns [base + CX_GURU_KANJI - CX_GURU_RADICALS][row];
+			level.vocabulary = columns [base + CX_GURU_VOCAB - CX_GURU_RADICALS][row];
+		}
+		
 		/**
 		 * Given a SRS distribution object, as built from the database, if fixes
 		 * the "total" fields up.
@@ -1285,13 +1418,200 @@ public class HistoryDatabase {
 		
 	}
 	
+	/**
+	 * The stats table. A single row table, which contains the maxima of the
+	 * unlocked and unlocked/burned columns of the facts table. Each method 
+	 * that updates the facts table takes care of keeping this row up to date, so
+	 * {@link CoreStats} can be retrieved without scanning the whole history.
+	 * Like the {@link CoreStats} fields, values are the maxima <i>so far</i>, so
+	 * they never decrease, even when a row is replaced by a smaller one.  
+	 */
+	static class Stats {
+		
+		/** The table name */
+		private static final String TABLE = "stats";
+		
+		/** Primary key. There is only one row, whose id is {@link #ID} */
+		private static final String C_ID = "_id";
+		
+		/** Maximum number of unlocked radicals */
+		private static final String C_MAX_UNLOCKED_RADICALS = "max_unlocked_radicals";
+
+		/** Maximum number of unlocked kanji */
+		private static final String C_MAX_UNLOCKED_KANJI = "max_unlocked_kanji";
+
+		/** Maximum number of unlocked vocab items */
+		private static final String C_MAX_UNLOCKED_VOCAB = "max_unlocked_vocab";
+
+		/** Maximum number of unlocked/burned radicals */
+		private static final String C_MAX_RADICALS = "max_radicals";
+
+		/** Maximum number of unlocked/burned kanji */
+		private static final String C_MAX_KANJI = "max_kanji";
+
+		/** Maximum number of unlocked/burned vocab items */
+		private static final String C_MAX_VOCAB = "max_vocab";
+		
+		/** The id of the only row */
+		private static final int ID = 0;
+		
+		/** The create statement */
+		private static final String SQL_CREATE = 
+				"CREATE TABLE " + TABLE + " (" +
+						C_ID + " INTEGER PRIMARY KEY," +
+						C_MAX_UNLOCKED_RADICALS + " INTEGER NOT NULL DEFAULT 0, " +
+						C_MAX_UNLOCKED_KANJI + " INTEGER NOT NULL DEFAULT 0, " +
+						C_MAX_UNLOCKED_VOCAB + " INTEGER NOT NULL DEFAULT 0, " +
+						C_MAX_RADICALS + " INTEGER NOT NULL DEFAULT 0, " +
+						C_MAX_KANJI + " INTEGER NOT NULL DEFAULT 0, " +
+						C_MAX_VOCAB + " INTEGER NOT NULL DEFAULT 0)";
+
+		/** The drop statement */
+		private static final String SQL_DROP = 
+				"DROP TABLE IF EXISTS " + TABLE;
+		
+		/** Recomputes the row by scanning the whole facts table */
+		private static final String SQL_REBUILD =
+				"REPLACE INTO " + TABLE + " " +
+				"SELECT " + ID + ", " +
+						"IFNULL (MAX(" + Facts.C_UNLOCKED_RADICALS + "), 0), " +
+						"IFNULL (MAX(" + Facts.C_UNLOCKED_KANJI + "), 0), " +
+						"IFNULL (MAX(" + Facts.C_UNLOCKED_VOCAB + "), 0), " +
+						"IFNULL (MAX(" + Facts.C_UNLOCKED_RADICALS + " + " + Facts.C_BURNED_RADICALS + "), 0), " +
+						"IFNULL (MAX(" + Facts.C_UNLOCKED_KANJI + " + " + Facts.C_BURNED_KANJI + "), 0), " +
+						"IFNULL (MAX(" + Facts.C_UNLOCKED_VOCAB + " + " + Facts.C_BURNED_VOCAB + "), 0) " +
+				"FROM " + Facts.TABLE;
+		
+		/** Raises the maxima, if the new values are higher */
+		private static final String SQL_UPDATE =
+				"UPDATE " + TABLE + " SET " +
+						C_MAX_UNLOCKED_RADICALS + " = MAX(" + C_MAX_UNLOCKED_RADICALS + ", ?), " +
+						C_MAX_UNLOCKED_KANJI + " = MAX(" + C_MAX_UNLOCKED_KANJI + ", ?), " +
+						C_MAX_UNLOCKED_VOCAB + " = MAX(" + C_MAX_UNLOCKED_VOCAB + ", ?), " +
+						C_MAX_RADICALS + " = MAX(" + C_MAX_RADICALS + ", ?), " +
+						C_MAX_KANJI + " = MAX(" + C_MAX_KANJI + ", ?), " +
+						C_MAX_VOCAB + " = MAX(" + C_MAX_VOCAB + ", ?) " +
+				"WHERE " + C_ID + " = " + ID;
+		
+		/**
+		 * Creates the table, and fills it with the current contents 
+		 * of the facts table
+		 * @param db the database
+		 */
+		public static void onCreate (SQLiteDatabase db)
+		{
+			db.execSQL (SQL_CREATE);
+			rebuild (db);
+		}
+		
+		/**
+		 * Drops the table
+		 * @param db the database
+		 */
+		public static void onDrop (SQLiteDatabase db)
+		{
+			db.execSQL (SQL_DROP);
+		}
+		
+		/**
+		 * Recomputes the maxima by scanning the whole facts table. 
+		 * This is needed only after bulk operations on the facts table,
+		 * such as a reconstruction.
+		 * @param db the database
+		 */
+		public static void rebuild (SQLiteDatabase db)
+		{
+			db.execSQL (SQL_REBUILD);
+		}
+		
+		/**
+		 * Raises the maxima after a facts row has been inserted or updated.
+		 * Values that are not contained in the row are considered to be zero.
+		 * @param db the database
+		 * @param cv the values just written to the facts table
+		 */
+		public static void update (SQLiteDatabase db, ContentValues cv)
+		{
+			int ur, uk, uv;
+			Object args [];
+			
+			ur = getIntOrZero (cv, Facts.C_UNLOCKED_RADICALS);
+			uk = getIntOrZero (cv, Facts.C_UNLOCKED_KANJI);
+			uv = getIntOrZero (cv, Facts.C_UNLOCKED_VOCAB);
+			
+			args = new Object [] {
+				ur, uk, uv,
+				ur + getIntOrZero (cv, Facts.C_BURNED_RADICALS),
+				uk + getIntOrZero (cv, Facts.C_BURNED_KANJI),
+				uv + getIntOrZero (cv, Facts.C_BURNED_VOCAB)
+			};
+			
+			db.execSQL (SQL_UPDATE, args);
+		}
+		
+		/**
+		 * Returns a content value integer, defaulting to zero
+		 * @param cv the content values
+		 * @param key the key
+		 * @return its contents
+		 */
+		private static int getIntOrZero (ContentValues cv, String key)
+		{
+			Integer ans;
+			
+			ans = cv.getAsInteger (key);
+			
+			return ans != null ? ans : 0;
+		}
+		
+		/**
+		 * Returns a {@link CoreStats} object, reading the only row of the table.
+		 * @param db the database
+		 * @param ui user information
+		 * @return the overall info
+		 */
+		public static CoreStats getCoreStats (SQLiteDatabase db, UserInformation ui)
+		{
+			CoreStats cs;
+			String cols [];
+			Cursor c;
+			
+			cols = new String [] {
+				C_MAX_UNLOCKED_RADICALS,
+				C_MAX_UNLOCKED_KANJI,
+				C_MAX_UNLOCKED_VOCAB,
+				C_MAX_RADICALS,
+				C_MAX_KANJI,
+				C_MAX_VOCAB
+			};
+			c = null;
+			cs = null;
+			try {
+				c = db.query (TABLE, cols, null, null, null, null, null);
+				if (c.moveToFirst ())
+					cs = new CoreStats (c.getInt (0), c.getInt (1), c.getInt (2),
+										c.getInt (3), c.getInt (4), c.getInt (5),
+										Levels.getLevelInfo (db, ui));
+				else
+					cs = new CoreStats (0, 0, 0, 0, 0, 0, Levels.getLevelInfo (db, ui));
+			} catch (SQLException e) {
+				cs = new CoreStats (0, 0, 0, 0, 0, 0, null);
+			} finally {
+				if (c != null)
+					c.close ();
+			}
+			
+			return cs;
+		}
+	}
+	
 	/**
 	 * The DB open helper.  
 	 */
 	static class OpenHelper extends SQLiteOpenHelper {
 		
 		/** DB Version. Hope I'll never need to change it */
-		private static final int VERSION = 2;
+		private static final int VERSION = 3;
 		
 		/** The db file */
 		private static final String NAME = "history.db";
@@ -1310,6 +1630,7 @@ public class HistoryDatabase {
 		{
 			Facts.onCreate (db);
 			Levels.onCreate (db);
+			Stats.onCreate (db);
 		}
 		
 		@Override
@@ -1317,6 +1638,8 @@ public class HistoryDatabase {
 		{
 			if (oldv < 2)
 				Levels.upgradeFromV1 (db);			
+			if (oldv < 3)
+				Stats.onCreate (db);
 			
 		}
 		
@@ -1429,6 +1752,7 @@ public class HistoryDatabase {
 	public void endReconstructing (ReconstructTable rt)
 	{
 		rt.merge ();
+		Stats.rebuild (db);
 	}
 		
 	/**
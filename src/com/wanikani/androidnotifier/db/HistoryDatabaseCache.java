@@ -15,7 +15,6 @@ import android.os.AsyncTask;
 import com.wanikani.androidnotifier.db.HistoryDatabase.FactType;
 import com.wanikani.androidnotifier.graph.Pager;
 import com.wanikani.androidnotifier.graph.Pager.Interval;
-import com.wanikani.wklib.SRSDistribution;
 
 /* 
  *  Copyright (c) 2013 Alberto Cuda
@@ -49,18 +48,56 @@ public class HistoryDatabaseCache {
 
 	/**
 	 * A subset of a page with homogeneous row types.
+	 * Data is not stored as a list of objects, but as a view on the
+	 * packed columns of the page, so translating a segment into
+	 * a {@link Pager.Segment} does not involve any per-day allocation.
+	 * Columns follow the layout of the facts table: there is a group
+	 * of columns for each item type (e.g. {@link #KANJI}), and
+	 * each group has a column for each SRS level (e.g. {@link #GURU}).
+	 * So, for instance, the number of guru kanji is stored in column
+	 * <code>KANJI + GURU</code>.  
 	 */
 	public class PageSegment {
 		
+		/** Base offset of the radicals columns */
+		public static final int RADICALS = 0;
+		
+		/** Base offset of the kanji columns */
+		public static final int KANJI = 5;
+		
+		/** Base offset of the vocab columns */
+		public static final int VOCAB = 10;
+		
+		/** Guru items column */
+		public static final int GURU = 0;
+		
+		/** Master items column */
+		public static final int MASTER = 1;
+		
+		/** Enlightened items column */
+		public static final int ENLIGHTEN = 2;
+		
+		/** Burned items column */
+		public static final int BURNED = 3;
+		
+		/** Unlocked items column. On complete segments this is the number
+		 *  of apprentice, guru, master and enlightened items */
+		public static final int UNLOCKED = 4;
+		
 		/** This segment's interval */
 		public Interval interval;
 		
 		/** The type of info contained */
 		public HistoryDatabase.FactType type;
 		
-		/** The actual data. If data is missing (i.e. {@link #type} is
-		 *  {@link FactType#MISSING}), this field is <code>null</code> */
-		public List<SRSDistribution> srsl;
+		/** The packed columns, shared with all the other segments of the
+		 *  same page. The first index is the column, the second one is the row.
+		 *  If data is missing (i.e. {@link #type} is {@link FactType#MISSING}), 
+		 *  this field is <code>null</code> */
+		private int columns [][];
+		
+		/** The row of {@link #columns} matching the first day of this segment */
+		private int offset;
 		
 		/**
 		 * Constructor.
@@ -69,12 +106,100 @@ public class HistoryDatabaseCache {
 		 * @param type facts type
 		 */
 		public PageSegment (int from, int to, HistoryDatabase.FactType type)
+		{
+			this (from, to, type, null, 0);
+		}
+		
+		/**
+		 * Constructor.
+		 * @param from start of segment
+		 * @param to end of segment
+		 * @param type facts type
+		 * @param columns the packed columns of the page
+		 * @param offset the row of the first day of this segment 
+		 */
+		public PageSegment (int from, int to, HistoryDatabase.FactType type,
+							int columns [][], int offset)
 		{
 			interval = new Interval (from, to);
 			this.type = type;
-			if (type == HistoryDatabase.FactType.PARTIAL ||
-				type == HistoryDatabase.FactType.COMPLETE)
-				srsl = new Vector<SRSDistribution> ();
+			this.columns = columns;
+			this.offset = offset;
+		}
+		
+		/**
+		 * Returns the number of days in this segment
+		 * @return the number of days
+		 */
+		public int size ()
+		{
+			return interval.getSize ();
+		}
+		
+		/**
+		 * Returns the value of a column for a given day. 
+		 * @param column the column (e.g. <code>KANJI + GURU</code>)
+		 * @param i the day, relative to the start of this segment
+		 * @return the value
+		 */
+		public int get (int column, int i)
+		{
+			return columns [column][offset + i];
+		}
+		
+		/**
+		 * Copies an SRS level into a float array, summing over a set of
+		 * item types.
+		 * @param dst the output array, which must be at least {@link #size()} long
+		 * @param level the SRS level (e.g. {@link #BURNED})
+		 * @param kinds the base offsets of the item types (e.g. {@link #KANJI})
+		 */
+		public void sum (float dst [], int level, int kinds [])
+		{
+			int i, k, n;
+			
+			n = size ();
+			for (i = 0; i < n; i++)
+				dst [i] = 0;
+			
+			for (k = 0; k < kinds.length; k++)
+				add (dst, columns [kinds [k] + level], n, 1);
+		}
+		
+		/**
+		 * Copies the number of apprentice items into a float array, summing
+		 * over a set of item types. Apprentice items are not stored, so
+		 * they are computed by subtracting guru, master and enlightened
+		 * items from the unlocked ones. Should be called on complete
+		 * segments only.
+		 * @param dst the output array, which must be at least {@link #size()} long
+		 * @param kinds the base offsets of the item types (e.g. {@link #KANJI})
+		 */
+		public void sumApprentice (float dst [], int kinds [])
+		{
+			int k;
+			
+			sum (dst, UNLOCKED, kinds);
+			for (k = 0; k < kinds.length; k++) {
+				add (dst, columns [kinds [k] + GURU], size (), -1);
+				add (dst, columns [kinds [k] + MASTER], size (), -1);
+				add (dst, columns [kinds [k] + ENLIGHTEN], size (), -1);
+			}
+		}
+		
+		/**
+		 * Adds (or subtracts) a column to a float array.
+		 * @param dst the output array
+		 * @param column the column
+		 * @param n the number of days
+		 * @param sign <code>1</code> to add, <code>-1</code> to subtract
+		 */
+		private void add (float dst [], int column [], int n, int sign)
+		{
+			int i;
+			
+			for (i = 0; i < n; i++)
+				dst [i] += sign * column [offset + i];
 		}
 	}
 	
@@ -257,6 +382,7 @@ public class HistoryDatabaseCache {
 			HistoryDatabase.FactType ltype, type;
 			HistoryDatabase hdb;
 			PageSegment segment;
+			int columns [][];
 			Page page;
 			Cursor c;
 			int i, day;
@@ -269,6 +395,7 @@ public class HistoryDatabaseCache {
 					i = interval [0].start;
 					hdb.openR ();
 					c = hdb.selectFacts (interval [0].start, interval [0].stop);
+					columns = new int [HistoryDatabase.Facts.DATA_COLUMNS][c.getCount ()];
 					ltype = null;
 					segment = null;
 					day = interval [0].start - 1; /* A safe default in case we got an empty set */
@@ -283,11 +410,14 @@ public class HistoryDatabaseCache {
 						type = HistoryDatabase.Facts.getType (c);
 						if (type != ltype) {
 							ltype = type;
-							segment = new PageSegment (i, i, type);
+							if (type != HistoryDatabase.FactType.MISSING)
+								segment = new PageSegment (i, i, type, columns, c.getPosition ());
+							else
+								segment = new PageSegment (i, i, type);
 							page.segments.add (segment);
 						}
 						if (type != HistoryDatabase.FactType.MISSING)
-							segment.srsl.add (HistoryDatabase.Facts.getSRSDistribution (c));
+							HistoryDatabase.Facts.getColumns (c, columns, c.getPosition ());
 					
 						segment.interval.stop = i;
 						i++;
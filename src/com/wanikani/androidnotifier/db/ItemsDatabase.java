@@ -204,6 +204,12 @@ public class ItemsDatabase {
 						C_I_DATE + ", " +
 						C_I_ETAG + ") VALUES (?, ?, ?)";
 		
+		private static final String SQL_FORECAST =
+					"SELECT " + C_SRS + ", " + C_AVAILABLE_DATE + " FROM %s " +
+					"WHERE " + C_BURNED + " = 0 AND " + 
+							   C_SRS + " IS NOT NULL AND " + 
+							   C_AVAILABLE_DATE + " IS NOT NULL";
+		
 		public abstract String getTable ();
 		
 		public abstract String getCreateStatement ();
@@ -236,13 +242,17 @@ public class ItemsDatabase {
 			String columns [], args [];			
 			ItemLibrary<T> lib;
 			LevelData<T> ld;
+			long start;
 			Cursor c;
 			T item;
+			int n;
 			
 			columns = new String [] { C_I_DATE, C_I_ETAG };
 			args = new String [] { Integer.toString (level) };
 
 			synchronized (MUTEX) {
+				start = System.currentTimeMillis ();
+				n = 0;
 				/* Must use openW to allow db upgrade */
 				openW ();
 				c = null;
@@ -260,12 +270,14 @@ public class ItemsDatabase {
 						item = buildItem (c);
 						item.fixup ();
 						lib.list.add (item);
+						n++;
 					}
 					
 				} finally {
 					if (c != null)
 						c.close ();
 					close ();
+					CacheStats.get ().read (System.currentTimeMillis () - start, n);
 				}
 				
 			}
@@ -294,8 +306,10 @@ public class ItemsDatabase {
 			ItemLibrary<T> lib;
 			LevelData<T> ld;
 			String lset;
+			long start;
 			Cursor c;
 			T item;
+			int n;
 			
 			if (data.isEmpty ())
 				return;
@@ -305,6 +319,8 @@ public class ItemsDatabase {
 			columns = new String [] { C_I_DATE, C_I_ETAG, C_I_LEVEL };
 
 			synchronized (MUTEX) {
+				start = System.currentTimeMillis ();
+				n = 0;
 				/* Must use openW to allow db upgrade */
 				openW ();
 				c = null;
@@ -325,11 +341,13 @@ public class ItemsDatabase {
 						ld = data.get (item.level);
 						if (ld.lib != null)	/* May happen if inventory is not synch'd */
 							ld.lib.add (item);
+						n++;
 					}
 				} finally {
 					if (c != null)
 						c.close ();
 					close ();
+					CacheStats.get ().read (System.currentTimeMillis () - start, n);
 				}				
 			}
 		}
@@ -340,6 +358,7 @@ public class ItemsDatabase {
 			SQLiteStatement stmt;
 			Set<Integer> levels;
 			String lset;
+			long start;
 			
 			levels = new HashSet<Integer> ();
 			for (T item : data.lib.list)
@@ -348,6 +367,7 @@ public class ItemsDatabase {
 			lset = getLSet (levels);
 			
 			synchronized (MUTEX) {
+				start = System.currentTimeMillis ();
 				stmt = null;
 				openW ();
 				db.beginTransaction ();
@@ -379,11 +399,43 @@ public class ItemsDatabase {
 						stmt.close ();
 					db.endTransaction ();
 					close ();
+					forecast = null;
+					CacheStats.get ().write (System.currentTimeMillis () - start, data.lib.list.size ());
 				}				
 			}
 			
 		}
 		
+		/**
+		 * Feeds a review forecast with the items and levels stored in this table.
+		 * Must be called with the DB open and while holding {@link ItemsDatabase#MUTEX}. 
+		 * @param builder the forecast builder
+		 * @param type the type of items stored in this table
+		 */
+		void forecast (ReviewForecast.Builder builder, Item.Type type)
+		{
+			String columns [];
+			Cursor c;
+			
+			columns = new String [] { C_I_LEVEL, C_I_DATE };
+			
+			c = null;
+			try {
+				c = db.query (inventory (), columns, null, null, null, null, null);
+				while (c.moveToNext ())
+					builder.addLevel (type, c.getInt (0), c.getLong (1));
+				c.close ();
+				
+				c = null;
+				c = db.rawQuery (String.format (SQL_FORECAST, getTable ()), null);
+				while (c.moveToNext ())
+					builder.add (c.getInt (0), c.getLong (1));
+			} finally {
+				if (c != null)
+					c.close ();
+			}
+		}
+		
 		protected abstract T buildItem (Cursor c);
 		
 		protected Date getDate (Cursor c, String col)
@@ -870,6 +922,11 @@ public class ItemsDatabase {
 	
 	/** Synchronization */
 	public static final Object MUTEX = new Object ();
+	
+	/** The forecast built out of the current contents of the DB, or <code>null</code>
+	 *  if it has not been built yet or if the DB has changed since.
+	 *  All the writers live in this process, so a static is enough. Protected by {@link #MUTEX} */
+	private static ReviewForecast forecast;
 		
 	/**
 	 * Cosntructor
@@ -920,4 +977,44 @@ public class ItemsDatabase {
 		return cache;
 	}
 	
+	/**
+	 * Returns a review forecast of the items currently stored in the cache.
+	 * The forecast is built only once, and then reused until some level is written.
+	 * @return the forecast
+	 */
+	public ReviewForecast getForecast ()
+		throws SQLException
+	{
+		ReviewForecast.Builder builder;
+		
+		synchronized (MUTEX) {
+			if (forecast != null)
+				return forecast;
+			
+			builder = new ReviewForecast.Builder ();
+			/* Must use openW to allow db upgrade */
+			openW ();
+			try {
+				cache.radicals.forecast (builder, Item.Type.RADICAL);
+				cache.kanji.forecast (builder, Item.Type.KANJI);
+				cache.vocab.forecast (builder, Item.Type.VOCABULARY);
+			} finally {
+				close ();
+			}
+			forecast = builder.build ();
+			
+			return forecast;
+		}
+	}
+	
+	/**
+	 * Returns the size of the DB file.
+	 * @param ctxt the context
+	 * @return the size, in bytes (<code>0</code> if the DB has not been created yet)
+	 */
+	public static long getSize (Context ctxt)
+	{
+		return ctxt.getDatabasePath (OpenHelper.NAME).length ();
+	}
+	
 }
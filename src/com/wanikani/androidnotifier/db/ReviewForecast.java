@@ -0,0 +1,253 @@
+package com.wanikani.androidnotifier.db;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import com.wanikani.wklib.Item;
+import com.wanikani.wklib.SRSLevel;
+
+/*
+ *  Copyright (c) 2013 Alberto Cuda
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A forecast of when reviews will become available, built from the
+ * items stored in {@link ItemsDatabase}. For each SRS stage it keeps a sorted
+ * timeline of availability dates, so the next change of the review count can
+ * be looked up without contacting the server.
+ * <p>
+ * The items cache usually holds only some of the levels, and the data of each level
+ * is as old as the last time it was refreshed. Therefore the forecast is exact
+ * only if every level is cached, and only up to {@link #MIN_INTERVAL} after
+ * the oldest refresh: items reviewed after that moment can't become available again
+ * any sooner than that.
+ */
+public class ReviewForecast {
+	
+	/**
+	 * Collects the items and the cached levels.
+	 */
+	static class Builder {
+		
+		/** The timelines, one for each SRS stage */
+		private long timeline [][];
+		
+		/** Number of elements in each timeline */
+		private int size [];
+		
+		/** For each level, the bitmask of item types in the cache */
+		private int coverage [];
+		
+		/** The oldest refresh date */
+		private long snapshot;
+		
+		/**
+		 * Constructor
+		 */
+		public Builder ()
+		{
+			int i;
+			
+			timeline = new long [SRSLevel.values ().length][];
+			size = new int [timeline.length];
+			for (i = 0; i < timeline.length; i++)
+				timeline [i] = new long [64];
+			coverage = new int [64];
+			snapshot = Long.MAX_VALUE;
+		}
+		
+		/**
+		 * Adds an item to the forecast.
+		 * @param srs the SRS stage ordinal
+		 * @param date the availability date
+		 */
+		public void add (int srs, long date)
+		{
+			long tl [];
+			
+			if (srs < 0 || srs >= timeline.length)
+				return;
+			
+			tl = timeline [srs];
+			if (size [srs] == tl.length)
+				timeline [srs] = tl = copy (tl, tl.length << 1);
+			tl [size [srs]++] = date;
+		}
+		
+		/**
+		 * Records that a level is stored in the cache.
+		 * @param type the item type
+		 * @param level the level
+		 * @param date when the level was refreshed
+		 */
+		public void addLevel (Item.Type type, int level, long date)
+		{
+			if (level < 0)
+				return;
+			
+			if (level >= coverage.length)
+				coverage = copy (coverage, Math.max (level + 1, coverage.length << 1));
+			coverage [level] |= 1 << type.ordinal ();
+			snapshot = Math.min (snapshot, date);
+		}
+		
+		/**
+		 * Builds the forecast.
+		 * @return the forecast
+		 */
+		public ReviewForecast build ()
+		{
+			long tl [][];
+			int i;
+			
+			tl = new long [timeline.length][];
+			for (i = 0; i < tl.length; i++) {
+				tl [i] = copy (timeline [i], size [i]);
+				Arrays.sort (tl [i]);
+			}
+			
+			return new ReviewForecast (tl, coverage, snapshot);
+		}
+		
+		/* Arrays.copyOf is not available before API 9 */
+		
+		private static long [] copy (long a [], int length)
+		{
+			long ans [];
+			
+			ans = new long [length];
+			System.arraycopy (a, 0, ans, 0, Math.min (a.length, length));
+			
+			return ans;
+		}
+		
+		private static int [] copy (int a [], int length)
+		{
+			int ans [];
+			
+			ans = new int [length];
+			System.arraycopy (a, 0, ans, 0, Math.min (a.length, length));
+			
+			return ans;
+		}
+	}
+	
+	/** The shortest SRS interval (four hours). This is also the time
+	 *  it takes for the items of a new lesson to become available */
+	public static final long MIN_INTERVAL = 4 * 3600 * 1000;
+	
+	/** Bitmask of all the item types */
+	private static final int ALL_TYPES = (1 << Item.Type.values ().length) - 1;
+	
+	/** The sorted timelines, one for each SRS stage */
+	private long timeline [][];
+	
+	/** For each level, the bitmask of item types in the cache */
+	private int coverage [];
+	
+	/** The oldest refresh date */
+	private long snapshot;
+	
+	/**
+	 * Constructor
+	 * @param timeline the sorted timelines
+	 * @param coverage the level coverage
+	 * @param snapshot the oldest refresh date
+	 */
+	private ReviewForecast (long timeline [][], int coverage [], long snapshot)
+	{
+		this.timeline = timeline;
+		this.coverage = coverage;
+		this.snapshot = snapshot;
+	}
+	
+	/**
+	 * Returns the first time, after a given point in time, when some items
+	 * of a specific SRS stage become available.
+	 * @param srs the SRS stage
+	 * @param now the point in time
+	 * @return the date, or <code>null</code> if no items are expected
+	 */
+	public Date next (SRSLevel srs, Date now)
+	{
+		long ans;
+		
+		ans = next (timeline [srs.ordinal ()], now.getTime ());
+		
+		return ans != Long.MAX_VALUE ? new Date (ans) : null;
+	}
+	
+	/**
+	 * Returns the first time, after a given point in time, when the number
+	 * of available reviews is expected to grow.
+	 * @param now the point in time
+	 * @return the date, or <code>null</code> if no items are expected
+	 */
+	public Date next (Date now)
+	{
+		long ans;
+		int i;
+		
+		ans = Long.MAX_VALUE;
+		for (i = 0; i < timeline.length; i++)
+			ans = Math.min (ans, next (timeline [i], now.getTime ()));
+		
+		return ans != Long.MAX_VALUE ? new Date (ans) : null;
+	}
+	
+	/**
+	 * Looks up the first element of a timeline that comes after a given instant.
+	 * @param tl the timeline
+	 * @param now the instant
+	 * @return the element, or <code>Long.MAX_VALUE</code> if there is none
+	 */
+	private static long next (long tl [], long now)
+	{
+		int i;
+		
+		i = Arrays.binarySearch (tl, now + 1);
+		if (i < 0)
+			i = -i - 1;
+		else
+			while (i > 0 && tl [i - 1] > now)
+				i--;
+		
+		return i < tl.length ? tl [i] : Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Tells whether the forecast can be trusted up to a given point in time.
+	 * This happens if all the items up to the user's level are cached,
+	 * and no review made after the oldest refresh can affect the study queue
+	 * before that time.
+	 * @param level the user's level
+	 * @param date the point in time
+	 * @return <code>true</code> if the forecast is exact
+	 */
+	public boolean isExact (int level, Date date)
+	{
+		int i;
+		
+		if (level <= 0 || level >= coverage.length || snapshot == Long.MAX_VALUE)
+			return false;
+		
+		for (i = 1; i <= level; i++)
+			if (coverage [i] != ALL_TYPES)
+				return false;
+		
+		return date.getTime () < snapshot + MIN_INTERVAL;
+	}
+}
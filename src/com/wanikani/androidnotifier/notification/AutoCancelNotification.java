@@ -9,6 +9,7 @@ import android.support.v4.app.NotificationCompat;
 
 import com.wanikani.androidnotifier.DashboardData;
 import com.wanikani.androidnotifier.DashboardFragment;
+import com.wanikani.androidnotifier.MeterSpec;
 import com.wanikani.androidnotifier.R;
 import com.wanikani.androidnotifier.SettingsActivity;
 import com.wanikani.androidnotifier.notification.NotificationService.StateData;
@@ -21,6 +22,17 @@ class AutoCancelNotification implements NotificationInterface {
 	/** The ID associated to the lessons notification icon */
 	private static final int NOT_LESSONS_ID = 2;
 	
+	/** Fingerprint of a notification that is not shown */
+	private static final String HIDDEN = "";
+	
+	/** Fingerprint of the reviews notification currently posted, or <code>null</code>
+	 *  if unknown. Static, because the service instance does not last long */
+	private static String reviewsShown;
+	
+	/** Fingerprint of the lessons notification currently posted, or <code>null</code>
+	 *  if unknown */
+	private static String lessonsShown;
+	
 	Context ctxt;
 	
 	public AutoCancelNotification (Context ctxt)
@@ -63,6 +75,43 @@ class AutoCancelNotification implements NotificationInterface {
 			setData (sd.dd);
 		}
 	}
+	
+	@Override
+	public void invalidate ()
+	{
+		reviewsShown = null;
+		lessonsShown = null;
+	}
+	
+	/**
+	 * Called when the user swipes a notification away. Unlike a tap, this is
+	 * not a reason to forget the other notification.
+	 * @param lessons set if this is the lessons notification
+	 */
+	public void dismissed (boolean lessons)
+	{
+		if (lessons)
+			lessonsShown = null;
+		else
+			reviewsShown = null;
+	}
+	
+	/**
+	 * Tells whether a notification needs to be posted or cancelled. If not, the
+	 * skipped update is counted. 
+	 * @param shown the fingerprint of what is currently shown
+	 * @param fp the fingerprint of the new contents
+	 * @return <code>true</code> if something visible changes
+	 */
+	private boolean changed (String shown, String fp)
+	{
+		if (!fp.equals (shown))
+			return true;
+		
+		MeterSpec.countEvent (ctxt, MeterSpec.Event.NOTIFICATION_SKIPPED);
+		
+		return false;
+	}
 
 	public void showLessons (int lessons)
 	{
@@ -73,6 +122,14 @@ class AutoCancelNotification implements NotificationInterface {
 		Intent intent;
 		String text;
 
+		if (SettingsActivity.get42plus (ctxt) && lessons > DashboardFragment.LESSONS_42P)
+			text = ctxt.getString (R.string.new_lessons_42plus, DashboardFragment.LESSONS_42P);
+		else
+			text = ctxt.getString (lessons == 1 ? 
+						      R.string.new_lesson : R.string.new_lessons, lessons);
+		if (!changed (lessonsShown, text))
+			return;
+		
 		nmanager = (NotificationManager) 
 				ctxt.getSystemService (Context.NOTIFICATION_SERVICE);
 			
@@ -84,30 +141,34 @@ class AutoCancelNotification implements NotificationInterface {
 		builder = new NotificationCompat.Builder (ctxt);
 		builder.setSmallIcon (R.drawable.not_lessons);
 		
-		if (SettingsActivity.get42plus (ctxt) && lessons > DashboardFragment.LESSONS_42P)
-			text = ctxt.getString (R.string.new_lessons_42plus, DashboardFragment.LESSONS_42P);
-		else
-			text = ctxt.getString (lessons == 1 ? 
-						      R.string.new_lesson : R.string.new_lessons, lessons);
 		builder.setContentTitle (ctxt.getString (R.string.app_name));
 								 
 		builder.setContentText (text);
 		builder.setContentIntent (pint);
+		
+		intent = new Intent (ctxt, NotificationService.class);
+		intent.setAction (NotificationService.ACTION_LESSONS_DISMISS);
+		builder.setDeleteIntent (PendingIntent.getService (ctxt, 0, intent, 0));
 				
 		not = builder.build ();
 		not.flags |= Notification.FLAG_AUTO_CANCEL;
 		
 		nmanager.notify (NOT_LESSONS_ID, not);		
+		lessonsShown = text;
 	}
 	
 	public void hideLessons ()
 	{
 		NotificationManager nmanager;
 		
+		if (!changed (lessonsShown, HIDDEN))
+			return;
+		
 		nmanager = (NotificationManager) 
 			ctxt.getSystemService (Context.NOTIFICATION_SERVICE);
 		
 		nmanager.cancel (NOT_LESSONS_ID);		
+		lessonsShown = HIDDEN;
 	}
 	
 	public void showReviews (int reviews, boolean thisLevel)
@@ -117,8 +178,19 @@ class AutoCancelNotification implements NotificationInterface {
 		Notification not;
 		PendingIntent pint;
 		Intent intent;
-		String text;
+		String text, fp;
+		int icon;
 
+		icon = thisLevel ? R.drawable.not_g_icon : R.drawable.not_icon;
+		if (SettingsActivity.get42plus (ctxt) && reviews > DashboardFragment.LESSONS_42P)
+			text = ctxt.getString (R.string.new_reviews_42plus, DashboardFragment.LESSONS_42P);
+		else
+			text = ctxt.getString (reviews == 1 ? 
+						      R.string.new_review : R.string.new_reviews, reviews);
+		fp = icon + ":" + text;
+		if (!changed (reviewsShown, fp))
+			return;
+		
 		nmanager = (NotificationManager) 
 				ctxt.getSystemService (Context.NOTIFICATION_SERVICE);
 			
@@ -128,32 +200,36 @@ class AutoCancelNotification implements NotificationInterface {
 		pint = PendingIntent.getService (ctxt, 0, intent, 0);
 
 		builder = new NotificationCompat.Builder (ctxt);
-		builder.setSmallIcon (thisLevel ? R.drawable.not_g_icon : R.drawable.not_icon);
+		builder.setSmallIcon (icon);
 		
-		if (SettingsActivity.get42plus (ctxt) && reviews > DashboardFragment.LESSONS_42P)
-			text = ctxt.getString (R.string.new_reviews_42plus, DashboardFragment.LESSONS_42P);
-		else
-			text = ctxt.getString (reviews == 1 ? 
-						      R.string.new_review : R.string.new_reviews, reviews);
 		builder.setContentTitle (ctxt.getString (R.string.app_name));
 								 
 		builder.setContentText (text);
 		builder.setContentIntent (pint);
 		
+		intent = new Intent (ctxt, NotificationService.class);
+		intent.setAction (NotificationService.ACTION_DISMISS);
+		builder.setDeleteIntent (PendingIntent.getService (ctxt, 0, intent, 0));
+		
 		not = builder.build ();
 		not.flags |= Notification.FLAG_AUTO_CANCEL;
 		
 		nmanager.notify (NOT_REVIEWS_ID, not);		
+		reviewsShown = fp;
 	}
 	
 	public void hideReviews ()
 	{
 		NotificationManager nmanager;
 		
+		if (!changed (reviewsShown, HIDDEN))
+			return;
+		
 		nmanager = (NotificationManager) 
 			ctxt.getSystemService (Context.NOTIFICATION_SERVICE);
 		
 		nmanager.cancel (NOT_REVIEWS_ID);
+		reviewsShown = HIDDEN;
 	}
 	
 	
@@ -20,4 +20,11 @@ public interface NotificationInterface {
 	
 	public void update (StateData sd, ChangeType ctype);
 	
+	/**
+	 * Called when the notification may have been removed without this
+	 * object knowing it (e.g. the user tapped an auto-cancel notification).
+	 * The next update will be posted even if its contents did not change.
+	 */
+	public void invalidate ();
+	
 }
@@ -3,6 +3,8 @@ package com.wanikani.androidnotifier.notification;
 import java.io.IOException;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 import android.app.AlarmManager;
 import android.app.IntentService;
@@ -15,14 +17,18 @@ import android.database.SQLException;
 import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 
 import com.wanikani.androidnotifier.DashboardData;
 import com.wanikani.androidnotifier.DashboardData.OptionalDataStatus;
 import com.wanikani.androidnotifier.MainActivity;
 import com.wanikani.androidnotifier.MeterSpec;
+import com.wanikani.androidnotifier.PreferencesWriter;
 import com.wanikani.androidnotifier.SettingsActivity;
 import com.wanikani.androidnotifier.WebReviewActivity;
 import com.wanikani.androidnotifier.db.HistoryDatabase;
+import com.wanikani.androidnotifier.db.ItemsDatabase;
+import com.wanikani.androidnotifier.db.ReviewForecast;
 import com.wanikani.androidnotifier.notification.NotificationInterface.ChangeType;
 import com.wanikani.androidnotifier.notification.NotifierStateMachine.Event;
 import com.wanikani.wklib.Connection;
@@ -81,6 +87,8 @@ public class NotificationService
 		
 		public ExtendedLevelProgression elp;
 		
+		public ReviewForecast forecast;
+		
 		private static final String PREF_REVIEWS = PREFIX + "sd.reviews";
 		
 		private static final String PREF_LESSONS = PREFIX + "sd.lessons";
@@ -96,12 +104,11 @@ public class NotificationService
 			hasLessons = lessons > 0;
 		}
 		
-		private void serialize (SharedPreferences prefs)
+		private void serialize (PreferencesWriter writer)
 		{
-			prefs.edit ().
-				putInt (PREF_REVIEWS, hasReviews ? reviews : 0).
+			writer.putInt (PREF_REVIEWS, hasReviews ? reviews : 0).
 				putInt (PREF_LESSONS, hasLessons ? lessons : 0).
-				putBoolean (PREF_THIS_LEVEL, thisLevel).commit ();
+				putBoolean (PREF_THIS_LEVEL, thisLevel);
 		}
 		
 		private void setExtendedLevelProgression (ExtendedLevelProgression elp)
@@ -134,6 +141,27 @@ public class NotificationService
 			
 			return Math.min (ans, timeout);
 		}
+		
+		/**
+		 * Returns the next time the local review forecast expects 
+		 * new reviews to become available.
+		 * @return the date, or <code>null</code> if not known
+		 */
+		public Date nextForecast ()
+		{
+			return forecast != null ? forecast.next (new Date ()) : null;
+		}
+		
+		/**
+		 * Tells whether the local review forecast is exact up to a given time,
+		 * i.e. whether polling the study queue before that time would not tell anything new.
+		 * @param date the time
+		 * @return <code>true</code> if it is exact
+		 */
+		public boolean isForecastExact (Date date)
+		{
+			return forecast != null && dd != null && forecast.isExact (dd.level, date);
+		}
 	}
 	
 	/**
@@ -198,6 +226,16 @@ public class NotificationService
 	
 	/// The current data
 	private StateData sd;
+	
+	/// Batches the preference updates made while handling an intent
+	private PreferencesWriter writer;
+	
+	/// When the cron jobs are due. Kept here because the preferences 
+	/// are not updated until the current intent has been handled
+	private long cronNext;
+	
+	/// Number of intents waiting to be handled, by action. Also used as a monitor
+	private Map<String, Integer> queued;
 
 	/* The actions this class supports. We keep the same name of
 	 * the standard actions, when a mapping is possible. However we
@@ -234,6 +272,15 @@ public class NotificationService
 	public static final String ACTION_LESSONS_TAP = 
 			PREFIX + "LESSONS_TAP";
 	
+	/** Called when the user swipes the reviews notification away, 
+	 *  so it is posted again on the next poll */
+	public static final String ACTION_DISMISS = 
+			PREFIX + "DISMISS";
+	
+	/** Called when the user swipes the lessons notification away */
+	public static final String ACTION_LESSONS_DISMISS = 
+			PREFIX + "LESSONS_DISMISS";
+	
 	/** Called by @link DashboardActivity when the notification icon needs to
 	 *  be hidden. It is similar to @link {@link #ACTION_TAP}, however it
 	 *  does not start the browser, because this is done at activity level  */
@@ -256,27 +303,56 @@ public class NotificationService
 	/** Last known vacation day. Defaults to -1 */
 	public static final String PREFS_LAST_VACATION = PREFIX + "LAST_VACATION";
 	
+	/** Number of connectivity changes dropped because another one followed */
+	private static final String PREFS_COALESCED = PREFIX + "COALESCED";
+	
 	/** The cron interval. Default is one day */
 	private static final long CRON_INTERVAL = 24 * 3600 * 1000;
 	
 	/** The cron retry interval. Default is half an hour */
 	private static final long CRON_RETRY = 1800 * 1000;	
 	
+	/** How long the cron jobs may be delayed, so they can run together
+	 *  with the state machine. Default is one hour */
+	private static final long CRON_WINDOW = 3600 * 1000;
+	
+	/** Wakeup times are rounded up to the coarsest of these boundaries
+	 *  that fits the tolerance window (15, 5 and 1 minute) */
+	private static final long ALIGNMENTS [] = { 15 * 60 * 1000, 5 * 60 * 1000, 60 * 1000 };
+	
 	/**
 	 * Constructor. 
 	 */
 	public NotificationService () 
 	{
 		super("NotificationService");
+		
+		queued = new HashMap<String, Integer> ();
 	}
 	
 	private SharedPreferences prefs ()
+	{
+		return prefs (this);
+	}
+	
+	private static SharedPreferences prefs (Context ctxt)
 	{
 		int flags;
 		
 		flags = Context.MODE_PRIVATE;
 
-		return getSharedPreferences (PREFERENCES_FILE, flags);		
+		return ctxt.getSharedPreferences (PREFERENCES_FILE, flags);		
+	}
+	
+	/**
+	 * Returns the number of connectivity changes that have been merged
+	 * with a following one, i.e. the number of saved wakeups.
+	 * @param ctxt the context
+	 * @return the number of coalesced intents
+	 */
+	public static int getCoalescedIntents (Context ctxt)
+	{
+		return prefs (ctxt).getInt (PREFS_COALESCED, 0);
 	}
 	
 	private void updateNotificationInterface ()
@@ -308,50 +384,163 @@ public class NotificationService
 		String action;
 		boolean enabled;
 		
-		sd = new StateData (prefs ());
-
-		enabled = SettingsActivity.getEnabled (this);
 		action = intent.getAction ();
-				
-		if (nifc == null) {
-			acn = new AutoCancelNotification (this);
-			pn = new PersistentNotification (this);
+		dequeued (action);
+		if (action.equals (ACTION_CONNECTIVITY_CHANGE) && coalesce (action))
+			return;
 		
-			updateNotificationInterface ();
-		}
+		if (action.equals (ACTION_ALARM))
+			MeterSpec.countEvent (this, MeterSpec.Event.WAKEUP);
 		
-		/* ACTION_HIDE_NOTIFICATION and ACTION_(LESSONS_)TAP are special, 
-		 * because we must call it even if notifications
-		 * are disabled */
-		if (action.equals (ACTION_HIDE_NOTIFICATION)) {
-			hideNotification (intent, enabled);
-			return;
-		} else if (action.equals (ACTION_TAP)) {
-			tap (intent, enabled);
-			return;
-		} else if (action.equals (ACTION_LESSONS_TAP)) {
-			lessonsTap (intent);
-			return;
-		} else if (action.equals (ACTION_NULL_TAP)) {
-			nullTap (intent);
-			return;
+		writer = new PreferencesWriter (prefs ());
+		try {
+			sd = new StateData (prefs ());
+			cronNext = prefs ().getLong (PREFS_CRON_NEXT, Long.MAX_VALUE);
+
+			enabled = SettingsActivity.getEnabled (this);
+					
+			if (nifc == null) {
+				acn = new AutoCancelNotification (this);
+				pn = new PersistentNotification (this);
+			
+				updateNotificationInterface ();
+			}
+			
+			/* ACTION_HIDE_NOTIFICATION, ACTION_(LESSONS_)TAP and ACTION_(LESSONS_)DISMISS are special, 
+			 * because we must call it even if notifications
+			 * are disabled */
+			if (action.equals (ACTION_HIDE_NOTIFICATION)) {
+				hideNotification (intent, enabled);
+				return;
+			} else if (action.equals (ACTION_TAP)) {
+				/* Auto-cancel notifications are removed when tapped */
+				nifc.invalidate ();
+				tap (intent, enabled);
+				return;
+			} else if (action.equals (ACTION_LESSONS_TAP)) {
+				nifc.invalidate ();
+				lessonsTap (intent);
+				return;
+			} else if (action.equals (ACTION_NULL_TAP)) {
+				nullTap (intent);
+				return;
+			} else if (action.equals (ACTION_DISMISS)) {
+				acn.dismissed (false);
+				return;
+			} else if (action.equals (ACTION_LESSONS_DISMISS)) {
+				acn.dismissed (true);
+				return;
+			}
+			
+			cronDaily (enabled);
+			
+			if (!enabled)
+				return;
+			
+			if (action.equals (ACTION_BOOT_COMPLETED))
+				bootCompleted (intent);
+			else if (action.equals (ACTION_CONNECTIVITY_CHANGE))
+				connectivityChange (intent);
+			else if (action.equals (ACTION_ALARM))
+				alarm (intent);
+			else if (action.equals (ACTION_NEW_DATA))
+				newData (intent);
+
+			sd.serialize (writer);
+		} finally {
+			writer.flush ();
+		}
+	}
+	
+	/**
+	 * Called on the main thread each time an intent is queued. We keep track
+	 * of queued intents, so that {@link #coalesce(String)} can drop redundant ones.
+	 */
+	@Override
+	public int onStartCommand (Intent intent, int flags, int startId)
+	{
+		String action;
+		Integer n;
+		
+		action = intent != null ? intent.getAction () : null;
+		if (action != null) {
+			synchronized (queued) {
+				n = queued.get (action);
+				queued.put (action, n != null ? n + 1 : 1);
+				queued.notifyAll ();
+			}
 		}
 		
-		cronDaily (enabled);
+		return super.onStartCommand (intent, flags, startId);
+	}
+	
+	/**
+	 * Called when all the queued intents have been handled. Since the process
+	 * may be killed at any time from now on, we write the network meters.
+	 */
+	@Override
+	public void onDestroy ()
+	{
+		MeterSpec.flush (this);
 		
-		if (!enabled)
-			return;
+		super.onDestroy ();
+	}
+	
+	/**
+	 * Called by the worker thread when it starts handling an intent.
+	 * @param action the intent action
+	 */
+	private void dequeued (String action)
+	{
+		Integer n;
 		
-		if (action.equals (ACTION_BOOT_COMPLETED))
-			bootCompleted (intent);
-		else if (action.equals (ACTION_CONNECTIVITY_CHANGE))
-			connectivityChange (intent);
-		else if (action.equals (ACTION_ALARM))
-			alarm (intent);
-		else if (action.equals (ACTION_NEW_DATA))
-			newData (intent);
-
-		sd.serialize (prefs ());
+		synchronized (queued) {
+			n = queued.get (action);
+			if (n == null || n <= 1)
+				queued.remove (action);
+			else
+				queued.put (action, n - 1);
+		}
+	}
+	
+	/**
+	 * Debounces intents that simply trigger a refresh. We wait until the
+	 * coalescing window expires: if another intent with the same action gets queued 
+	 * meanwhile, this one is dropped, since the other one will do the same job.
+	 * The wait ends as soon as an intent with a different action is queued, 
+	 * so taps and hide requests are never delayed nor reordered.
+	 * @param action the intent action
+	 * @return <code>true</code> if the intent should be dropped
+	 */
+	private boolean coalesce (String action)
+	{
+		long now, deadline;
+		boolean drop;
+		
+		deadline = SystemClock.elapsedRealtime () + 
+				SettingsActivity.getCoalesceWindow (this) * 1000L;
+		drop = false;
+		synchronized (queued) {
+			while (true) {
+				if (queued.containsKey (action)) {
+					drop = true;
+					break;
+				}
+				now = SystemClock.elapsedRealtime ();
+				if (!queued.isEmpty () || now >= deadline)
+					break;
+				try {
+					queued.wait (deadline - now);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		
+		if (drop)
+			new PreferencesWriter (prefs ()).putInt (PREFS_COALESCED, getCoalescedIntents (this) + 1).flush ();
+		
+		return drop;
 	}
 	
 	/**
@@ -359,7 +548,7 @@ public class NotificationService
 	 * Admittedly, this has nothing to do with the notification service,
 	 * however this class already handles alarms and gets boot notifications, so 
 	 * it's quite natural to put it here. In addition, since alarms are somehow a precious
-	 * resource, we merge the FSM alarsm with the cron alarms.
+	 * resource, we merge the FSM alarsm with the cron alarms (see {@link #schedule(NotifierStateMachine, Date, long)}).
 	 * @param enabled if notifications are enabled 
 	 */
 	private void cronDaily (boolean enabled)
@@ -372,19 +561,22 @@ public class NotificationService
 		prefs = prefs ();
 
 		next = prefs.getLong (PREFS_CRON_NEXT, normalize (now));
+		cronNext = next;
 		if (now >= next) {
 			ok = false;
 			try {				
 				ok = runDailyJobs (prefs);
 			} finally {
-				if (ok) {
+				if (ok)
 					next = normalize (now + CRON_INTERVAL);
-					prefs.edit ().putLong (PREFS_CRON_NEXT, next).commit ();
-				} else
+				else
 					next = now + CRON_RETRY;
+				/* Persist the retry time too, or the next intent would retry immediately */
+				writer.putLong (PREFS_CRON_NEXT, next);
+				cronNext = next;
 				
 				if (!enabled)
-					schedule (null, new Date (next));
+					schedule (null, new Date (next), CRON_WINDOW);
 			}			
 		}
 	}
@@ -424,7 +616,7 @@ public class NotificationService
 		
 		try {
 			meter = MeterSpec.T.NOTIFY_DAILY_JOBS.get (this);
-			conn = SettingsActivity.newConnection (this);
+			conn = SettingsActivity.getSharedConnection (this);
 			
 			srs = conn.getSRSDistribution (meter);
 			ui = conn.getUserInformation (meter);
@@ -439,6 +631,8 @@ public class NotificationService
 				nvdays = ui.getDay () - vday;
 				if (nvdays > 0) {
 					HistoryDatabase.addVacation (this, ui.level, nvdays);
+					/* Not through the writer: addVacation is not idempotent, so the marker
+					 * must be on disk before anything else can go wrong */
 					prefs.edit ().putInt (PREFS_LAST_VACATION, ui.getDay ()).commit ();
 				}
 			}
@@ -637,7 +831,7 @@ public class NotificationService
 		
 		meter = event.meter ().get (this);
 		
-		conn = SettingsActivity.newConnection (this);
+		conn = SettingsActivity.getSharedConnection (this);
 		try {
 			sq = conn.getStudyQueue (meter);
 			/* This call does not cause network traffic */
@@ -650,6 +844,11 @@ public class NotificationService
 			} catch (IOException e) {
 				sd.setExtendedLevelProgression (null);
 			}
+			try {
+				sd.forecast = new ItemsDatabase (this).getForecast ();
+			} catch (SQLException e) {
+				sd.forecast = null;
+			}
 			nifc.update (sd, ChangeType.LESSONS);
 			sd.dd.serialize (this, DashboardData.Source.NOTIFICATION_SERVICE);
 			
@@ -692,15 +891,23 @@ public class NotificationService
 	 * the FSM into an intent and set an alarm.
 	 * This method is also called to schedule the chron event
 	 * (and in that case the state machine parameter is null).
+	 * <p>
+	 * If the FSM and the cron tolerance windows overlap, a single wakeup serves both.
+	 * Otherwise, if the cron comes first, the FSM is fed earlier than requested.
+	 * Then the wakeup time is aligned to a round boundary within the window, 
+	 * so timeouts set by different states tend to fall on the same instants.
+	 * The target API has no inexact alarms with a custom window, 
+	 * so this is done here and the alarm itself is still exact.
 	 *  @param fsm the state machine
 	 *	@param date when the timer should be tiggered
+	 *	@param window how long (in milliseconds) the timer may be delayed
 	 */
-	public void schedule (NotifierStateMachine fsm, Date date)
+	public void schedule (NotifierStateMachine fsm, Date date, long window)
 	{		
-		SharedPreferences prefs;
 		AlarmManager alarm;
+		long start, end, cend;
 		PendingIntent pi;
-		long next, chron;
+		long next;
 		Bundle b;
 		Intent i;
 		
@@ -712,11 +919,19 @@ public class NotificationService
 			i.putExtra (KEY_FSM, b);
 		}
 		
-		next = date.getTime ();
-		prefs = prefs ();
-		chron = prefs.getLong (PREFS_CRON_NEXT, next);
-		if (next > chron)
-			next = chron;
+		start = date.getTime ();
+		end = start + window;
+		if (fsm != null && cronNext != Long.MAX_VALUE) {
+			cend = cronNext + CRON_WINDOW;
+			if (cronNext <= end && start <= cend) {
+				start = Math.max (start, cronNext);
+				end = Math.min (end, cend);
+			} else if (cend < start) {
+				start = cronNext;
+				end = cend;
+			}
+		}
+		next = align (start, end);
 		
 		pi = PendingIntent.getService (this, 0, i, PendingIntent.FLAG_CANCEL_CURRENT);
 		
@@ -724,6 +939,26 @@ public class NotificationService
 		alarm.set (AlarmManager.RTC, next, pi);
 	}
 	
+	/**
+	 * Chooses a wakeup time within a window, rounding it up to the 
+	 * coarsest of {@link #ALIGNMENTS} that fits.
+	 * 	@param start the beginning of the window
+	 *  @param end the end of the window
+	 *  @return the wakeup time
+	 */
+	private static long align (long start, long end)
+	{
+		long ans;
+		
+		for (long a : ALIGNMENTS) {
+			ans = ((start + a - 1) / a) * a;
+			if (ans <= end)
+				return ans;
+		}
+		
+		return start;
+	}
+	
 	/**
 	 * Open the browser.
 	 * 	@param url the url to open
@@ -68,11 +68,13 @@ public class NotifierStateMachine {
 		/**
 		 * Request the interface retrieve data from WaniKani and
 		 * feed {@link NotifierStateMachine#next(com.wanikani.wklib.StudyQueue)} with it
-		 * at a given time.
+		 * at a given time. The interface may delay the event a little, so it can
+		 * be merged with other wakeups.
 		 *  @param fsm the state machine requesting this scheduling
 		 *	@param date when the timer should be tiggered
+		 *	@param window how long (in milliseconds) the event may be delayed
 		 */
-		public void schedule (NotifierStateMachine fsm, Date date);
+		public void schedule (NotifierStateMachine fsm, Date date, long window);
 		
 		/**
 		 * Called when the notification icon should be shown
@@ -118,6 +120,25 @@ public class NotifierStateMachine {
 	 *  queue (this means clock disalignment between the terminal and WaniKani */
 	private static int T_INT_CLOCK_COMPENSATION = 3;
 	
+	/** Extra delay (in milliseconds) when waking up at a time predicted by the review forecast.
+	 *  Same as the tolerance we use for the next review date published by WaniKani */
+	private static long T_FORECAST_TOLERANCE = 10000;
+	
+	/** How long a timeout may be delayed when reviews are available. This is
+	 *  kept tight because it is how quickly the icon reacts to the user reviewing */
+	private static final int T_WINDOW_REVIEWS = 1;
+	
+	/** How long a timeout may be delayed when there are too few reviews */
+	private static final int T_WINDOW_TOO_FEW_REVIEWS = 5;
+	
+	/** How long a timeout may be delayed when there are no reviews, or 
+	 *  the server can't be contacted */
+	private static final int T_WINDOW_IDLE = 15;
+	
+	/** A timeout is never delayed by more than this fraction of its interval,
+	 *  so short timeouts stay short */
+	private static final int T_WINDOW_RATIO = 4;
+	
 	/**
 	 * This enum conveys additional info to @link {@link NotifierStateMachine#next(DashboardData)},
 	 * in order to let the state machine know what event triggered the state machine.
@@ -161,7 +182,7 @@ public class NotifierStateMachine {
 		 * The state machine enters this state when no reviews are 
 		 * available.
 		 */
-		S_NO_REVIEWS {
+		S_NO_REVIEWS (T_WINDOW_IDLE) {
 			public void enter (NotifierStateMachine fsm, Event event, 
 								State prev, DashboardData ldd, DashboardData cdd, 
 								NotificationService.StateData sd) 
@@ -178,19 +199,26 @@ public class NotifierStateMachine {
 
  		/**
 		 * The state machine enters this state when there are reviews, but 
-		 * they have not reached the threshold
+		 * they have not reached the threshold. If the local review forecast 
+		 * is exact, we simply wait until new reviews become available. Otherwise
+		 * we poll, but never sleep past the next forecast change.
 		 */
-		S_TOO_FEW_REVIEWS {
+		S_TOO_FEW_REVIEWS (T_WINDOW_TOO_FEW_REVIEWS) {
 			public void enter (NotifierStateMachine fsm, Event event, 
 							   State prev, DashboardData ldd, DashboardData cdd, 
 							   NotificationService.StateData sd) 
 				{
+					Date next;
+					
 					fsm.ifc.hideNotification ();
-					if (prev != this)
-						fsm.schedule (NotifierStateMachine.T_INT_WAITING_FOR_REVIEWS);
+					next = sd.nextForecast ();
+					if (next != null && sd.isForecastExact (next))
+						fsm.schedule (next, T_FORECAST_TOLERANCE);
+					else if (prev != this)
+						fsm.schedule (NotifierStateMachine.T_INT_WAITING_FOR_REVIEWS, next);
 					else
 						fsm.schedule (NotifierStateMachine.T_INT_WAITING_FOR_REVIEWS,
-									  NotifierStateMachine.T_CAP_WAITING_FOR_REVIEWS);
+									  NotifierStateMachine.T_CAP_WAITING_FOR_REVIEWS, next);
 				}
 		},
 
@@ -198,7 +226,7 @@ public class NotifierStateMachine {
 		 * The state machine enters this state when there are
 		 * pending reviews. Here we have to poll.
 		 */
-		S_REVIEWS_AVAILABLE {			
+		S_REVIEWS_AVAILABLE (T_WINDOW_REVIEWS) {			
 				public void enter (NotifierStateMachine fsm, Event event, 
 									State prev, DashboardData ldd, DashboardData cdd, 
 									NotificationService.StateData sd) 
@@ -222,7 +250,7 @@ public class NotifierStateMachine {
 		 * The state machine enters this state when we can't contact
 		 * the server anymore. Start polling.
 		 */
-		S_ERROR {
+		S_ERROR (T_WINDOW_IDLE) {
 			public void enter (NotifierStateMachine fsm, Event event, 
 							   State prev, DashboardData ldd, DashboardData cdd, 
 							   NotificationService.StateData sd) 
@@ -238,6 +266,18 @@ public class NotifierStateMachine {
 							      	  NotifierStateMachine.T_CAP_ERROR);
 				}
 		};
+		
+		/// How long (in minutes) timeouts set in this state may be delayed
+		int window;
+		
+		/**
+		 * Constructor.
+		 *	@param window how long (in minutes) timeouts may be delayed
+		 */
+		State (int window)
+		{
+			this.window = window;
+		}
 
 		/**
 		 * Called on entering this state. Each state implementation
@@ -398,7 +438,34 @@ public class NotifierStateMachine {
 	 */
 	void schedule (int delta, int cap)
 	{
-		long now;
+		schedule (delta, cap, null);
+	}
+	
+ 	/**
+	 * Schedule a timeout at a given point in time, resetting
+	 * the exponential backoff algorithm. The timeout is 
+	 * anticipated if it comes after a given limit.
+	 *	@param delta the delay in minutes
+	 *	@param limit the latest wake up time (may be <code>null</code>)
+	 */
+	void schedule (int delta, Date limit)
+	{
+		ldelta = 0;
+		
+		schedule (delta, delta, limit);
+	}
+	
+ 	/**
+	 * Schedule a timeout at a given point in time, using
+	 * the exponential backoff algorithm. The timeout is 
+	 * anticipated if it comes after a given limit.
+	 *	@param delta the initial delay in minutes
+	 *	@param cap the backoff in minutes
+	 *	@param limit the latest wake up time (may be <code>null</code>)
+	 */
+	void schedule (int delta, int cap, Date limit)
+	{
+		long now, when;
 		
 		if (ldelta == 0)
 			ldelta = delta;
@@ -409,7 +476,11 @@ public class NotifierStateMachine {
 		}
 	
 		now = System.currentTimeMillis ();
-		ifc.schedule (this, new Date (now + ldelta * 60 * 1000));
+		when = now + ldelta * 60 * 1000;
+		if (limit != null && limit.getTime () + T_FORECAST_TOLERANCE < when)
+			when = limit.getTime () + T_FORECAST_TOLERANCE;
+		
+		wakeup (now, when);
 	}
 
 	/**
@@ -423,7 +494,23 @@ public class NotifierStateMachine {
 	{
 		ldelta = 0;
 		
-		ifc.schedule (this, new Date (tolerance + date.getTime ()));
+		wakeup (System.currentTimeMillis (), tolerance + date.getTime ());
+	}
+	
+	/**
+	 * Asks the interface to trigger a timeout, allowing it to be delayed
+	 * as much as the current state tolerates.
+	 *	@param now the current time
+	 *	@param when when to trigger it
+	 */
+	private void wakeup (long now, long when)
+	{
+		long window;
+		
+		window = Math.min (lstate.window * 60 * 1000, 
+						   Math.max (0, when - now) / T_WINDOW_RATIO);
+		
+		ifc.schedule (this, new Date (when), window);
 	}
 
 }
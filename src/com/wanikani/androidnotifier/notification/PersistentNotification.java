@@ -12,6 +12,7 @@ import android.content.Intent;
 import android.support.v4.app.NotificationCompat;
 
 import com.wanikani.androidnotifier.DashboardFragment;
+import com.wanikani.androidnotifier.MeterSpec;
 import com.wanikani.androidnotifier.R;
 import com.wanikani.androidnotifier.SettingsActivity;
 import com.wanikani.androidnotifier.notification.NotificationService.StateData;
@@ -197,6 +198,13 @@ class PersistentNotification implements NotificationInterface {
 	/** The ID associated to the notification icon */
 	private static final int NOTIFICATION_ID = 1;
 	
+	/** Fingerprint of the notification when it is not shown */
+	private static final String HIDDEN = "";
+	
+	/** Fingerprint of the notification currently posted, or <code>null</code>
+	 *  if unknown. Static, because the service instance does not last long */
+	private static String shown;
+	
 	Context ctxt;
 	
 	public PersistentNotification (Context ctxt)
@@ -222,17 +230,48 @@ class PersistentNotification implements NotificationInterface {
 		update (sd);	/* I want to be sure ctype is not accidentally used */
 	}
 	
+	@Override
+	public void invalidate ()
+	{
+		shown = null;
+	}
+	
+	/**
+	 * Tells whether the notification needs to be posted or cancelled. If not, the
+	 * skipped update is counted. 
+	 * @param fp the fingerprint of the new contents
+	 * @return <code>true</code> if something visible changes
+	 */
+	private boolean changed (String fp)
+	{
+		if (!fp.equals (shown))
+			return true;
+		
+		MeterSpec.countEvent (ctxt, MeterSpec.Event.NOTIFICATION_SKIPPED);
+		
+		return false;
+	}
+	
 	private void update (StateData sd)
 	{
 		NotificationManager nmanager;
 		NotificationCompat.Builder builder;
+		String text, atext, fp;
 		Notification not;
 		PendingIntent pint;
 		Intent intent;
 		State state;
+		int icon;
 		
 		state = State.getState (sd);
 		
+		icon = state.getIcon (sd);
+		text = state.getText (ctxt, sd);
+		atext = state.getAccessoryText (ctxt, sd);
+		fp = icon + ":" + state.getIntent () + ":" + text + ":" + atext;
+		if (!changed (fp))
+			return;
+		
 		nmanager = (NotificationManager) 
 				ctxt.getSystemService (Context.NOTIFICATION_SERVICE);
 
@@ -244,11 +283,11 @@ class PersistentNotification implements NotificationInterface {
 			pint = null;
 
 		builder = new NotificationCompat.Builder (ctxt);
-		builder.setSmallIcon (state.getIcon (sd));
+		builder.setSmallIcon (icon);
 				
-		builder.setContentTitle (state.getText (ctxt, sd));
+		builder.setContentTitle (text);
 								 
-		builder.setContentText (state.getAccessoryText (ctxt, sd));
+		builder.setContentText (atext);
 		if (pint != null)
 			builder.setContentIntent (pint);
 				
@@ -256,15 +295,20 @@ class PersistentNotification implements NotificationInterface {
 		not.flags |= Notification.FLAG_NO_CLEAR;
 		
 		nmanager.notify (NOTIFICATION_ID, not);
+		shown = fp;
 	}
 	
 	protected void hide ()
 	{
 		NotificationManager nmanager;
 		
+		if (!changed (HIDDEN))
+			return;
+		
 		nmanager = (NotificationManager) 
 			ctxt.getSystemService (Context.NOTIFICATION_SERVICE);
 		
 		nmanager.cancel (NOTIFICATION_ID);		
+		shown = HIDDEN;
 	}	
 }
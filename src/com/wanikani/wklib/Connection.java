@@ -8,6 +8,7 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.Date;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -48,6 +49,63 @@ public class Connection {
 		
 	}
 	
+	public enum Outcome {
+		
+		OK,
+		
+		NOT_MODIFIED,
+		
+		ERROR
+		
+	}
+	
+	public interface EndpointMeter extends Meter {
+		
+		public void endpoint (String resource, Outcome outcome, long ttfb, long latency, int size);
+		
+	}
+	
+	public enum CacheOutcome {
+		
+		HIT,
+		
+		MISS,
+		
+		STALE,
+		
+		REVALIDATED
+		
+	}
+	
+	public interface CacheMeter extends Meter {
+		
+		public void cache (Item.Type type, int level, CacheOutcome outcome);
+		
+	}
+	
+	/**
+	 * A persistent store of the validators (and of the last good bodies) of the resources
+	 * that are revalidated on each request, so they survive the process.
+	 */
+	public interface ValidatorStore {
+		
+		/**
+		 * Returns a stored response.
+		 * @param url the resource URL
+		 * @return an array containing the ETag and the body, or <code>null</code>
+		 */
+		public String [] get (String url);
+		
+		/**
+		 * Stores a response.
+		 * @param url the resource URL
+		 * @param etag the ETag, or <code>null</code> to remove the response
+		 * @param body the body
+		 */
+		public void put (String url, String etag, String body);
+		
+	}
+	
 	class Response {
 		
 		UserInformation ui;
@@ -90,6 +148,8 @@ public class Connection {
 		
 		public Date modified;
 		
+		public String body;
+		
 		public CacheInfo (String etag, Date modified)
 		{
 			this.etag = etag;
@@ -107,6 +167,19 @@ public class Connection {
 		}
 	}
 	
+	class ValidatedResponse {
+		
+		String etag;
+		
+		Response res;
+		
+		public ValidatedResponse (String etag, Response res)
+		{
+			this.etag = etag;
+			this.res = res;
+		}
+	}
+	
 	public static final int CONNECT_TIMEOUT = 20000;
 	
 	public static final int READ_TIMEOUT = 60000;
@@ -127,11 +200,17 @@ public class Connection {
 	
 	public ItemsCacheInterface cache;
 	
+	Map<String, ValidatedResponse> validated;
+	
+	/// Where validators are persisted. If <code>null</code>, they are kept in memory only
+	public ValidatorStore validators;
+	
 	public Connection (UserLogin login, Config config)
 	{
 		this.login = login;
 		this.config = config;
 		cache = new ItemsCache ();
+		validated = new Hashtable<String, ValidatedResponse> ();
 	}
 	
 	public void flush ()
@@ -143,7 +222,7 @@ public class Connection {
 		throws IOException
 	{
 		if (ui == null)
-			ui = call (meter, "user-information", false).ui;
+			ui = validatedCall (meter, "user-information").ui;
 		
 		return ui;
 	}	
@@ -154,7 +233,7 @@ public class Connection {
 		Response res;
 		
 		try {
-			res = call (meter, "study-queue", false);
+			res = validatedCall (meter, "study-queue");
 			ui = res.ui;
 
 			return new StudyQueue (res.infoAsObj);
@@ -169,7 +248,7 @@ public class Connection {
 		Response res;
 		
 		try {
-			res = call (meter, "srs-distribution", false);
+			res = validatedCall (meter, "srs-distribution");
 			ui = res.ui;
 
 			return new SRSDistribution (res.infoAsObj);
@@ -184,7 +263,7 @@ public class Connection {
 		Response res;
 		
 		try {
-			res = call (meter, "level-progression", false);
+			res = validatedCall (meter, "level-progression");
 			ui = res.ui;
 
 			return new LevelProgression (res.infoAsObj);
@@ -223,6 +302,12 @@ public class Connection {
 		return ans;
 	}
 	
+	private static void cacheEvent (Meter meter, Item.Type type, int level, CacheOutcome outcome)
+	{
+		if (meter instanceof CacheMeter)
+			((CacheMeter) meter).cache (type, level, outcome);
+	}
+	
 	private static String levelList (List<Integer> level)
 	{
 		StringBuffer sb;
@@ -328,8 +413,10 @@ public class Connection {
 
 		switch (data.quality) {
 		case GOOD:
-			if (!isDataStale (data, level))
+			if (!isDataStale (data, level)) {
+				cacheEvent (meter, type, level, CacheOutcome.HIT);
 				return data.lib;
+			}
 			cinfo = new CacheInfo (data.etag, data.date);
 			break;
 			
@@ -342,6 +429,9 @@ public class Connection {
 			res = call (meter, resource, true, Integer.toString (level), cinfo);
 
 			lib = new ItemLibrary<T> (factory, res.infoAsArray);
+			cacheEvent (meter, type, level, 
+						data.quality == ItemsCacheInterface.Quality.GOOD ? 
+								CacheOutcome.STALE : CacheOutcome.MISS);
 			
 			data = new ItemsCacheInterface.LevelData<T> (cinfo.modified, cinfo.etag, lib);
 			ic.put (data);
@@ -349,6 +439,7 @@ public class Connection {
 			return lib;
 			
 		} catch (NotModifiedException e) {	
+			cacheEvent (meter, type, level, CacheOutcome.REVALIDATED);
 			return data.lib;
 		} catch (JSONException e) {
 			throw new ParseException ();
@@ -385,8 +476,10 @@ public class Connection {
 					if (ld.date.before (cinfo.modified))
 						cinfo.modified = ld.date;
 					badl.add (e.getKey ());					
-				} else				
+				} else {
+					cacheEvent (meter, type, e.getKey (), CacheOutcome.HIT);
 					ans.add (ld.lib);
+				}
 				break;
 				
 			case MISSING:
@@ -400,10 +493,14 @@ public class Connection {
 				lib = new ItemLibrary<T> (factory, res.infoAsArray);
 				ic.put (new ItemsCacheInterface.LevelData<T> (cinfo.modified, null, lib));
 				ans.add (lib);
+				for (Integer i : badl)
+					cacheEvent (meter, type, i, CacheOutcome.STALE);
 			} 
 		} catch (NotModifiedException e) {
-			for (Integer i : badl)
+			for (Integer i : badl) {
+				cacheEvent (meter, type, i, CacheOutcome.REVALIDATED);
 				ans.add (map.get (i).lib);
+			}
 		} catch (JSONException e) {
 			throw new ParseException ();
 		}
@@ -415,6 +512,8 @@ public class Connection {
 				lib = new ItemLibrary<T> (factory, res.infoAsArray);
 				ic.put (new ItemsCacheInterface.LevelData<T> (cinfo.modified, null, lib));
 				ans.add (lib);
+				for (Integer i : missingl)
+					cacheEvent (meter, type, i, CacheOutcome.MISS);
 			} 
 		} catch (JSONException e) {
 			throw new ParseException ();
@@ -490,6 +589,63 @@ public class Connection {
 		return sb.toString ();
 	}
 	
+	protected Response validatedCall (Meter meter, String resource)
+		throws IOException
+	{
+		ValidatedResponse vres;
+		CacheInfo cinfo;
+		Response res;
+		
+		/* ETag only: these resources change as time goes by, so If-Modified-Since is not safe */
+		vres = validated.get (resource);
+		if (vres == null)
+			vres = loadValidated (resource);
+		cinfo = vres != null ? new CacheInfo (vres.etag, null) : new CacheInfo ();
+		try {
+			res = call (meter, resource, false, null, cinfo);
+		} catch (NotModifiedException e) {
+			return vres.res;
+		}
+		
+		if (cinfo.etag != null)
+			validated.put (resource, new ValidatedResponse (cinfo.etag, res));
+		else
+			validated.remove (resource);
+		if (validators != null)
+			validators.put (makeURL (resource, null), cinfo.etag, cinfo.body);
+		
+		return res;
+	}
+	
+	/**
+	 * Loads a validated response from the persistent store, if any. 
+	 * @param resource the resource
+	 * @return the response, or <code>null</code> if not available
+	 */
+	private ValidatedResponse loadValidated (String resource)
+	{
+		ValidatedResponse ans;
+		String data [];
+		
+		if (validators == null)
+			return null;
+		
+		data = validators.get (makeURL (resource, null));
+		if (data == null || data [0] == null || data [1] == null)
+			return null;
+		
+		try {
+			ans = new ValidatedResponse (data [0], new Response (new JSONObject (data [1]), false));
+		} catch (JSONException e) {
+			return null;
+		} catch (IOException e) {
+			return null;
+		}
+		validated.put (resource, ans);
+		
+		return ans;
+	}
+	
 	protected Response call (Meter meter, String resource, boolean isArray)
 			throws IOException
 	{
@@ -506,13 +662,21 @@ public class Connection {
 		throws IOException
 	{
 		HttpURLConnection conn;
+		long start, ttfb;
+		Outcome outcome;
 		JSONTokener tok;
 		InputStream is;
+		String body;
+		int code;
 		URL url;
 		
 		url = new URL (makeURL (resource, arg));
 		conn = null;
 		tok = null;
+		body = null;
+		outcome = Outcome.ERROR;
+		start = System.currentTimeMillis ();
+		ttfb = -1;
 		try {
 			conn = (HttpURLConnection) url.openConnection ();
 			if (cinfo != null) {
@@ -523,15 +687,26 @@ public class Connection {
 			}
 			setTimeouts (conn);
 			conn.connect ();
+			code = conn.getResponseCode ();
+			ttfb = System.currentTimeMillis () - start;
 			if (cinfo != null && cinfo.hasData () && 
-				conn.getResponseCode () == HttpURLConnection.HTTP_NOT_MODIFIED)
+				code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					measureHeaders (meter, conn, false);
+					outcome = Outcome.NOT_MODIFIED;
 					throw new NotModifiedException ();
+			}
 			measureHeaders (meter, conn, false);
 			is = conn.getInputStream ();
-			tok = new JSONTokener (readStream (meter, is));
+			body = readStream (meter, is);
+			tok = new JSONTokener (body);
+			outcome = Outcome.OK;
 		} finally {
 			if (conn != null)
 				conn.disconnect ();
+			if (meter instanceof EndpointMeter)
+				((EndpointMeter) meter).endpoint (resource, outcome, ttfb, 
+												  System.currentTimeMillis () - start, 
+												  body != null ? body.length () : 0);
 		}
 				
 		if (cinfo != null) {
@@ -542,6 +717,7 @@ public class Connection {
 				cinfo.modified = new Date (conn.getLastModified ());
 		
 			cinfo.etag = conn.getHeaderField ("ETag");
+			cinfo.body = body;
 		}
 		
 		try {
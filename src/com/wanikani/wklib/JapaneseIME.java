@@ -1,6 +1,7 @@
 package com.wanikani.wklib;
 
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
@@ -40,75 +41,331 @@ public class JapaneseIME {
 		
 	}
 	
-	private Map<String, String> map;
+	/**
+	 * The romaji table, compiled into a trie over ASCII characters.
+	 * It is built once (see {@link Shared}) and never modified afterwards,
+	 * so it can be used by several threads without synchronization.
+	 */
+	private static final class Trie {
+		
+		/// Longest romaji sequence that is looked up. Longer keys are unreachable
+		static final int MAX_LEN = 4;
+		
+		/// Maps each ASCII character to a column of the transition table, or -1
+		private final byte column [];
+		
+		/// Number of columns
+		private final int columns;
+		
+		/// Transition table: the child of a node is at <code>node * columns + column</code>.
+		/// Zero means no child (the root is never a child)
+		private final short next [];
+		
+		/// The kana emitted when a node is reached, or <code>null</code>
+		private final String value [];
+		
+		/**
+		 * Constructor.
+		 * @param map the romaji to kana mappings
+		 */
+		Trie (Map<String, String> map)
+		{
+			String key, tvalue [];
+			short tnext [];
+			int i, n, col, node, nodes;
+			
+			column = new byte [128];
+			Arrays.fill (column, (byte) -1);
+			n = 0;
+			nodes = 1;
+			for (String k : map.keySet ()) {
+				if (k.length () > MAX_LEN)
+					continue;
+				nodes += k.length ();
+				for (i = 0; i < k.length (); i++)
+					if (column [k.charAt (i)] < 0)
+						column [k.charAt (i)] = (byte) n++;
+			}
+			columns = n;
+			
+			tnext = new short [nodes * columns];
+			tvalue = new String [nodes];
+			nodes = 1;
+			for (Map.Entry<String, String> e : map.entrySet ()) {
+				key = e.getKey ();
+				if (key.length () > MAX_LEN)
+					continue;
+				node = 0;
+				for (i = 0; i < key.length (); i++) {
+					col = node * columns + column [key.charAt (i)];
+					if (tnext [col] == 0)
+						tnext [col] = (short) nodes++;
+					node = tnext [col];
+				}
+				tvalue [node] = e.getValue ();
+			}
+			/* Arrays.copyOf is not available before API 9 */
+			next = new short [nodes * columns];
+			System.arraycopy (tnext, 0, next, 0, next.length);
+			value = new String [nodes];
+			System.arraycopy (tvalue, 0, value, 0, value.length);
+		}
+		
+		/**
+		 * Follows a transition.
+		 * @param node the current node
+		 * @param c the input character
+		 * @return the next node, or <code>0</code> if there is none
+		 */
+		int next (int node, char c)
+		{
+			if (c >= 128 || column [c] < 0)
+				return 0;
+			
+			return next [node * columns + column [c]];
+		}
+		
+		/**
+		 * Returns the kana emitted when reaching a node.
+		 * @param node the node
+		 * @return the kana, or <code>null</code> if the node is not final
+		 */
+		String value (int node)
+		{
+			return value [node];
+		}
+	}
+	
+	/**
+	 * Holder of the table shared by all the instances. The JVM initializes this class,
+	 * and therefore builds the table, the first time some text is actually 
+	 * converted (or {@link JapaneseIME#warmUp()} is called), and guarantees that this
+	 * happens only once per process even if several threads get there at the same time.
+	 * So creating a new instance (e.g. each time the review activity is recreated) 
+	 * costs nothing.
+	 */
+	private static class Shared {
+		
+		/// The table
+		static final Trie TABLE;
+		
+		static {
+			map = new HashMap<String, String> ();
+			populateTable ();
+			TABLE = new Trie (map);
+			map = null;
+		}
+	}
+	
+	/// The romaji to kana mappings. Used only while {@link Shared} is being initialized
+	private static Map<String, String> map;
+	
+	/// The output buffer, reused across calls
+	private StringBuilder sb;
+	
+	/// Start of the pending romaji run, i.e. the ASCII text typed since the last 
+	/// conversion. Negative if the state is not known
+	private int rstart;
+	
+	/// End of the pending romaji run
+	private int rend;
+	
+	/// Position of the first "n" in the pending run, or -1
+	private int rfirstn;
 	
 	public JapaneseIME ()
 	{
-		map = new Hashtable<String, String> ();
+		sb = new StringBuilder ();
 		
-		populateTable ();
+		reset ();
 	}
 	
-	protected String lookup (String s, int start, int len)
+	/**
+	 * Builds the shared table, if not done yet. Meant to be called on a worker
+	 * thread when the keyboard is created, so the first keystroke does not pay for it.
+	 */
+	public static void warmUp ()
 	{
-		s = s.substring (start, start + len);
-		
-		return map.get (s);
+		Shared.TABLE.value (0);
 	}
-
+	
+	/**
+	 * Converts a romaji string into kana. Each character is converted using the
+	 * shortest romaji sequence that starts there. Pending "n"s are
+	 * turned into "ん" only if something else has been converted.
+	 * @param s the input string
+	 * @return the converted string. If nothing is converted, this is the
+	 * 	input string in lower case (the same instance, if it was lower case already)
+	 */
 	public String parse (String s)
 	{
-		StringBuffer sb;
-		String xlated, res;
 		boolean changed;
-		int i, j;
+		String xlated;
+		int i, j, len, node;
+		char c;
 		
 		s = s.toLowerCase (Locale.US);
 		
 		changed = false;
-		sb = new StringBuffer ();
-		for (i = 0; i < s.length (); i++) {
-			xlated = s.substring (i, i + 1);
-			if (s.codePointAt (i) < 128) {
-				for (j = 1; j <= 4; j++) {
-					if (i + j > s.length ())
-						break;
-					res = lookup (s, i, j);
-					if (res != null) {
-						xlated = res;
-						i += j - 1;
-						changed = true;
-						break;
-					}
-				}
+		sb.setLength (0);
+		len = s.length ();
+		for (i = 0; i < len; i++) {
+			xlated = null;
+			node = 0;
+			for (j = i; j < len && j < i + Trie.MAX_LEN; j++) {
+				node = Shared.TABLE.next (node, s.charAt (j));
+				if (node == 0)
+					break;
+				xlated = Shared.TABLE.value (node);
+				if (xlated != null)
+					break;
+			}
+			if (xlated != null) {
+				sb.append (xlated);
+				i = j;
+				changed = true;
+			} else {
+				c = s.charAt (i);
+				sb.append (c == 'n' ? 'ん' : c);
 			}
-			if (xlated.equals ("n"))
-				xlated = "ん";
-			sb.append (xlated);
 		}
 		
 		return changed ? sb.toString () : s;
 	}
 		
-	public Replacement replace (String s, int pos)
+	public Replacement replace (CharSequence cs, int pos)
 	{
-		String xlated;
+		String s, xlated;
 		int i;
 		
 		for (i = pos; i > 0; i--)
-			if (s.codePointAt (i - 1) >= 128)
+			if (cs.charAt (i - 1) >= 128)
 				break;
 		
 		if (i == pos)
 			return null;
 					
-		s = s.substring (i, pos);
+		s = cs.subSequence (i, pos).toString ();
 		xlated = parse (s);
 		
 		return s != xlated ? new Replacement (i, pos, xlated) : null;  
 	}
+	
+	/**
+	 * Forgets the state kept by {@link #next(CharSequence, int)}. The next call
+	 * will look for the pending romaji run from scratch.
+	 */
+	public void reset ()
+	{
+		rstart = -1;
+	}
+	
+	/**
+	 * Tells the IME that the text has been edited. Unless this is a single
+	 * character typed at the end of the pending romaji run, the state is reset.
+	 * @param start where the change begins
+	 * @param before the number of characters removed
+	 * @param count the number of characters inserted
+	 */
+	public void edited (int start, int before, int count)
+	{
+		if (rstart < 0 || start != rend || before != 0 || count != 1)
+			reset ();
+	}
+	
+	/**
+	 * Incremental version of {@link #replace(CharSequence, int)}, to be called
+	 * after each keystroke, together with {@link #edited(int, int, int)}. 
+	 * It returns the same text as <code>replace</code> would, however the 
+	 * replacement covers only the characters that actually change.
+	 * If the state is known, this takes constant time: since nothing in the pending run
+	 * has matched so far, the only candidates are the sequences ending 
+	 * with the new character.
+	 * @param cs the text
+	 * @param pos the cursor position
+	 * @return the replacement, or <code>null</code> if nothing changes
+	 */
+	public Replacement next (CharSequence cs, int pos)
+	{
+		Replacement ans;
+		String xlated;
+		int i, j, node;
+		char c;
+		
+		if (rstart < 0 || pos != rend + 1)
+			return resync (cs, pos);
+
+		rend = pos;
+		c = cs.charAt (pos - 1);
+		if (c >= 128) {
+			rstart = pos;
+			rfirstn = -1;
+			return null;
+		}
+		
+		for (i = Math.max (rstart, pos - Trie.MAX_LEN); i < pos; i++) {
+			node = 0;
+			for (j = i; j < pos; j++) {
+				node = Shared.TABLE.next (node, Character.toLowerCase (cs.charAt (j)));
+				if (node == 0)
+					break;
+			}
+			xlated = j == pos ? Shared.TABLE.value (node) : null;
+			if (xlated != null) {
+				sb.setLength (0);
+				j = rfirstn >= 0 && rfirstn < i ? rfirstn : i;
+				for (node = j; node < i; node++) {
+					c = Character.toLowerCase (cs.charAt (node));
+					sb.append (c == 'n' ? 'ん' : c);
+				}
+				sb.append (xlated);
+				reset ();
+				
+				return new Replacement (j, pos, sb.toString ());
+			}
+		}
+		
+		if (Character.isUpperCase (c)) {
+			ans = new Replacement (pos - 1, pos, String.valueOf (Character.toLowerCase (c)));
+			reset ();
+			return ans;
+		}
+		
+		if (c == 'n' && rfirstn < 0)
+			rfirstn = pos - 1;
+		
+		return null;
+	}
+	
+	/**
+	 * Falls back to {@link #replace(CharSequence, int)}, and rebuilds the state
+	 * if nothing changes.
+	 * @param cs the text
+	 * @param pos the cursor position
+	 * @return the replacement, or <code>null</code> if nothing changes
+	 */
+	private Replacement resync (CharSequence cs, int pos)
+	{
+		Replacement ans;
+		int i;
+		
+		ans = replace (cs, pos);
+		if (ans != null) {
+			reset ();
+			return ans;
+		}
+		
+		rfirstn = -1;
+		for (i = pos; i > 0 && cs.charAt (i - 1) < 128; i--)
+			if (cs.charAt (i - 1) == 'n')
+				rfirstn = i - 1;
+		rstart = i;
+		rend = pos;
+		
+		return null;
+	}
 
-	private void populateTable ()
+	private static void populateTable ()
 	{
 		sput ("a", "あ");
 		sput ("i", "い");
@@ -268,7 +525,7 @@ public class JapaneseIME {
 		return s.replace ("n", "ん");
 	}
 
-	private void putI (String... s)
+	private static void putI (String... s)
 	{
 		String ja;
 		int i;
@@ -284,7 +541,7 @@ public class JapaneseIME {
 		}
 	}
 
-	private void putU (String... s)
+	private static void putU (String... s)
 	{
 		String ja;
 		int i;
@@ -296,7 +553,7 @@ public class JapaneseIME {
 		}
 	}
 	
-	private void put (String... s)
+	private static void put (String... s)
 	{
 		int i;
 		
@@ -306,7 +563,7 @@ public class JapaneseIME {
 		}
 	}
 	
-	private void sput (String... s)
+	private static void sput (String... s)
 	{
 		int i;
 		
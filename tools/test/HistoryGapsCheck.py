@@ -0,0 +1,222 @@
+#!/usr/bin/env python3
+#
+#  Copyright (c) 2013 Alberto Cuda
+#
+#  This program is free software: you can redistribute it and/or modify
+#  it under the terms of the GNU General Public License as published by
+#  the Free Software Foundation, either version 3 of the License, or
+#  (at your option) any later version.
+#
+#  This program is distributed in the hope that it will be useful,
+#  but WITHOUT ANY WARRANTY; without even the implied warranty of
+#  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+#  GNU General Public License for more details.
+#
+#  You should have received a copy of the GNU General Public License
+#  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+"""
+Checks the gap filling of the facts table (HistoryDatabase.Facts.fillGap and
+fillGapsThoroughly) against the original implementation, and measures both.
+
+HistoryDatabase can't run outside of Android, and the tree ships no JDBC
+driver, so this script replays the same SQL statements, in the same order and
+with the same transactions, through the SQLite library bundled with Python.
+The SQL below must be kept in sync with HistoryDatabase.Facts. Each scenario
+is run on two copies of the same database file, one per implementation, and
+the resulting tables must be identical. Run (from the project root):
+
+    python3 tools/test/HistoryGapsCheck.py
+
+The exit status is non-zero if some table differs.
+"""
+
+import os
+import random
+import shutil
+import sqlite3
+import sys
+import tempfile
+import time
+
+TABLE = "facts"
+C_DAY = "_id"
+COLUMNS = ["guru_radicals", "master_radicals", "enlighten_radicals", "burned_radicals",
+           "unlocked_radicals", "guru_kanji", "master_kanji", "enlighten_kanji",
+           "burned_kanji", "unlocked_kanji", "guru_vocab", "master_vocab",
+           "enlighten_vocab", "burned_vocab", "unlocked_vocab"]
+
+SQL_CREATE = ("CREATE TABLE " + TABLE + " (" + C_DAY + " INTEGER PRIMARY KEY, " +
+              ", ".join(c + " INTEGER DEFAULT NULL" for c in COLUMNS) + ")")
+
+SQL_INSERT_DAY = "INSERT OR IGNORE INTO " + TABLE + " (" + C_DAY + ") VALUES (?)"
+
+WHERE_DAY_LTE = C_DAY + " <= ?"
+
+SQL_GAPS = ("SELECT a." + C_DAY + " + 1, " +
+            "(SELECT MIN(b." + C_DAY + ") FROM " + TABLE + " b WHERE b." + C_DAY + " > a." + C_DAY + ") " +
+            "FROM " + TABLE + " a " +
+            "WHERE a." + C_DAY + " < ? AND NOT EXISTS " +
+            "(SELECT 1 FROM " + TABLE + " c WHERE c." + C_DAY + " = a." + C_DAY + " + 1)")
+
+# Days in the scenarios. About four years of history
+DAYS = 1500
+
+
+class Database:
+    """Mimics SQLiteDatabase transactions: nested transactions are merged
+    into the outermost one, and statements outside a transaction autocommit."""
+
+    def __init__(self, path):
+        self.conn = sqlite3.connect(path, isolation_level=None)
+        self.depth = 0
+
+    def begin(self):
+        if self.depth == 0:
+            self.conn.execute("BEGIN EXCLUSIVE")
+        self.depth += 1
+
+    def end(self):
+        self.depth -= 1
+        if self.depth == 0:
+            self.conn.execute("COMMIT")
+
+    def query(self, sql, args=()):
+        return self.conn.execute(sql, args).fetchall()
+
+    def insert(self, day):
+        self.conn.execute(SQL_INSERT_DAY, (day,))
+
+    def close(self):
+        self.conn.close()
+
+
+def old_fill_gap(db, day):
+    n = db.query("SELECT MAX(" + C_DAY + ") FROM " + TABLE)[0][0]
+    n = -1 if n is None else n
+    for i in range(n + 1, day):
+        db.insert(i)
+
+
+def old_fill_gaps_thoroughly(db, day):
+    row = db.query("SELECT COUNT (*) FROM " + TABLE + " WHERE " + WHERE_DAY_LTE, (day,))[0]
+    if row[0] == day + 1:
+        return
+    for i in range(0, day + 1):
+        db.insert(i)
+
+
+def insert_days(db, first, last):
+    if first > last:
+        return
+    db.begin()
+    try:
+        for i in range(first, last + 1):
+            db.insert(i)
+    finally:
+        db.end()
+
+
+def new_fill_gap(db, day):
+    n = db.query("SELECT MAX(" + C_DAY + ") FROM " + TABLE)[0][0]
+    n = -1 if n is None else n
+    insert_days(db, n + 1, day - 1)
+
+
+def new_fill_gaps_thoroughly(db, day):
+    db.begin()
+    try:
+        row = db.query("SELECT COUNT (*), MIN(" + C_DAY + ") FROM " + TABLE +
+                       " WHERE " + WHERE_DAY_LTE, (day,))[0]
+        if row[1] is None:
+            insert_days(db, 0, day)
+            return
+        if row[0] == day + 1:
+            return
+        insert_days(db, 0, row[1] - 1)
+        for first, nxt in db.query(SQL_GAPS, (day,)):
+            insert_days(db, first, day if nxt is None else min(nxt - 1, day))
+    finally:
+        db.end()
+
+
+def populate(path, days):
+    db = sqlite3.connect(path)
+    db.execute(SQL_CREATE)
+    rnd = random.Random(len(days))
+    db.executemany("INSERT INTO " + TABLE + " VALUES (" + ", ".join(["?"] * (len(COLUMNS) + 1)) + ")",
+                   [[d] + [rnd.randint(0, 5000) for c in COLUMNS] for d in days])
+    db.commit()
+    db.close()
+
+
+def dump(path):
+    db = sqlite3.connect(path)
+    try:
+        return db.execute("SELECT * FROM " + TABLE + " ORDER BY " + C_DAY).fetchall()
+    finally:
+        db.close()
+
+
+def run(path, fn, day):
+    db = Database(path)
+    try:
+        start = time.perf_counter()
+        fn(db, day)
+        return time.perf_counter() - start
+    finally:
+        db.close()
+
+
+def scenario(tmp, name, days, old, new, day):
+    base = os.path.join(tmp, "base.db")
+    paths = [os.path.join(tmp, "old.db"), os.path.join(tmp, "new.db")]
+    for p in [base] + paths:
+        if os.path.exists(p):
+            os.remove(p)
+    populate(base, days)
+    for p in paths:
+        shutil.copy(base, p)
+
+    t_old = run(paths[0], old, day)
+    t_new = run(paths[1], new, day)
+    ok = dump(paths[0]) == dump(paths[1])
+    print("%-40s %6d rows  old %9.2f ms  new %9.2f ms  %s" %
+          (name, len(dump(paths[1])), t_old * 1000, t_new * 1000, "ok" if ok else "MISMATCH"))
+
+    return ok
+
+
+def main():
+    rnd = random.Random(42)
+    full = list(range(0, DAYS + 1))
+    holes = [d for d in range(200, DAYS) if rnd.random() > 0.03]
+    beyond = [d for d in range(0, DAYS + 100) if d % 97 != 0]
+    sparse = list(range(0, DAYS, 10))
+
+    tmp = tempfile.mkdtemp()
+    try:
+        results = [
+            scenario(tmp, "fillGapsThoroughly: empty", [], old_fill_gaps_thoroughly,
+                     new_fill_gaps_thoroughly, DAYS),
+            scenario(tmp, "fillGapsThoroughly: complete", full, old_fill_gaps_thoroughly,
+                     new_fill_gaps_thoroughly, DAYS),
+            scenario(tmp, "fillGapsThoroughly: late start, 3% holes", holes, old_fill_gaps_thoroughly,
+                     new_fill_gaps_thoroughly, DAYS),
+            scenario(tmp, "fillGapsThoroughly: rows after the day", beyond, old_fill_gaps_thoroughly,
+                     new_fill_gaps_thoroughly, DAYS),
+            scenario(tmp, "fillGapsThoroughly: one day out of ten", sparse, old_fill_gaps_thoroughly,
+                     new_fill_gaps_thoroughly, DAYS),
+            scenario(tmp, "fillGap: empty", [], old_fill_gap, new_fill_gap, DAYS),
+            scenario(tmp, "fillGap: one day missing", full[:-1], old_fill_gap, new_fill_gap, DAYS),
+            scenario(tmp, "fillGap: one year missing", full[:-365], old_fill_gap, new_fill_gap, DAYS),
+            scenario(tmp, "fillGap: up to date", full, old_fill_gap, new_fill_gap, DAYS),
+        ]
+    finally:
+        shutil.rmtree(tmp)
+
+    return 0 if all(results) else 1
+
+
+if __name__ == "__main__":
+    sys.exit(main())
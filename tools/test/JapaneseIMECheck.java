@@ -0,0 +1,124 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Vector;
+
+import com.wanikani.wklib.JapaneseIME;
+
+/*
+ *  Copyright (c) 2013 Alberto Cuda
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Checks {@link JapaneseIME#parse(String)} against a golden corpus, and measures
+ * its speed. Each line of the corpus is an input string and the expected output,
+ * separated by a tab. The corpus was produced by the original, table-lookup based,
+ * implementation, so any change to the romaji table or to the conversion code
+ * can be verified by running (from the project root):
+ * <pre>
+ * javac -encoding UTF-8 -d /tmp/imecheck src/com/wanikani/wklib/JapaneseIME.java tools/test/JapaneseIMECheck.java
+ * java -cp /tmp/imecheck JapaneseIMECheck tools/test/japanese-ime.corpus
+ * </pre>
+ * If a mapping is changed on purpose, the corpus must be updated accordingly.
+ * The exit status is non-zero if some output differs.
+ */
+public class JapaneseIMECheck {
+	
+	/// Number of passes over the corpus in the benchmark
+	private static final int PASSES = 50;
+	
+	public static void main (String args [])
+		throws IOException
+	{
+		List<String> inputs, outputs;
+		JapaneseIME ime;
+		int i, errors;
+		
+		if (args.length != 1) {
+			System.err.println ("Usage: JapaneseIMECheck <corpus>");
+			System.exit (2);
+		}
+		
+		inputs = new Vector<String> ();
+		outputs = new Vector<String> ();
+		read (args [0], inputs, outputs);
+		
+		ime = new JapaneseIME ();
+		errors = 0;
+		for (i = 0; i < inputs.size (); i++) {
+			if (!ime.parse (inputs.get (i)).equals (outputs.get (i))) {
+				System.out.println ("MISMATCH [" + inputs.get (i) + "]: expected [" +
+									outputs.get (i) + "], got [" + ime.parse (inputs.get (i)) + "]");
+				errors++;
+			}
+		}
+		System.out.println (inputs.size () + " strings checked, " + errors + " mismatches");
+		
+		benchmark (ime, inputs);
+		
+		System.exit (errors > 0 ? 1 : 0);
+	}
+	
+	private static void read (String file, List<String> inputs, List<String> outputs)
+		throws IOException
+	{
+		BufferedReader br;
+		String line;
+		int i;
+		
+		br = new BufferedReader (new InputStreamReader (new FileInputStream (file), "UTF-8"));
+		try {
+			while (true) {
+				line = br.readLine ();
+				if (line == null)
+					break;
+				i = line.indexOf ('\t');
+				if (i < 0)
+					continue;
+				inputs.add (line.substring (0, i));
+				outputs.add (line.substring (i + 1));
+			}
+		} finally {
+			br.close ();
+		}
+	}
+	
+	private static void benchmark (JapaneseIME ime, List<String> inputs)
+	{
+		long start, elapsed;
+		int i, chars;
+		
+		chars = 0;
+		for (String s : inputs)
+			chars += s.length ();
+		
+		/* Warm up */
+		for (i = 0; i < PASSES; i++)
+			for (String s : inputs)
+				ime.parse (s);
+		
+		start = System.nanoTime ();
+		for (i = 0; i < PASSES; i++)
+			for (String s : inputs)
+				ime.parse (s);
+		elapsed = System.nanoTime () - start;
+		
+		System.out.println ("parse: " + (elapsed / ((long) PASSES * inputs.size ())) + " ns/string, " +
+							(elapsed / ((long) PASSES * chars)) + " ns/char");
+	}
+}